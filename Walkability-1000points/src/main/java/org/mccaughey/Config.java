@@ -2,6 +2,7 @@ package org.mccaughey;
 
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.mccaughey.connectivity.SearchMode;
 import org.mccaughey.utilities.ValidationUtils;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -14,6 +15,63 @@ public class Config {
 
     public static double DISTANCE = 800.0;
 
+    //REACH_TABLE and CONTRACTION_HIERARCHY load the whole network once and prepare it up front, the other modes read
+    //the road tiles around the points
+    public static SearchMode SEARCH_MODE = SearchMode.DIJKSTRA;
+
+    public static String ROADS_FILE = "./src/main/java/org/mccaughey/psma_cut_projected.geojson.gz";
+
+    //The roads noded and with their degree 2 chains merged by NetworkCleaner, written when the image is built (see
+    //Docker/Dockerfile) and needed by the polygon and connectivity stages. Only the road geometry and Length are kept
+    public static String CLEAN_ROADS_FILE = "./src/main/java/org/mccaughey/psma_cut_projected_clean.geojson";
+
+    //The road network is cut into tiles of this width, so only the tiles around the points are read
+    public static double ROAD_TILE_SIZE = 2000.0;
+
+    public static String ROAD_TILE_DIRECTORY = "./src/main/java/org/mccaughey/psma_tiles";
+
+    public static int SERVICE_AREA_CACHE_SIZE = 10000;
+
+    //The number of whole road edge buffers kept for reuse between regions
+    public static int EDGE_BUFFER_CACHE_SIZE = 50000;
+
+    //Written with ReachTable from CLEAN_ROADS_FILE for DISTANCE, used when SEARCH_MODE is REACH_TABLE
+    public static String REACH_TABLE_FILE = "./src/main/java/org/mccaughey/psma_cut_projected.reach";
+
+    //Per point limits, 0 for no limit, all off by default. A point over its limits gets the convex hull of the network
+    //it reached, with the reason in the BudgetExceeded attribute of its region
+    public static long POINT_BUDGET_MILLIS = 0;
+
+    public static long POINT_BUDGET_EDGES = 0;
+
+    public static long POINT_BUDGET_UNIONS = 0;
+
+    //Regions are simplified to within this many metres and snapped to a grid of this width before they are sent on,
+    //0 for no simplifying or snapping, both off by default. Simplified regions carry the relative change in their area
+    //in the AreaDeviation attribute
+    public static double REGION_SIMPLIFY_TOLERANCE = 0;
+
+    public static double REGION_GRID_SIZE = 0;
+
+    //The road length on a grid of cells this wide, worked out from ROADS_FILE and used to estimate the work of a point
+    public static String ROAD_DENSITY_FILE = "./src/main/java/org/mccaughey/psma_cut_projected.density";
+
+    public static double ROAD_DENSITY_CELL_SIZE = 100.0;
+
+    //The estimated seconds of work of a point are these per point plus per km of road within reach
+    public static double WORK_SECONDS_PER_POINT = 0.05;
+
+    public static double WORK_SECONDS_PER_KM = 0.02;
+
+    //Each stage serves the estimated seconds of work waiting in its queue on this port for the autoscaler
+    public static int METRICS_PORT = 9404;
+
+    //Connectivity is estimated from intersection counts on a grid of cells this wide, to within CONNECTIVITY_MAX_ERROR
+    //intersections, 0 to count every intersection exactly
+    public static double CONNECTIVITY_CELL_SIZE = 0;
+
+    public static int CONNECTIVITY_MAX_ERROR = 2;
+
     public static SimpleFeature buildFeature(SimpleFeature region, Double connectivity, Double density, Double lum) {
 
         SimpleFeatureType sft = (SimpleFeatureType) region.getType();
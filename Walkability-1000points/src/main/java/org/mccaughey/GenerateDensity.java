@@ -20,6 +20,7 @@ import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.mccaughey.ActiveMQ.QueuedWorkMetric;
 import org.mccaughey.ActiveMQ.Sender;
 import org.mccaughey.connectivity.ConnectivityIndex;
 import org.mccaughey.connectivity.NetworkBufferOMS;
@@ -50,6 +51,10 @@ public class GenerateDensity implements MessageListener,Runnable {
         Thread receiver = new Thread(l);
         receiver.start();
 
+        //Serve the estimated work waiting in the queue for the autoscaler
+        Thread metricThread = new Thread(new QueuedWorkMetric(subject_Receive, Config.METRICS_PORT));
+        metricThread.start();
+
         sender = new Sender("densityZscore");
         Thread senderThread = new Thread(sender);
         senderThread.start();
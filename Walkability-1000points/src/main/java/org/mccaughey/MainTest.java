@@ -85,7 +85,7 @@ public class MainTest {
             while (features.hasNext()) {
                 SimpleFeature feature = features.next();
 
-                SimpleFeature connectivityFeature = ConnectivityIndex.connectivity(DataUtilities.source(GeoJSONUtilities.readFeatures(roadsUrl)), feature);
+                SimpleFeature connectivityFeature = ConnectivityIndex.connectivity(networkBufferOMS.network, feature);
                 System.out.println("Connectivity: " + String.valueOf(connectivityFeature.getAttribute("Connectivity")));
                 Double connectivity = (Double) connectivityFeature.getAttribute("Connectivity");
 
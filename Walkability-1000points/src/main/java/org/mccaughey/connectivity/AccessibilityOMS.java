@@ -0,0 +1,196 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import oms3.annotations.Description;
+import oms3.annotations.Execute;
+import oms3.annotations.Finalize;
+import oms3.annotations.In;
+import oms3.annotations.Name;
+import oms3.annotations.Out;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.store.ReprojectingFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * An OMS wrapper for destination accessibility, the network distance from each region to the nearest destination of
+ * each class, using {@link DestinationAccess} so each class costs one search of the network whatever the number of
+ * regions
+ */
+@Name("accessibility")
+@Description("Calculates the network distance from each neighbourhood to the nearest destination of each class")
+public class AccessibilityOMS {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(AccessibilityOMS.class);
+  private static final double DEFAULT_MAX_DISTANCE = 3000;
+  private static final double DEFAULT_SNAP_DISTANCE = 200;
+
+  /**
+   * The road network to measure distances on
+   */
+  @In
+  @Name("Road network")
+  @Description("The road network dataset to measure distances to destinations along")
+  public SimpleFeatureSource network;
+
+  /**
+   * The regions of interest
+   */
+  @In
+  @Name("Regions")
+  @Description("The input points, or regions/service areas measured from their centroids")
+  public SimpleFeatureSource regions;
+
+  /**
+   * The destinations by class
+   */
+  @In
+  @Name("Destinations")
+  @Description("The destination datasets by class name, eg school, shop or park, polygons are taken at their centroids")
+  public Map<String, SimpleFeatureSource> destinations;
+
+  /**
+   * The furthest distance measured
+   */
+  @In
+  @Name("Maximum distance")
+  @Description("Optional, the furthest network distance measured, further distances are left empty, 3000 by default")
+  public Double maxDistance;
+
+  /**
+   * The furthest a region or destination may be from the network
+   */
+  @In
+  @Name("Snap distance")
+  @Description("Optional, the furthest a region or destination may be from the road network, 200 by default")
+  public Double snapDistance;
+
+  /**
+   * The regions with a "<class>Distance" attribute for each class of destination
+   */
+  @Out
+  @Name("Resulting accessibility")
+  public SimpleFeatureSource results;
+
+  /**
+   * Searches the network once from the destinations of each class, then looks up the distance of every region
+   */
+  @Execute
+  public void run() {
+
+    validateInputs();
+
+    try {
+      double limit = maxDistance == null ? DEFAULT_MAX_DISTANCE : maxDistance;
+      double maxSnap = snapDistance == null ? DEFAULT_SNAP_DISTANCE : snapDistance;
+      CoordinateReferenceSystem networkCRS = network.getSchema().getCoordinateReferenceSystem();
+      NetworkGraph graph = NetworkGraph.forSource(network);
+
+      Map<String, DestinationAccess> access = new LinkedHashMap<String, DestinationAccess>();
+      for (Map.Entry<String, SimpleFeatureSource> destination : destinations.entrySet()) {
+        long start = System.currentTimeMillis();
+        SimpleFeatureCollection features = reproject(destination.getValue().getFeatures(), networkCRS);
+        access.put(destination.getKey(), DestinationAccess.build(graph, features, limit, maxSnap));
+        LOGGER.info("Searched from {} {} destinations in {}ms", new Object[] { features.size(), destination.getKey(),
+            System.currentTimeMillis() - start });
+      }
+
+      SimpleFeatureCollection regionFeatures = reproject(regions.getFeatures(), networkCRS);
+      SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+      stb.init(regionFeatures.getSchema());
+      stb.setName("accessibilityFeatureType");
+      for (String destinationClass : access.keySet()) {
+        stb.add(destinationClass + "Distance", Double.class);
+      }
+      SimpleFeatureType accessibilityType = stb.buildFeatureType();
+      SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(accessibilityType);
+      DefaultFeatureCollection accessibility = new DefaultFeatureCollection();
+      SimpleFeatureIterator features = regionFeatures.features();
+      try {
+        while (features.hasNext()) {
+          SimpleFeature region = features.next();
+          NetworkLocation origin = DestinationAccess.snap(graph, (Geometry) region.getDefaultGeometry(), maxSnap);
+          sfb.addAll(region.getAttributes());
+          for (DestinationAccess destinationAccess : access.values()) {
+            double distance = origin == null ? Double.POSITIVE_INFINITY : destinationAccess.distance(origin);
+            sfb.add(Double.isInfinite(distance) ? null : distance);
+          }
+          accessibility.add(sfb.buildFeature(region.getID()));
+        }
+      } finally {
+        features.close();
+      }
+      results = DataUtilities.source(accessibility);
+
+      LOGGER.info("Completed accessibility for {} regions and {} destination classes", accessibility.size(),
+          access.size());
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage());
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static SimpleFeatureCollection reproject(SimpleFeatureCollection features, CoordinateReferenceSystem crs) {
+    CoordinateReferenceSystem featuresCRS = features.getSchema().getCoordinateReferenceSystem();
+    if (featuresCRS != null && crs != null && !featuresCRS.equals(crs)) {
+      return new ReprojectingFeatureCollection(features, crs);
+    }
+    return features;
+  }
+
+  private void validateInputs() {
+
+    if (network == null) {
+      throw new IllegalArgumentException("Accessibility error: A road network was not provided");
+    }
+
+    if (regions == null) {
+      throw new IllegalArgumentException("Accessibility error: Regions were not provided by the previous component");
+    }
+
+    if (destinations == null || destinations.isEmpty()) {
+      throw new IllegalArgumentException("Accessibility error: No destinations were provided");
+    }
+  }
+
+  /*
+   * Validate outputs
+   */
+  @Finalize
+  public void validateOutputs() throws IOException {
+
+    if (results.getCount(new Query()) == 0) {
+      throw new IllegalArgumentException("Cannot continue tool execution; no results were produced");
+    }
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A contraction hierarchy of the network graph, for service areas of long network distances. Nodes are contracted one
+ * at a time in order of importance, adding a shortcut between two neighbours whenever the path through the contracted
+ * node is the only shortest path between them, so every shortest path in the graph has an equally short path that
+ * only climbs in rank and then only descends.
+ *
+ * A range query then works in the manner of PHAST: a Dijkstra search climbs the upward arcs from the origin, and a
+ * single downward sweep in decreasing level pushes those distances down to every node in range. The sweep visits each
+ * node in range once with no priority queue, so long distances cost little more than the size of the service area.
+ */
+public final class ContractionHierarchy {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(ContractionHierarchy.class);
+  // witness searches give up after settling this many nodes and add the shortcut anyway
+  private static final int WITNESS_SETTLE_LIMIT = 256;
+
+  private final NetworkGraph graph;
+  private final int[] level;
+  private final int levelCount;
+  // the arcs to higher ranked neighbours of node i are upStart[i] to upStart[i+1] - 1
+  private final int[] upStart;
+  private final int[] upTarget;
+  private final double[] upWeight;
+  // the arcs to lower ranked neighbours of node i are downStart[i] to downStart[i+1] - 1
+  private final int[] downStart;
+  private final int[] downTarget;
+  private final double[] downWeight;
+  private final ThreadLocal<int[]> sweeps = new ThreadLocal<int[]>();
+
+  private ContractionHierarchy(NetworkGraph graph, int[] rank, int arcCount, int[] arcLow, int[] arcHigh,
+      double[] arcWeight) {
+    this.graph = graph;
+    int n = graph.nodeCount();
+    upStart = new int[n + 1];
+    downStart = new int[n + 1];
+    for (int a = 0; a < arcCount; a++) {
+      upStart[arcLow[a] + 1]++;
+      downStart[arcHigh[a] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      upStart[i + 1] += upStart[i];
+      downStart[i + 1] += downStart[i];
+    }
+    upTarget = new int[arcCount];
+    upWeight = new double[arcCount];
+    downTarget = new int[arcCount];
+    downWeight = new double[arcCount];
+    int[] nextUp = Arrays.copyOf(upStart, n);
+    int[] nextDown = Arrays.copyOf(downStart, n);
+    for (int a = 0; a < arcCount; a++) {
+      int up = nextUp[arcLow[a]]++;
+      upTarget[up] = arcHigh[a];
+      upWeight[up] = arcWeight[a];
+      int down = nextDown[arcHigh[a]]++;
+      downTarget[down] = arcLow[a];
+      downWeight[down] = arcWeight[a];
+    }
+
+    // a node is one level above the highest of its lower ranked neighbours, so downward arcs always drop a level
+    int[] byRank = new int[n];
+    for (int i = 0; i < n; i++) {
+      byRank[rank[i]] = i;
+    }
+    level = new int[n];
+    int top = 0;
+    for (int r = 0; r < n; r++) {
+      int node = byRank[r];
+      for (int a = downStart[node]; a < downStart[node + 1]; a++) {
+        level[node] = Math.max(level[node], level[downTarget[a]] + 1);
+      }
+      top = Math.max(top, level[node]);
+    }
+    levelCount = top + 1;
+  }
+
+  /**
+   * Contracts a network graph
+   *
+   * @param graph
+   *          The network graph
+   * @return The hierarchy of the graph
+   */
+  public static ContractionHierarchy build(NetworkGraph graph) {
+    long start = System.currentTimeMillis();
+    ContractionHierarchy hierarchy = new Contractor(graph).contract();
+    LOGGER.info("Contracted {} nodes into {} arcs and {} levels in {}ms", new Object[] { graph.nodeCount(),
+        hierarchy.upTarget.length, hierarchy.levelCount, System.currentTimeMillis() - start });
+    return hierarchy;
+  }
+
+  /**
+   * @return The number of arcs, original edges and shortcuts, in the hierarchy
+   */
+  public int arcCount() {
+    return upTarget.length;
+  }
+
+  /**
+   * Finds the service area of an origin on the network. The upward search starts from both end nodes of the origin
+   * edge at their distance along it, the downward sweep then settles every node within distance and the reached edges
+   * are collected and trimmed just as after a graph search.
+   *
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @return The edges reachable within distance of the origin
+   */
+  public ServiceArea findServiceArea(NetworkLocation origin, double distance) {
+    SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+    try {
+      StartOverlay overlay = new StartOverlay(graph, origin);
+      workspace.setDistance(overlay.node, 0);
+      search(workspace, overlay, distance);
+      ServiceArea serviceArea = ServiceArea.collect(workspace, overlay, distance);
+      LOGGER.debug("Swept {} nodes, reached {} edges", workspace.reachedCount, serviceArea.size());
+      return serviceArea;
+    } finally {
+      workspace.reset();
+    }
+  }
+
+  private void search(SearchWorkspace workspace, StartOverlay overlay, double distance) {
+    double[] dist = workspace.distance;
+    NodeHeap heap = workspace.heap;
+    offer(workspace, graph.edgeFrom(overlay.parent), overlay.headLength, distance);
+    offer(workspace, graph.edgeTo(overlay.parent), overlay.tailLength, distance);
+    while (!heap.isEmpty()) {
+      int node = heap.poll();
+      double d = dist[node];
+      for (int a = upStart[node]; a < upStart[node + 1]; a++) {
+        offer(workspace, upTarget[a], d + upWeight[a], distance);
+      }
+    }
+
+    // next[node] links the nodes queued on each level, heads are at next[nodeCount + level]
+    int n = graph.nodeCount();
+    int[] next = sweeps.get();
+    if (next == null) {
+      next = new int[n + levelCount];
+      Arrays.fill(next, n, n + levelCount, -1);
+      sweeps.set(next);
+    }
+    boolean[] queued = workspace.settled;
+    int upward = workspace.reachedCount;
+    for (int i = 0; i < upward; i++) {
+      int node = workspace.reached[i];
+      if (node != overlay.node) {
+        queued[node] = true;
+        next[node] = next[n + level[node]];
+        next[n + level[node]] = node;
+      }
+    }
+    for (int l = levelCount - 1; l >= 0; l--) {
+      while (next[n + l] >= 0) {
+        int node = next[n + l];
+        next[n + l] = next[node];
+        double d = dist[node];
+        for (int a = downStart[node]; a < downStart[node + 1]; a++) {
+          int target = downTarget[a];
+          double dt = d + downWeight[a];
+          if (dt <= distance && dt < dist[target]) {
+            workspace.setDistance(target, dt);
+            if (!queued[target]) {
+              queued[target] = true;
+              next[target] = next[n + level[target]];
+              next[n + level[target]] = target;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void offer(SearchWorkspace workspace, int node, double d, double distance) {
+    if (d <= distance && d < workspace.distance[node]) {
+      workspace.setDistance(node, d);
+      workspace.heap.offer(node, d);
+    }
+  }
+
+  /**
+   * The working state of a contraction: the remaining graph as growable adjacency lists, with each contracted node
+   * removed from the lists of its neighbours, and the scratch space of the witness searches
+   */
+  private static final class Contractor {
+    private final NetworkGraph graph;
+    private final int n;
+    private final int[][] neighbours;
+    private final double[][] weights;
+    private final int[] degree;
+    private final int[] contractedNeighbours;
+    private final int[] rank;
+
+    private final double[] witnessDistance;
+    private final NodeHeap witnessHeap;
+    private int[] touched = new int[64];
+    private int touchedCount;
+
+    private int arcCount;
+    private int[] arcLow = new int[1024];
+    private int[] arcHigh = new int[1024];
+    private double[] arcWeight = new double[1024];
+
+    Contractor(NetworkGraph graph) {
+      this.graph = graph;
+      n = graph.nodeCount();
+      neighbours = new int[n][];
+      weights = new double[n][];
+      degree = new int[n];
+      contractedNeighbours = new int[n];
+      rank = new int[n];
+      Arrays.fill(rank, -1);
+      for (int node = 0; node < n; node++) {
+        int arcs = graph.arcEnd(node) - graph.arcStart(node);
+        neighbours[node] = new int[Math.max(arcs, 1)];
+        weights[node] = new double[Math.max(arcs, 1)];
+      }
+      for (int e = 0; e < graph.edgeCount(); e++) {
+        if (graph.edgeFrom(e) != graph.edgeTo(e)) {
+          link(graph.edgeFrom(e), graph.edgeTo(e), graph.edgeLength(e));
+          link(graph.edgeTo(e), graph.edgeFrom(e), graph.edgeLength(e));
+        }
+      }
+      witnessDistance = new double[n];
+      Arrays.fill(witnessDistance, Double.POSITIVE_INFINITY);
+      witnessHeap = new NodeHeap(n);
+    }
+
+    ContractionHierarchy contract() {
+      NodeHeap queue = new NodeHeap(n);
+      for (int node = 0; node < n; node++) {
+        queue.offer(node, priority(node));
+      }
+      int order = 0;
+      while (!queue.isEmpty()) {
+        int node = queue.poll();
+        // priorities go stale as neighbours are contracted, so check the cheapest before taking it
+        double priority = priority(node);
+        if (!queue.isEmpty() && priority > queue.peekKey()) {
+          queue.offer(node, priority);
+          continue;
+        }
+        rank[node] = order++;
+        contractNode(node);
+      }
+      return new ContractionHierarchy(graph, rank, arcCount, arcLow, arcHigh, arcWeight);
+    }
+
+    // twice the edge difference of contracting node plus how many of its neighbours have gone, which spreads
+    // contraction evenly over the network
+    private double priority(int node) {
+      return 2 * (shortcuts(node, false) - degree[node]) + contractedNeighbours[node];
+    }
+
+    private void contractNode(int node) {
+      shortcuts(node, true);
+      for (int i = 0; i < degree[node]; i++) {
+        int neighbour = neighbours[node][i];
+        addArc(node, neighbour, weights[node][i]);
+        unlink(neighbour, node);
+        contractedNeighbours[neighbour]++;
+      }
+      degree[node] = 0;
+    }
+
+    /**
+     * Finds the pairs of neighbours with no shorter path between them than through node
+     *
+     * @return The number of shortcuts needed to contract node
+     */
+    private int shortcuts(int node, boolean add) {
+      int count = 0;
+      int[] around = Arrays.copyOf(neighbours[node], degree[node]);
+      double[] through = Arrays.copyOf(weights[node], degree[node]);
+      double longest = 0;
+      for (double w : through) {
+        longest = Math.max(longest, w);
+      }
+      for (int i = 0; i < around.length - 1; i++) {
+        witnessSearch(around[i], node, through[i] + longest);
+        for (int j = i + 1; j < around.length; j++) {
+          double viaNode = through[i] + through[j];
+          if (witnessDistance[around[j]] > viaNode) {
+            count++;
+            if (add) {
+              shortcut(around[i], around[j], viaNode);
+            }
+          }
+        }
+        clearWitness();
+      }
+      return count;
+    }
+
+    // a bounded Dijkstra search of the remaining graph from source that avoids the node being contracted
+    private void witnessSearch(int source, int avoid, double limit) {
+      setWitness(source, 0);
+      witnessHeap.offer(source, 0);
+      int settled = 0;
+      while (!witnessHeap.isEmpty() && settled++ < WITNESS_SETTLE_LIMIT) {
+        int node = witnessHeap.poll();
+        double d = witnessDistance[node];
+        for (int i = 0; i < degree[node]; i++) {
+          int target = neighbours[node][i];
+          double dt = d + weights[node][i];
+          if (target != avoid && dt <= limit && dt < witnessDistance[target]) {
+            setWitness(target, dt);
+            witnessHeap.offer(target, dt);
+          }
+        }
+      }
+      witnessHeap.clear();
+    }
+
+    private void setWitness(int node, double d) {
+      if (witnessDistance[node] == Double.POSITIVE_INFINITY) {
+        if (touchedCount == touched.length) {
+          touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = node;
+      }
+      witnessDistance[node] = d;
+    }
+
+    private void clearWitness() {
+      for (int i = 0; i < touchedCount; i++) {
+        witnessDistance[touched[i]] = Double.POSITIVE_INFINITY;
+      }
+      touchedCount = 0;
+    }
+
+    private void shortcut(int a, int b, double weight) {
+      link(a, b, weight);
+      link(b, a, weight);
+    }
+
+    // adds or shortens the link from a to b
+    private void link(int a, int b, double weight) {
+      for (int i = 0; i < degree[a]; i++) {
+        if (neighbours[a][i] == b) {
+          weights[a][i] = Math.min(weights[a][i], weight);
+          return;
+        }
+      }
+      if (degree[a] == neighbours[a].length) {
+        neighbours[a] = Arrays.copyOf(neighbours[a], degree[a] * 2);
+        weights[a] = Arrays.copyOf(weights[a], degree[a] * 2);
+      }
+      neighbours[a][degree[a]] = b;
+      weights[a][degree[a]] = weight;
+      degree[a]++;
+    }
+
+    private void unlink(int a, int b) {
+      for (int i = 0; i < degree[a]; i++) {
+        if (neighbours[a][i] == b) {
+          degree[a]--;
+          neighbours[a][i] = neighbours[a][degree[a]];
+          weights[a][i] = weights[a][degree[a]];
+          return;
+        }
+      }
+    }
+
+    private void addArc(int low, int high, double weight) {
+      if (arcCount == arcLow.length) {
+        arcLow = Arrays.copyOf(arcLow, arcCount * 2);
+        arcHigh = Arrays.copyOf(arcHigh, arcCount * 2);
+        arcWeight = Arrays.copyOf(arcWeight, arcCount * 2);
+      }
+      arcLow[arcCount] = low;
+      arcHigh[arcCount] = high;
+      arcWeight[arcCount] = weight;
+      arcCount++;
+    }
+  }
+}
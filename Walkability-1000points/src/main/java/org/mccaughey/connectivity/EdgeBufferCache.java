@@ -0,0 +1,176 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * A bounded, least recently used cache of the buffer polygons of single network edges, keyed by the edge and the
+ * buffer size. The service areas of nearby points share most of their edges, so for a dense set of points each busy
+ * edge would otherwise be buffered again for every point that reaches it. With the cache only the chopped edges at the
+ * ends of a service area are buffered, and the cached buffers of the whole edges are unioned with them.
+ *
+ * The buffers are made by a {@link BufferUnion} and keyed by its precision and quadrant segments too, so one cache can
+ * serve batches with different buffer settings. Edges are keyed by the {@link NetworkGraph#fingerprint()} of their
+ * network rather than the graph itself, so the cache does not keep a replaced graph from being collected.
+ */
+public final class EdgeBufferCache {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(EdgeBufferCache.class);
+
+  private final Map<Key, Geometry> buffers;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param capacity
+   *          The most edge buffers to keep, the least recently used buffer is evicted beyond this
+   */
+  public EdgeBufferCache(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Cache capacity must be positive");
+    }
+    this.buffers = new LinkedHashMap<Key, Geometry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Geometry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Buffers a service area, taking the buffers of its whole edges from the cache
+   *
+   * @param serviceArea
+   *          The reached edges
+   * @param distance
+   *          The distance to buffer
+   * @param bufferUnion
+   *          The buffer engine, sets the precision and quadrant segments of the buffer
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The region within distance of the service area
+   * @throws BudgetExceededException
+   *           if the point goes over budget
+   */
+  public Geometry buffer(ServiceArea serviceArea, double distance, BufferUnion bufferUnion, PointBudget.Meter meter) {
+    NetworkGraph graph = serviceArea.getGraph();
+    GeometryFactory geometryFactory = new GeometryFactory();
+    List<Geometry> chopped = new ArrayList<Geometry>();
+    List<Geometry> whole = new ArrayList<Geometry>();
+    for (int i = 0; i < serviceArea.size(); i++) {
+      if (serviceArea.isWhole(i)) {
+        whole.add(edgeBuffer(graph, serviceArea.edge(i), distance, bufferUnion, geometryFactory));
+      } else {
+        chopped.add(serviceArea.edgeGeometry(i, geometryFactory));
+      }
+    }
+    LOGGER.debug("Buffering {} chopped edges with {} cached edge buffers", chopped.size(), whole.size());
+    return bufferUnion.union(chopped, whole, distance, meter);
+  }
+
+  // gets the buffer of a whole edge, buffering it on a miss. Two threads may both buffer an edge that neither has
+  // cached yet, which costs less than making one wait for the other.
+  private Geometry edgeBuffer(NetworkGraph graph, int edge, double distance, BufferUnion bufferUnion,
+      GeometryFactory geometryFactory) {
+    Key key = new Key(graph.fingerprint(), edge, distance, bufferUnion);
+    synchronized (buffers) {
+      Geometry buffer = buffers.get(key);
+      if (buffer != null) {
+        hits.incrementAndGet();
+        return buffer;
+      }
+    }
+    misses.incrementAndGet();
+    Geometry buffer = bufferUnion.buffer(graph.edgeGeometry(edge, geometryFactory), distance);
+    synchronized (buffers) {
+      buffers.put(key, buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * @return The number of edge buffers held
+   */
+  public int size() {
+    synchronized (buffers) {
+      return buffers.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (buffers) {
+      buffers.clear();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "EdgeBufferCache[size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+  }
+
+  private static final class Key {
+    private final long network;
+    private final int edge;
+    private final double distance;
+    private final BufferUnion bufferUnion;
+
+    Key(long network, int edge, double distance, BufferUnion bufferUnion) {
+      this.network = network;
+      this.edge = edge;
+      this.distance = distance;
+      this.bufferUnion = bufferUnion;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return network == other.network && edge == other.edge && Double.compare(distance, other.distance) == 0
+          && bufferUnion.equals(other.bufferUnion);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (int) (network ^ (network >>> 32));
+      hash = 31 * hash + edge;
+      long bits = Double.doubleToLongBits(distance);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+      return 31 * hash + bufferUnion.hashCode();
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * The intersections of a network graph rasterized into a grid with a summed-area table, for approximate connectivity
+ * in screening runs where testing every intersection against the region is more precise than needed. The grid is built
+ * once per graph and cell size (see {@link NetworkGraph#getIntersectionGrid(double)}) and is safe to share between
+ * threads.
+ *
+ * An estimate splits the cells under a region into blocks: blocks the region covers are counted from the table, blocks
+ * it misses or that hold no intersections are dropped, and the rest are split down to boundary cells. The points of
+ * the fullest boundary cells are tested exactly until the error is within the bound asked for, and the remaining
+ * boundary cells are counted as half full, so the estimate is within {@link Estimate#getError()} of the exact count of
+ * {@link IntersectionIndex#count(Geometry)}.
+ */
+public final class IntersectionGrid {
+
+  private final int size;
+  private final double minX;
+  private final double minY;
+  private final double cellSize;
+  private final int columns;
+  private final int rows;
+  // the intersections in rows below r and columns left of c are table[r * (columns + 1) + c]
+  private final int[] table;
+  // the points of cell c are cellOffsets[c] to cellOffsets[c+1] - 1, cells numbered row by row
+  private final int[] cellOffsets;
+  // point i is at (coords[2i], coords[2i+1])
+  private final double[] coords;
+
+  /**
+   * An approximate count of the intersections in a region
+   */
+  public static final class Estimate {
+    private final int count;
+    private final int error;
+    private final int testedCells;
+    private final int estimatedCells;
+
+    Estimate(int count, int error, int testedCells, int estimatedCells) {
+      this.count = count;
+      this.error = error;
+      this.testedCells = testedCells;
+      this.estimatedCells = estimatedCells;
+    }
+
+    /**
+     * @return The estimated number of intersections in the region
+     */
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * @return The most the estimate can differ from the exact count
+     */
+    public int getError() {
+      return error;
+    }
+
+    /**
+     * @return The number of boundary cells whose points were tested
+     */
+    public int getTestedCells() {
+      return testedCells;
+    }
+
+    /**
+     * @return The number of boundary cells counted as half full
+     */
+    public int getEstimatedCells() {
+      return estimatedCells;
+    }
+
+    @Override
+    public String toString() {
+      return count + " +/- " + error;
+    }
+  }
+
+  IntersectionGrid(NetworkGraph graph, double cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    this.cellSize = cellSize;
+    Envelope bounds = new Envelope();
+    int count = 0;
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= IntersectionIndex.MIN_DEGREE) {
+        bounds.expandToInclude(graph.nodeX(n), graph.nodeY(n));
+        count++;
+      }
+    }
+    size = count;
+    minX = count == 0 ? 0 : bounds.getMinX();
+    minY = count == 0 ? 0 : bounds.getMinY();
+    columns = count == 0 ? 1 : (int) (bounds.getWidth() / cellSize) + 1;
+    rows = count == 0 ? 1 : (int) (bounds.getHeight() / cellSize) + 1;
+
+    // count the points of each cell, then lay them out by prefix sum
+    cellOffsets = new int[columns * rows + 1];
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= IntersectionIndex.MIN_DEGREE) {
+        cellOffsets[cell(graph.nodeX(n), graph.nodeY(n)) + 1]++;
+      }
+    }
+    table = new int[(rows + 1) * (columns + 1)];
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < columns; c++) {
+        table[(r + 1) * (columns + 1) + c + 1] = cellOffsets[r * columns + c + 1] + table[r * (columns + 1) + c + 1]
+            + table[(r + 1) * (columns + 1) + c] - table[r * (columns + 1) + c];
+      }
+    }
+    for (int c = 0; c < columns * rows; c++) {
+      cellOffsets[c + 1] += cellOffsets[c];
+    }
+    coords = new double[2 * count];
+    int[] next = Arrays.copyOf(cellOffsets, columns * rows);
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= IntersectionIndex.MIN_DEGREE) {
+        int i = next[cell(graph.nodeX(n), graph.nodeY(n))]++;
+        coords[2 * i] = graph.nodeX(n);
+        coords[2 * i + 1] = graph.nodeY(n);
+      }
+    }
+  }
+
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  /**
+   * @return The number of intersections in the network
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Estimates the intersections in a region, those on its boundary included
+   *
+   * @param region
+   *          The region of interest
+   * @param maxError
+   *          The most the estimate may differ from the exact count, 0 for an exact count
+   * @return The estimated count and its error bound
+   */
+  public Estimate estimate(Geometry region, int maxError) {
+    if (maxError < 0) {
+      throw new IllegalArgumentException("Error bound must not be negative: " + maxError);
+    }
+    Envelope envelope = region.getEnvelopeInternal();
+    if (size == 0 || envelope.isNull()) {
+      return new Estimate(0, 0, 0, 0);
+    }
+    int column0 = Math.max(0, column(envelope.getMinX()));
+    int column1 = Math.min(columns - 1, column(envelope.getMaxX()));
+    int row0 = Math.max(0, row(envelope.getMinY()));
+    int row1 = Math.min(rows - 1, row(envelope.getMaxY()));
+    if (column0 > column1 || row0 > row1) {
+      return new Estimate(0, 0, 0, 0);
+    }
+    Search search = new Search(PreparedGeometryFactory.prepare(region), region.getFactory());
+    search.classify(column0, row0, column1 + 1, row1 + 1);
+
+    // the fullest boundary cells are tested until the cells left to estimate are within the bound
+    int[] boundary = search.boundaryCells();
+    long[] byCount = new long[boundary.length];
+    int untested = 0;
+    for (int i = 0; i < boundary.length; i++) {
+      int points = cellOffsets[boundary[i] + 1] - cellOffsets[boundary[i]];
+      byCount[i] = ((long) points << 32) | boundary[i];
+      untested += points;
+    }
+    Arrays.sort(byCount);
+    int count = search.covered;
+    int tested = 0;
+    for (int i = byCount.length - 1; i >= 0 && untested - untested / 2 > maxError; i--) {
+      int c = (int) byCount[i];
+      for (int p = cellOffsets[c]; p < cellOffsets[c + 1]; p++) {
+        if (envelope.contains(coords[2 * p], coords[2 * p + 1])
+            && search.prepared.intersects(search.geometryFactory.createPoint(new Coordinate(coords[2 * p],
+                coords[2 * p + 1])))) {
+          count++;
+        }
+      }
+      untested -= cellOffsets[c + 1] - cellOffsets[c];
+      tested++;
+    }
+    // each untested cell holds between none and all of its points in the region
+    return new Estimate(count + untested / 2, untested - untested / 2, tested, boundary.length - tested);
+  }
+
+  /**
+   * The state of one estimate while its blocks of cells are classified
+   */
+  private final class Search {
+    private final PreparedGeometry prepared;
+    private final GeometryFactory geometryFactory;
+    private int covered;
+    private int[] boundary = new int[16];
+    private int boundaryCount;
+
+    private Search(PreparedGeometry prepared, GeometryFactory geometryFactory) {
+      this.prepared = prepared;
+      this.geometryFactory = geometryFactory;
+    }
+
+    /**
+     * Counts the block of cells from columns c0 to c1 - 1 and rows r0 to r1 - 1
+     */
+    private void classify(int c0, int r0, int c1, int r1) {
+      int points = sum(c0, r0, c1, r1);
+      if (points == 0) {
+        return;
+      }
+      Geometry block = geometryFactory.toGeometry(new Envelope(minX + c0 * cellSize, minX + c1 * cellSize, minY + r0
+          * cellSize, minY + r1 * cellSize));
+      if (!prepared.intersects(block)) {
+        return;
+      }
+      if (prepared.covers(block)) {
+        covered += points;
+      } else if (c1 - c0 == 1 && r1 - r0 == 1) {
+        if (boundaryCount == boundary.length) {
+          boundary = Arrays.copyOf(boundary, 2 * boundaryCount);
+        }
+        boundary[boundaryCount++] = r0 * columns + c0;
+      } else if (c1 - c0 >= r1 - r0) {
+        int middle = (c0 + c1) >>> 1;
+        classify(c0, r0, middle, r1);
+        classify(middle, r0, c1, r1);
+      } else {
+        int middle = (r0 + r1) >>> 1;
+        classify(c0, r0, c1, middle);
+        classify(c0, middle, c1, r1);
+      }
+    }
+
+    private int[] boundaryCells() {
+      return Arrays.copyOf(boundary, boundaryCount);
+    }
+  }
+
+  /**
+   * @return The intersections in columns c0 to c1 - 1 and rows r0 to r1 - 1
+   */
+  private int sum(int c0, int r0, int c1, int r1) {
+    int stride = columns + 1;
+    return table[r1 * stride + c1] - table[r0 * stride + c1] - table[r1 * stride + c0] + table[r0 * stride + c0];
+  }
+
+  private int cell(double x, double y) {
+    return Math.min(rows - 1, row(y)) * columns + Math.min(columns - 1, column(x));
+  }
+
+  private int column(double x) {
+    return (int) Math.floor((x - minX) / cellSize);
+  }
+
+  private int row(double y) {
+    return (int) Math.floor((y - minY) / cellSize);
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * The intersections of a network graph, its nodes of degree three or more, packed into a static grid so that the
+ * connectivity of a region is a count of points in a prepared polygon rather than a graph built from the roads around
+ * the region. The index is built once per graph (see {@link NetworkGraph#getIntersectionIndex()}) and is safe to share
+ * between threads.
+ *
+ * Points are held in flat coordinate and degree arrays sorted by grid cell, with the points of each cell contiguous, so
+ * a query touches only the cells under the envelope of the region, and whole cells the region contains are counted
+ * without testing their points.
+ */
+public final class IntersectionIndex {
+
+  /**
+   * The smallest degree of a node counted as an intersection
+   */
+  public static final int MIN_DEGREE = 3;
+  // the grid is sized for about this many points per cell
+  private static final int POINTS_PER_CELL = 8;
+
+  private final int size;
+  private final double minX;
+  private final double minY;
+  private final double cellSize;
+  private final int columns;
+  private final int rows;
+  // the points of cell c are cellOffsets[c] to cellOffsets[c+1] - 1, cells numbered row by row
+  private final int[] cellOffsets;
+  // point i is at (coords[2i], coords[2i+1])
+  private final double[] coords;
+  private final int[] degrees;
+
+  IntersectionIndex(NetworkGraph graph) {
+    Envelope bounds = new Envelope();
+    int count = 0;
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= MIN_DEGREE) {
+        bounds.expandToInclude(graph.nodeX(n), graph.nodeY(n));
+        count++;
+      }
+    }
+    size = count;
+    if (count == 0) {
+      minX = 0;
+      minY = 0;
+      cellSize = 1;
+      columns = 1;
+      rows = 1;
+    } else {
+      minX = bounds.getMinX();
+      minY = bounds.getMinY();
+      double extent = Math.max(bounds.getWidth(), bounds.getHeight());
+      double side = Math.sqrt(bounds.getArea() * POINTS_PER_CELL / count);
+      // a line of points has no area, so fall back to cells along its length
+      cellSize = side > 0 ? side : extent > 0 ? extent * POINTS_PER_CELL / count : 1;
+      columns = (int) (bounds.getWidth() / cellSize) + 1;
+      rows = (int) (bounds.getHeight() / cellSize) + 1;
+    }
+
+    // count the points of each cell, then lay them out by prefix sum
+    cellOffsets = new int[columns * rows + 1];
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= MIN_DEGREE) {
+        cellOffsets[cell(graph.nodeX(n), graph.nodeY(n)) + 1]++;
+      }
+    }
+    for (int c = 0; c < columns * rows; c++) {
+      cellOffsets[c + 1] += cellOffsets[c];
+    }
+    coords = new double[2 * count];
+    degrees = new int[count];
+    int[] next = new int[columns * rows];
+    System.arraycopy(cellOffsets, 0, next, 0, next.length);
+    for (int n = 0; n < graph.nodeCount(); n++) {
+      if (graph.degree(n) >= MIN_DEGREE) {
+        int i = next[cell(graph.nodeX(n), graph.nodeY(n))]++;
+        coords[2 * i] = graph.nodeX(n);
+        coords[2 * i + 1] = graph.nodeY(n);
+        degrees[i] = graph.degree(n);
+      }
+    }
+  }
+
+  /**
+   * @return The number of intersections in the network
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Counts the intersections in a region, those on its boundary included
+   *
+   * @param region
+   *          The region of interest
+   * @return The number of nodes of degree three or more that intersect region
+   */
+  public int count(Geometry region) {
+    return count(region, MIN_DEGREE);
+  }
+
+  /**
+   * Counts the nodes of at least a given degree in a region, those on its boundary included
+   *
+   * @param region
+   *          The region of interest
+   * @param minDegree
+   *          The smallest degree counted, at least three
+   * @return The number of nodes of degree minDegree or more that intersect region
+   */
+  public int count(Geometry region, int minDegree) {
+    if (minDegree < MIN_DEGREE) {
+      throw new IllegalArgumentException("Only nodes of degree " + MIN_DEGREE + " or more are indexed: " + minDegree);
+    }
+    Envelope envelope = region.getEnvelopeInternal();
+    if (size == 0 || envelope.isNull()) {
+      return 0;
+    }
+    int column0 = Math.max(0, column(envelope.getMinX()));
+    int column1 = Math.min(columns - 1, column(envelope.getMaxX()));
+    int row0 = Math.max(0, row(envelope.getMinY()));
+    int row1 = Math.min(rows - 1, row(envelope.getMaxY()));
+    if (column0 > column1 || row0 > row1) {
+      return 0;
+    }
+    PreparedGeometry prepared = PreparedGeometryFactory.prepare(region);
+    GeometryFactory geometryFactory = region.getFactory();
+    int count = 0;
+    for (int row = row0; row <= row1; row++) {
+      for (int column = column0; column <= column1; column++) {
+        int c = row * columns + column;
+        int start = cellOffsets[c];
+        int end = cellOffsets[c + 1];
+        if (start == end) {
+          continue;
+        }
+        Envelope cell = new Envelope(minX + column * cellSize, minX + (column + 1) * cellSize, minY + row * cellSize,
+            minY + (row + 1) * cellSize);
+        // an inner cell the region covers is counted whole, only cells on the boundary test their points
+        boolean covered = row > row0 && row < row1 && column > column0 && column < column1
+            && prepared.covers(geometryFactory.toGeometry(cell));
+        for (int i = start; i < end; i++) {
+          if (degrees[i] < minDegree) {
+            continue;
+          }
+          double x = coords[2 * i];
+          double y = coords[2 * i + 1];
+          if (covered || envelope.contains(x, y)
+              && prepared.intersects(geometryFactory.createPoint(new Coordinate(x, y)))) {
+            count++;
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Estimates the work of counting in a region: the number of points in the cells under its envelope
+   *
+   * @param envelope
+   *          The envelope of the region
+   * @return The number of indexed points a count may test
+   */
+  int candidates(Envelope envelope) {
+    if (size == 0 || envelope.isNull()) {
+      return 0;
+    }
+    int column0 = Math.max(0, column(envelope.getMinX()));
+    int column1 = Math.min(columns - 1, column(envelope.getMaxX()));
+    int row0 = Math.max(0, row(envelope.getMinY()));
+    int row1 = Math.min(rows - 1, row(envelope.getMaxY()));
+    int count = 0;
+    for (int row = row0; row <= row1; row++) {
+      if (column0 <= column1) {
+        count += cellOffsets[row * columns + column1 + 1] - cellOffsets[row * columns + column0];
+      }
+    }
+    return count;
+  }
+
+  private int cell(double x, double y) {
+    return Math.min(rows - 1, row(y)) * columns + Math.min(columns - 1, column(x));
+  }
+
+  private int column(double x) {
+    return (int) Math.floor((x - minX) / cellSize);
+  }
+
+  private int row(double y) {
+    return (int) Math.floor((y - minY) / cellSize);
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.TopologyException;
+
+/**
+ * A service area region held as its reached edges, with the buffered polygon made only when a consumer asks for it and
+ * then kept. Counting or measuring the reached network, deriving shorter distances or passing the region to another
+ * process needs only the edges, and the buffer union is by far the dearest step of making a region.
+ *
+ * A region encodes to a few bytes per reached edge: the edge ids in increasing order as varint gaps, and the entry
+ * distance and the reach from each end of every edge as 16 bit fractions of the network distance. The origin edge goes
+ * first with its reached interval as fractions of its length. The quantum of the distances is the network distance
+ * over 65535, under a centimetre for walking distances. Reaches are rounded up and the origin interval outwards, so a
+ * decoded region covers at least the network of the original, by at most a quantum more along each edge, and an edge
+ * reached whole stays whole, the tolerance of the service area to whole edges being kept too. An encoded region can
+ * only be decoded against the network it was searched on, which is checked by the fingerprint of the graph.
+ */
+public final class LazyRegion {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(LazyRegion.class);
+  private static final int MAGIC = 0x4C5A5247;
+  private static final int VERSION = 2;
+  private static final int MAX_QUANTIZED = 0xFFFF;
+
+  private final ServiceArea serviceArea;
+  private final double bufferSize;
+  private final BufferUnion bufferUnion;
+  private final EdgeBufferCache edgeBufferCache;
+  private volatile Geometry geometry;
+
+  /**
+   * @param serviceArea
+   *          The reached edges
+   * @param bufferSize
+   *          The length to buffer the reached edges by when the polygon is made
+   * @param bufferUnion
+   *          The buffer engine, sets the precision and quadrant segments of the buffer
+   * @param edgeBufferCache
+   *          The cache of whole edge buffers to make the polygon with, or null to buffer every edge
+   */
+  public LazyRegion(ServiceArea serviceArea, double bufferSize, BufferUnion bufferUnion,
+      EdgeBufferCache edgeBufferCache) {
+    this.serviceArea = serviceArea;
+    this.bufferSize = bufferSize;
+    this.bufferUnion = bufferUnion;
+    this.edgeBufferCache = edgeBufferCache;
+  }
+
+  public ServiceArea getServiceArea() {
+    return serviceArea;
+  }
+
+  public double getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return The total length of network reached
+   */
+  public double getReachedLength() {
+    double length = 0;
+    double[] intervals = new double[6];
+    for (int i = 0; i < serviceArea.size(); i++) {
+      int count = serviceArea.reachedIntervals(i, intervals);
+      for (int j = 0; j < count; j++) {
+        length += intervals[2 * j + 1] - intervals[2 * j];
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @return True if the polygon has been made
+   */
+  public boolean isMaterialized() {
+    return geometry != null;
+  }
+
+  /**
+   * Gets the buffered polygon of the region, buffering and unioning the reached edges on first use
+   *
+   * @return The region within the buffer size of the reached edges
+   * @throws TopologyException
+   *           if the union fails, the next call tries again
+   */
+  public Geometry getGeometry() {
+    Geometry region = geometry;
+    if (region == null) {
+      synchronized (this) {
+        region = geometry;
+        if (region == null) {
+          long start = System.currentTimeMillis();
+          region = materialize();
+          geometry = region;
+          LOGGER.debug("Materialized a region of {} edges in {} ms", serviceArea.size(), System.currentTimeMillis()
+              - start);
+        }
+      }
+    }
+    return region;
+  }
+
+  private Geometry materialize() {
+    if (edgeBufferCache != null) {
+      return edgeBufferCache.buffer(serviceArea, bufferSize, bufferUnion, null);
+    }
+    GeometryFactory geometryFactory = new GeometryFactory();
+    List<Geometry> lines = new ArrayList<Geometry>();
+    for (int i = 0; i < serviceArea.size(); i++) {
+      lines.add(serviceArea.edgeGeometry(i, geometryFactory));
+    }
+    return bufferUnion.union(lines, bufferSize);
+  }
+
+  /**
+   * Makes the region feature of a point, as {@link NetworkBufferBatch#createBuffers()} would
+   *
+   * @param point
+   *          The point the region was searched from, its attributes are copied to the feature
+   * @return The region feature, or null if the union fails
+   */
+  public SimpleFeature toFeature(SimpleFeature point) {
+    try {
+      return NetworkBuffer.buildFeatureFromGeometry(point, getGeometry(), String.valueOf(point.getID()));
+    } catch (TopologyException e) {
+      LOGGER.error("Failed to create buffer from network: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Encodes the reached edges of the region. The polygon is never encoded, a decoded region makes its own.
+   *
+   * @return The encoded region
+   */
+  public byte[] encode() {
+    NetworkGraph graph = serviceArea.getGraph();
+    NetworkLocation origin = serviceArea.getOrigin();
+    double limit = serviceArea.getLimit();
+    int n = serviceArea.size();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 8 * n);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(graph.fingerprint());
+      out.writeDouble(limit);
+      out.writeDouble(bufferSize);
+      out.writeDouble(serviceArea.getTolerance());
+      out.writeDouble(origin.getOffset());
+      out.writeDouble(origin.getX());
+      out.writeDouble(origin.getY());
+      out.writeDouble(origin.getSnapDistance());
+      ReachTable.writeVarint(bytes, origin.getEdge());
+      // the interval reached from the origin itself, then the reach along the origin edge from its end nodes
+      double originLength = graph.edgeLength(origin.getEdge());
+      out.writeShort(quantizeDown(serviceArea.originStart(), originLength));
+      out.writeShort(quantizeUp(serviceArea.originEnd(), originLength));
+      out.writeShort(quantizeUp(serviceArea.headReach(0), limit));
+      out.writeShort(quantizeUp(serviceArea.tailReach(0), limit));
+
+      // the other edges in increasing order of id, so the gaps between ids are small
+      long[] order = new long[n - 1];
+      for (int i = 1; i < n; i++) {
+        order[i - 1] = ((long) serviceArea.edge(i) << 32) | i;
+      }
+      Arrays.sort(order);
+      ReachTable.writeVarint(bytes, n - 1);
+      int previous = 0;
+      for (long key : order) {
+        int i = (int) key;
+        int edge = serviceArea.edge(i);
+        ReachTable.writeVarint(bytes, edge - previous);
+        previous = edge;
+        out.writeShort(quantize(serviceArea.entryDistance(i), limit));
+        out.writeShort(quantizeUp(serviceArea.headReach(i), limit));
+        out.writeShort(quantizeUp(serviceArea.tailReach(i), limit));
+      }
+      out.flush();
+    } catch (IOException e) {
+      // a byte array stream does not fail
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a region encoded by {@link #encode()}. Distances come back to within the quantum of the encoding, so the
+   * polygon of a decoded region may reach further than that of the original by as much.
+   *
+   * @param encoded
+   *          The encoded region
+   * @param graph
+   *          The graph of the network the region was searched on
+   * @param bufferUnion
+   *          The buffer engine to make the polygon with
+   * @param edgeBufferCache
+   *          The cache of whole edge buffers to make the polygon with, or null to buffer every edge
+   * @return The region, with no polygon made
+   * @throws IllegalArgumentException
+   *           if the bytes are not an encoded region or were encoded against a different network
+   */
+  public static LazyRegion decode(byte[] encoded, NetworkGraph graph, BufferUnion bufferUnion,
+      EdgeBufferCache edgeBufferCache) {
+    ByteBuffer in = ByteBuffer.wrap(encoded);
+    try {
+      if (in.getInt() != MAGIC || in.get() != VERSION) {
+        throw new IllegalArgumentException("Not an encoded region");
+      }
+      if (in.getLong() != graph.fingerprint()) {
+        throw new IllegalArgumentException("Region was encoded against a different network");
+      }
+      double limit = in.getDouble();
+      double bufferSize = in.getDouble();
+      double tolerance = in.getDouble();
+      double offset = in.getDouble();
+      double x = in.getDouble();
+      double y = in.getDouble();
+      double snapDistance = in.getDouble();
+      int originEdge = ReachTable.readVarint(in);
+      if (originEdge >= graph.edgeCount()) {
+        throw new IllegalArgumentException("Region origin edge " + originEdge + " is not in the network");
+      }
+      NetworkLocation origin = new NetworkLocation(originEdge, offset, x, y, snapDistance);
+      double originLength = graph.edgeLength(originEdge);
+      double originStart = Math.min(dequantize(in.getShort(), originLength), offset);
+      double originEnd = Math.max(dequantize(in.getShort(), originLength), offset);
+      double originHead = dequantize(in.getShort(), limit);
+      double originTail = dequantize(in.getShort(), limit);
+
+      int n = ReachTable.readVarint(in) + 1;
+      int[] edges = new int[n];
+      double[] entry = new double[n];
+      double[] headReach = new double[n];
+      double[] tailReach = new double[n];
+      edges[0] = originEdge;
+      headReach[0] = originHead;
+      tailReach[0] = originTail;
+      int edge = 0;
+      for (int i = 1; i < n; i++) {
+        edge += ReachTable.readVarint(in);
+        if (edge >= graph.edgeCount()) {
+          throw new IllegalArgumentException("Region edge " + edge + " is not in the network");
+        }
+        edges[i] = edge;
+        entry[i] = dequantize(in.getShort(), limit);
+        headReach[i] = dequantize(in.getShort(), limit);
+        tailReach[i] = dequantize(in.getShort(), limit);
+      }
+      ServiceArea serviceArea = new ServiceArea(graph, origin, limit, edges, entry, headReach, tailReach,
+          originStart, originEnd, tolerance);
+      return new LazyRegion(serviceArea, bufferSize, bufferUnion, edgeBufferCache);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Encoded region is truncated", e);
+    }
+  }
+
+  // a value from 0 to scale as a 16 bit fraction of scale
+  private static int quantize(double value, double scale) {
+    if (scale <= 0) {
+      return 0;
+    }
+    return (int) Math.round(Math.max(0, Math.min(value, scale)) / scale * MAX_QUANTIZED);
+  }
+
+  // as quantize, rounding up so that the decoded value is never less than value
+  private static int quantizeUp(double value, double scale) {
+    if (scale <= 0) {
+      return 0;
+    }
+    return (int) Math.ceil(Math.max(0, Math.min(value, scale)) / scale * MAX_QUANTIZED);
+  }
+
+  // as quantize, rounding down so that the decoded value is never more than value
+  private static int quantizeDown(double value, double scale) {
+    if (scale <= 0) {
+      return 0;
+    }
+    return (int) Math.floor(Math.max(0, Math.min(value, scale)) / scale * MAX_QUANTIZED);
+  }
+
+  private static double dequantize(short quantized, double scale) {
+    return (quantized & MAX_QUANTIZED) * scale / MAX_QUANTIZED;
+  }
+
+  @Override
+  public String toString() {
+    return "LazyRegion[edges=" + serviceArea.size() + ", limit=" + serviceArea.getLimit() + ", materialized="
+        + isMaterialized() + "]";
+  }
+}
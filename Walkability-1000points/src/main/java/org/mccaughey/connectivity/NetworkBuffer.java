@@ -20,10 +20,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -49,15 +47,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.geom.PrecisionModel;
-import com.vividsolutions.jts.index.SpatialIndex;
-import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.geom.TopologyException;
 import com.vividsolutions.jts.linearref.LinearLocation;
 import com.vividsolutions.jts.linearref.LocationIndexedLine;
 
@@ -72,6 +68,7 @@ public final class NetworkBuffer {
   private static final int INTERSECTION_THRESHOLD = 3;
   static final Logger LOGGER = LoggerFactory.getLogger(NetworkBuffer.class);
   private static PrecisionModel precision = new PrecisionModel(GEOMETRY_PRECISION);
+  private static final BufferUnion BUFFER_UNION = new BufferUnion();
 
   private NetworkBuffer() {
   }
@@ -90,6 +87,188 @@ public final class NetworkBuffer {
    */
   public static Map findServiceArea(SimpleFeatureSource network, SimpleFeature pointFeature, Double networkDistance,
       Double bufferDistance) throws IOException {
+    return findServiceArea(network, pointFeature, networkDistance, bufferDistance, SearchMode.PATH_ENUMERATION);
+  }
+
+  /**
+   * @param network
+   *          A network (eg roads) dataset
+   * @param pointFeature
+   *          A point of interest used as a starting point
+   * @param networkDistance
+   *          The distance to traverse along the network
+   * @param bufferDistance
+   *          The distance to buffer the network to create the final region
+   * @param searchMode
+   *          The graph traversal used to find the service area
+   * @return A network of all paths of networkDistance from the starting point (snapped to the network)
+   * @throws IOException
+   */
+  public static Map findServiceArea(SimpleFeatureSource network, SimpleFeature pointFeature, Double networkDistance,
+      Double bufferDistance, SearchMode searchMode) throws IOException {
+    return findServiceArea(network, pointFeature, networkDistance, bufferDistance, searchMode, null);
+  }
+
+  /**
+   * @param network
+   *          A network (eg roads) dataset
+   * @param pointFeature
+   *          A point of interest used as a starting point
+   * @param networkDistance
+   *          The distance to traverse along the network
+   * @param bufferDistance
+   *          The distance to buffer the network to create the final region
+   * @param searchMode
+   *          The graph traversal used to find the service area
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return A network of all paths of networkDistance from the starting point (snapped to the network), or the part of
+   *         it found before the budget ran out
+   * @throws IOException
+   */
+  public static Map findServiceArea(SimpleFeatureSource network, SimpleFeature pointFeature, Double networkDistance,
+      Double bufferDistance, SearchMode searchMode, PointBudget.Meter meter) throws IOException {
+    if (searchMode == SearchMode.PATH_ENUMERATION) {
+      return findServiceAreaByPaths(network, pointFeature, networkDistance, bufferDistance, meter);
+    }
+    return findReachedEdges(network, pointFeature, networkDistance, bufferDistance, searchMode, meter)
+        .toEdgeFeatures();
+  }
+
+  /**
+   * Finds the service area of a point using the shared network graph
+   *
+   * @param network
+   *          A network (eg roads) dataset
+   * @param pointFeature
+   *          A point of interest used as a starting point
+   * @param networkDistance
+   *          The distance to traverse along the network
+   * @param bufferDistance
+   *          The distance to buffer the network to create the final region
+   * @param searchMode
+   *          The graph traversal used to find the service area, must not be PATH_ENUMERATION
+   * @return The edges reachable within networkDistance from the starting point (snapped to the network)
+   * @throws IOException
+   */
+  public static ServiceArea findReachedEdges(SimpleFeatureSource network, SimpleFeature pointFeature,
+      Double networkDistance, Double bufferDistance, SearchMode searchMode) throws IOException {
+    return findReachedEdges(network, pointFeature, networkDistance, bufferDistance, searchMode, null);
+  }
+
+  /**
+   * Finds the service area of a point using the shared network graph, charging the search to a point budget
+   *
+   * @param network
+   *          A network (eg roads) dataset
+   * @param pointFeature
+   *          A point of interest used as a starting point
+   * @param networkDistance
+   *          The distance to traverse along the network
+   * @param bufferDistance
+   *          The distance to buffer the network to create the final region
+   * @param searchMode
+   *          The graph traversal used to find the service area, must not be PATH_ENUMERATION
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The edges reachable within networkDistance from the starting point (snapped to the network), or the part
+   *         of them found before the budget ran out
+   * @throws IOException
+   */
+  public static ServiceArea findReachedEdges(SimpleFeatureSource network, SimpleFeature pointFeature,
+      Double networkDistance, Double bufferDistance, SearchMode searchMode, PointBudget.Meter meter)
+      throws IOException {
+    LOGGER.debug("Finding service area for point {}. Network distance: {}, Buffer distance {}", new Object[] {
+        pointFeature.getID(), networkDistance, bufferDistance });
+
+    NetworkGraph graph = NetworkGraph.forSource(network);
+    NetworkLocation origin = snapToNetwork(graph, pointFeature, networkDistance + bufferDistance);
+    ServiceArea serviceArea = findReachedEdges(graph, origin, networkDistance, searchMode, meter);
+    LOGGER.debug("Found service area for point {} with {} Edges", pointFeature.getID(), serviceArea.size());
+    return serviceArea;
+  }
+
+  /**
+   * Snaps a point to the network graph
+   * 
+   * @param graph
+   *          The network graph
+   * @param pointFeature
+   *          A point of interest
+   * @param maxDistance
+   *          The furthest the point may be from the network
+   * @return The closest network location
+   * @throws IllegalArgumentException
+   *           if there is no edge within maxDistance
+   */
+  static NetworkLocation snapToNetwork(NetworkGraph graph, SimpleFeature pointFeature, double maxDistance) {
+    Point pointOfInterest = (Point) pointFeature.getDefaultGeometry();
+    NetworkLocation origin = graph.locate(pointOfInterest.getX(), pointOfInterest.getY(), maxDistance);
+    LOGGER.debug("Found nearest network location {}", origin);
+    if (origin == null) {
+      LOGGER.error("Failed to snap point {},{} to network", pointFeature.getID(), pointFeature
+          .getDefaultGeometryProperty().toString());
+      throw new IllegalArgumentException("Failed to snap point to network: " + pointFeature.getID());
+    }
+    return origin;
+  }
+
+  /**
+   * Finds the edges reachable from a snapped origin with one of the network graph searches
+   */
+  static ServiceArea findReachedEdges(NetworkGraph graph, NetworkLocation origin, double networkDistance,
+      SearchMode searchMode) {
+    return findReachedEdges(graph, origin, networkDistance, searchMode, null);
+  }
+
+  /**
+   * Finds the edges reachable from a snapped origin with one of the network graph searches, charging the search to a
+   * point budget. The reach table and contraction hierarchy lookups do a small, bounded amount of work and are not
+   * metered.
+   */
+  static ServiceArea findReachedEdges(NetworkGraph graph, NetworkLocation origin, double networkDistance,
+      SearchMode searchMode, PointBudget.Meter meter) {
+    switch (searchMode) {
+      case DIJKSTRA:
+        return NetworkBufferDijkstra.findServiceArea(graph, origin, networkDistance, meter);
+      case DELTA_STEPPING:
+        return NetworkBufferDeltaStepping.findServiceArea(graph, origin, networkDistance,
+            NetworkBufferDeltaStepping.DEFAULT_DELTA, meter);
+      case REACH_TABLE:
+        ReachTable table = graph.getReachTable();
+        if (table != null && networkDistance <= table.getRadius()) {
+          return table.findServiceArea(graph, origin, networkDistance);
+        }
+        LOGGER.debug("No reach table within {} for the network, searching instead", networkDistance);
+        return NetworkBufferDijkstra.findServiceArea(graph, origin, networkDistance, meter);
+      case CONTRACTION_HIERARCHY:
+        return graph.getContractionHierarchy().findServiceArea(origin, networkDistance);
+      default:
+        throw new IllegalArgumentException("Search mode does not use the network graph: " + searchMode);
+    }
+  }
+
+  /**
+   * Finds the edges reachable from a snapped origin at several network distances with one search to the longest of
+   * them, the service areas of the shorter distances derived with {@link ServiceArea#within(double)}
+   *
+   * @param distances
+   *          The network distances, in increasing order and without repeats, see
+   *          {@link NetworkBufferBatch#sortedDistances(Collection)}
+   * @return The service area at each distance
+   */
+  static ServiceArea[] findReachedEdges(NetworkGraph graph, NetworkLocation origin, double[] distances,
+      SearchMode searchMode, PointBudget.Meter meter) {
+    ServiceArea longest = findReachedEdges(graph, origin, distances[distances.length - 1], searchMode, meter);
+    ServiceArea[] serviceAreas = new ServiceArea[distances.length];
+    for (int i = 0; i < distances.length; i++) {
+      serviceAreas[i] = longest.within(distances[i]);
+    }
+    return serviceAreas;
+  }
+
+  private static Map findServiceAreaByPaths(SimpleFeatureSource network, SimpleFeature pointFeature,
+      Double networkDistance, Double bufferDistance, PointBudget.Meter meter) throws IOException {
 
     LOGGER.debug("Finding service area for point {}. Network distance: {}, Buffer distance {}", new Object[] {
         pointFeature.getID(), networkDistance, bufferDistance });
@@ -97,8 +276,7 @@ public final class NetworkBuffer {
     Point pointOfInterest = (Point) pointFeature.getDefaultGeometry();
     Geometry pointBuffer = pointOfInterest.buffer(networkDistance + bufferDistance);
     SimpleFeatureCollection networkRegion = featuresInRegion(network, pointBuffer);
-    LocationIndexedLine nearestLine = findNearestEdgeLine(networkRegion, networkDistance, bufferDistance,
-        pointOfInterest);
+    LocationIndexedLine nearestLine = findNearestEdgeLine(network, networkDistance, bufferDistance, pointOfInterest);
     LOGGER.debug("Found nearest edge line {}", nearestLine);
     if (nearestLine == null) {
       LOGGER.error("Failed to snap point {},{} to network", pointFeature.getID(), pointFeature
@@ -111,7 +289,7 @@ public final class NetworkBuffer {
     LOGGER.debug("Created graph with start node with {} edges", networkGraph.getEdges().size());
     Map networkMap = graphToMap(networkGraph);
     Map serviceArea = new ConcurrentHashMap();
-    NetworkBufferFJ nbfj = new NetworkBufferFJ(networkMap, startPath, networkDistance, serviceArea);
+    NetworkBufferFJ nbfj = new NetworkBufferFJ(networkMap, startPath, networkDistance, serviceArea, meter);
     serviceArea = nbfj.createBuffer();
     LOGGER.debug("Found service area for point {} with {} Edges", pointFeature.getID(), serviceArea.size());
     return serviceArea;
@@ -247,69 +425,17 @@ public final class NetworkBuffer {
     return networkMap;
   }
 
-  private static LocationIndexedLine findNearestEdgeLine(SimpleFeatureCollection network, Double roadDistance,
+  private static LocationIndexedLine findNearestEdgeLine(SimpleFeatureSource network, Double roadDistance,
       Double bufferDistance, Point pointOfInterest) throws IOException {
-    // Build network Graph - within bounds
-    Double maxDistance = roadDistance + bufferDistance;
-    SpatialIndex index = createLineStringIndex(network);
-
+    // snap with the index shared by every query on this network rather than indexing the region for each point
+    NetworkGraph graph = NetworkGraph.forSource(network);
     Coordinate pt = pointOfInterest.getCoordinate();
-    Envelope search = new Envelope(pt);
-    search.expandBy(maxDistance);
-
-    /*
-     * Query the spatial index for objects within the search envelope. Note that this just compares the point envelope
-     * to the line envelopes so it is possible that the point is actually more distant than MAX_SEARCH_DISTANCE from a
-     * line.
-     */
-    List<LocationIndexedLine> lines = index.query(search);
-
-    // Initialize the minimum distance found to our maximum acceptable
-    double minDist = maxDistance;
-    Coordinate minDistPoint = null;
-    LocationIndexedLine connectedLine = null;
-
-    for (LocationIndexedLine line : lines) {
-
-      LinearLocation here = line.project(pt);
-      Coordinate point = line.extractPoint(here);
-      double dist = point.distance(pt);
-      if (dist <= minDist) {
-        minDist = dist;
-        minDistPoint = point;
-        connectedLine = line;
-      }
+    NetworkLocation location = graph.getSnapIndex().nearest(pt.x, pt.y, roadDistance + bufferDistance);
+    if (location == null) {
+      return null;
     }
-
-    if (minDistPoint != null) {
-      LOGGER.debug("{} - snapped by moving {}\n", pt.toString(), minDist);
-      return connectedLine;
-    }
-    return null;
-  }
-
-  private static SpatialIndex createLineStringIndex(SimpleFeatureCollection network) throws IOException {
-    SpatialIndex index = new STRtree();
-
-    // Create line string index
-    // Just in case: check for null or empty geometry
-    SimpleFeatureIterator features = network.features();
-    try {
-      while (features.hasNext()) {
-        SimpleFeature feature = features.next();
-        Geometry geom = (Geometry) (feature.getDefaultGeometry());
-        if (geom != null) {
-          Envelope env = geom.getEnvelopeInternal();
-          if (!env.isNull()) {
-            index.insert(env, new LocationIndexedLine(geom));
-          }
-        }
-      }
-    } finally {
-      features.close();
-    }
-
-    return index;
+    LOGGER.debug("{} - snapped by moving {}\n", pt.toString(), location.getSnapDistance());
+    return new LocationIndexedLine(graph.edgeGeometry(location.getEdge(), new GeometryFactory(precision)));
   }
 
   /**
@@ -324,58 +450,133 @@ public final class NetworkBuffer {
    */
   public static SimpleFeature createBufferFromEdges(Map serviceArea, Double distance, SimpleFeature sourceFeature,
       String id) {
-    LOGGER.debug("Creating Buffer {}", id);
-    Set<Edge> edges = serviceArea.keySet();
-    Geometry all = null;
-    while (edges.size() > 0) {
-
-      Set<Edge> unjoined = new HashSet();
-      for (Edge edge : edges) {
-
-        Geometry geom = (Geometry) ((SimpleFeature) serviceArea.get(edge)).getDefaultGeometry();
+    return createBufferFromEdges(serviceArea, distance, sourceFeature, id, BUFFER_UNION);
+  }
 
-        geom = geom.union();
+  /**
+   * Generates a buffered service area from a set of network edges
+   * 
+   * @param serviceArea
+   *          The set of service area edges
+   * @param distance
+   *          the distance to buffer
+   * @param bufferUnion
+   *          The buffer engine, sets the precision and quadrant segments of the buffer
+   * @return A buffered service area
+   */
+  public static SimpleFeature createBufferFromEdges(Map serviceArea, Double distance, SimpleFeature sourceFeature,
+      String id, BufferUnion bufferUnion) {
+    return createBufferFromEdges(serviceArea, distance, sourceFeature, id, bufferUnion, null);
+  }
 
-        double bufferDistance = distance;
+  /**
+   * Generates a buffered service area from a set of network edges, charging the unions to a point budget
+   * 
+   * @param serviceArea
+   *          The set of service area edges
+   * @param distance
+   *          the distance to buffer
+   * @param bufferUnion
+   *          The buffer engine, sets the precision and quadrant segments of the buffer
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return A buffered service area
+   * @throws BudgetExceededException
+   *           if the point goes over budget
+   */
+  public static SimpleFeature createBufferFromEdges(Map serviceArea, Double distance, SimpleFeature sourceFeature,
+      String id, BufferUnion bufferUnion, PointBudget.Meter meter) {
+    LOGGER.debug("Creating Buffer {}", id);
+    // values are edge features whatever the search mode
+    List<Geometry> lines = new ArrayList<Geometry>();
+    for (Object edgeFeature : serviceArea.values()) {
+      lines.add((Geometry) ((SimpleFeature) edgeFeature).getDefaultGeometry());
+    }
+    try {
+      Geometry all = bufferUnion.union(lines, distance, meter);
+      return buildFeatureFromGeometry(sourceFeature, all, id);
+    } catch (TopologyException e) {
+      LOGGER.error("Failed to create buffer from network: " + e.getMessage());
+      return null;
+    }
+  }
 
-        geom = geom.buffer(bufferDistance);
+  /**
+   * Generates a buffered service area from the edges reached by a graph search, taking the buffers of the whole edges
+   * from a cache so only the chopped edges are buffered
+   * 
+   * @param serviceArea
+   *          The reached edges
+   * @param distance
+   *          the distance to buffer
+   * @param bufferUnion
+   *          The buffer engine, sets the precision and quadrant segments of the buffer
+   * @param edgeBufferCache
+   *          The cache of whole edge buffers
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return A buffered service area
+   * @throws BudgetExceededException
+   *           if the point goes over budget
+   */
+  public static SimpleFeature createBufferFromServiceArea(ServiceArea serviceArea, Double distance,
+      SimpleFeature sourceFeature, String id, BufferUnion bufferUnion, EdgeBufferCache edgeBufferCache,
+      PointBudget.Meter meter) {
+    LOGGER.debug("Creating Buffer {} with cached edge buffers", id);
+    try {
+      Geometry all = edgeBufferCache.buffer(serviceArea, distance, bufferUnion, meter);
+      return buildFeatureFromGeometry(sourceFeature, all, id);
+    } catch (TopologyException e) {
+      LOGGER.error("Failed to create buffer from network: " + e.getMessage());
+      return null;
+    }
+  }
 
-        try {
-          if (all != null) {
-            all = all.union().union();
-          }
-          if (all == null) {
-            all = geom;
-          } else if (!(all.covers(geom))) {
-            if (all.intersects(geom)) {
-              all = all.union(geom);
-            } else {
-              unjoined.add(edge);
-            }
-          }
-        } catch (Exception e) {
-          if (e.getMessage().contains("non-noded")) {
-            LOGGER.debug(e.getMessage());
-          } else {
-            LOGGER.error("Failed to create buffer from network: " + e.getMessage());
-            return null;
-          }
-        }
-      }
-      if (unjoined.size() < edges.size()) {
-        edges = unjoined;
-      } else {
-        // FIXME: if this happens it means buffering has
-        // repeatedly failed for unjoined edges -> should throw
-        // an exception
-        break;
-      }
-      LOGGER.debug("unjoined edges {}", edges.size());
+  /**
+   * Generates an approximate service area from a set of network edges on a grid, much faster than buffering for large
+   * numbers of service areas
+   * 
+   * @param serviceArea
+   *          The set of service area edges
+   * @param distance
+   *          the distance to buffer
+   * @param cellSize
+   *          The width of the grid cells
+   * @return A service area region, with the area error bound against the buffered region in its
+   *         {@link RasterRegion#AREA_ERROR_BOUND_ATTRIBUTE} attribute and in its user data under
+   *         {@link RasterRegion#AREA_ERROR_BOUND}
+   */
+  public static SimpleFeature createRasterRegionFromEdges(Map serviceArea, Double distance, Double cellSize,
+      SimpleFeature sourceFeature, String id) {
+    LOGGER.debug("Creating raster region {}", id);
+    List<Geometry> lines = new ArrayList<Geometry>();
+    for (Object edgeFeature : serviceArea.values()) {
+      lines.add((Geometry) ((SimpleFeature) edgeFeature).getDefaultGeometry());
     }
-    return buildFeatureFromGeometry(sourceFeature, all, id);
+    RasterRegion region = RasterRegion.create(lines, distance, cellSize, new GeometryFactory());
+    LOGGER.debug("Raster region {} area {}, error bound {}", new Object[] { id, region.getGeometry().getArea(),
+        region.getAreaErrorBound() });
+    SimpleFeature feature = buildFeatureFromGeometry(sourceFeature, region.getGeometry(), id);
+    feature.getUserData().put(RasterRegion.AREA_ERROR_BOUND, region.getAreaErrorBound());
+    return addAttribute(feature, RasterRegion.AREA_ERROR_BOUND_ATTRIBUTE, Double.class, region.getAreaErrorBound());
+  }
+
+  /**
+   * Copies a feature with one more attribute after the others, keeping its user data
+   */
+  static SimpleFeature addAttribute(SimpleFeature feature, String name, Class<?> binding, Object value) {
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.init(feature.getType());
+    stb.add(name, binding);
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(stb.buildFeatureType());
+    sfb.addAll(feature.getAttributes());
+    sfb.add(value);
+    SimpleFeature copy = sfb.buildFeature(feature.getID());
+    copy.getUserData().putAll(feature.getUserData());
+    return copy;
   }
 
-  private static SimpleFeature buildFeatureFromGeometry(SimpleFeature sourceFeature, Geometry geom, String id) {
+  static SimpleFeature buildFeatureFromGeometry(SimpleFeature sourceFeature, Geometry geom, String id) {
     SimpleFeatureType sft = sourceFeature.getType();
     SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
     stb.init(sft);
@@ -403,11 +604,10 @@ public final class NetworkBuffer {
    * @return The edges as SimpleFeature
    */
   public static List<SimpleFeature> createLinesFromEdges(Map serviceArea) {
-    Set<Edge> edges = serviceArea.keySet();
     List<SimpleFeature> features = new ArrayList();
 
-    for (Edge edge : edges) {
-      features.add((SimpleFeature) serviceArea.get(edge));
+    for (Object edgeFeature : serviceArea.values()) {
+      features.add((SimpleFeature) edgeFeature);
     }
     return features;
   }
@@ -424,17 +624,52 @@ public final class NetworkBuffer {
    * @return The Convex Hull buffered service area
    */
   public static SimpleFeature createConvexHullFromEdges(Map serviceArea, Double distance, SimpleFeatureType type) {
-    Set<Edge> edges = serviceArea.keySet();
+    return buildFeatureFromGeometry(type, convexHull(serviceArea, distance));
+  }
+
+  /**
+   * Creates a convex hull buffer of service area
+   * 
+   * @param serviceArea
+   *          The set of edges
+   * @param distance
+   *          The distance to buffer the service area
+   * @return The Convex Hull buffered service area, with the attributes of sourceFeature
+   */
+  public static SimpleFeature createConvexHullFromEdges(Map serviceArea, Double distance,
+      SimpleFeature sourceFeature, String id) {
+    return buildFeatureFromGeometry(sourceFeature, convexHull(serviceArea, distance), id);
+  }
+
+  private static Geometry convexHull(Map serviceArea, Double distance) {
     GeometryCollector gc = new GeometryCollector();
-    List<Coordinate> coords = new ArrayList();
-    for (Edge edge : edges) {
-      Geometry geom = (Geometry) serviceArea.get(edge);
-      gc.add(geom);
-      Coordinate coordinate = geom.getCoordinate();
-      coords.add(coordinate);
+    for (Object edgeFeature : serviceArea.values()) {
+      gc.add((Geometry) ((SimpleFeature) edgeFeature).getDefaultGeometry());
+    }
+    return gc.collect().convexHull().buffer(distance);
+  }
+
+  /**
+   * Creates a concave hull buffer of service area, a much cheaper region than buffering every edge that follows the
+   * network far more closely than the convex hull
+   * 
+   * @param serviceArea
+   *          The set of edges
+   * @param distance
+   *          The distance to buffer the service area
+   * @param maxEdgeLength
+   *          The tightness of the hull, the longest gap between edge vertices that is filled in
+   * @return The Concave Hull buffered service area, with the attributes of sourceFeature
+   */
+  public static SimpleFeature createConcaveHullFromEdges(Map serviceArea, Double distance, Double maxEdgeLength,
+      SimpleFeature sourceFeature, String id) {
+    LOGGER.debug("Creating concave hull {}", id);
+    List<Geometry> lines = new ArrayList<Geometry>();
+    for (Object edgeFeature : serviceArea.values()) {
+      lines.add((Geometry) ((SimpleFeature) edgeFeature).getDefaultGeometry());
     }
-    Geometry bufferedConvexHull = gc.collect().convexHull().buffer(distance);
-    return buildFeatureFromGeometry(type, bufferedConvexHull);
+    Geometry hull = ConcaveHull.create(lines, distance, maxEdgeLength, new GeometryFactory());
+    return buildFeatureFromGeometry(sourceFeature, hull, id);
   }
 
   private static SimpleFeature buildFeatureFromGeometry(SimpleFeatureType featureType, Geometry geom) {
@@ -445,7 +680,7 @@ public final class NetworkBuffer {
     return sfb.buildFeature(null);
   }
 
-  private static SimpleFeatureCollection featuresInRegion(SimpleFeatureSource featureSource, Geometry roi)
+  static SimpleFeatureCollection featuresInRegion(SimpleFeatureSource featureSource, Geometry roi)
       throws IOException {
     // Construct a filter which first filters within the bbox of roi and
     // then filters with intersections of roi
@@ -0,0 +1,370 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A parallel network service area generator using delta-stepping. Nodes are kept in buckets of width delta by
+ * tentative distance, and all the edges leaving the nodes of the current bucket are relaxed in parallel on a shared
+ * ForkJoinPool, with lock free atomic minimum updates of the node distances. This lets a single large service area
+ * (long cycling distances, dense networks) use every available processor.
+ */
+public final class NetworkBufferDeltaStepping {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkBufferDeltaStepping.class);
+  /**
+   * The default bucket width, roughly a city block
+   */
+  public static final double DEFAULT_DELTA = 100.0;
+  // frontiers smaller than this are relaxed on the calling thread, splitting stops at this size
+  private static final int SPLIT_THRESHOLD = 512;
+  private static final long INFINITY = Double.doubleToLongBits(Double.POSITIVE_INFINITY);
+  private static final ThreadLocal<State> STATES = new ThreadLocal<State>();
+  private static ForkJoinPool pool;
+
+  private NetworkBufferDeltaStepping() {
+  }
+
+  /**
+   * Finds the service area of an origin on the network with the default bucket width
+   *
+   * @param graph
+   *          The network graph
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @return The edges reachable within distance of the origin
+   */
+  public static ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance) {
+    return findServiceArea(graph, origin, distance, DEFAULT_DELTA);
+  }
+
+  /**
+   * Finds the service area of an origin on the network
+   *
+   * @param graph
+   *          The network graph
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @param delta
+   *          The bucket width, smaller buckets do less redundant work but have less parallelism
+   * @return The edges reachable within distance of the origin
+   */
+  public static ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance, double delta) {
+    return findServiceArea(graph, origin, distance, delta, null);
+  }
+
+  /**
+   * Finds the service area of an origin on the network, stopping between phases if the point goes over its budget
+   *
+   * @param graph
+   *          The network graph
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @param delta
+   *          The bucket width, smaller buckets do less redundant work but have less parallelism
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The edges reachable within distance of the origin, or the part of them found before the budget ran out
+   */
+  public static ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance, double delta,
+      PointBudget.Meter meter) {
+    State state = STATES.get();
+    if (state == null || state.graph != graph) {
+      state = new State(graph);
+      STATES.set(state);
+    }
+    SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+    StartOverlay overlay = new StartOverlay(graph, origin);
+    try {
+      state.search(overlay, distance, delta, meter);
+      for (int i = 0; i < state.reachedCount; i++) {
+        int node = state.reached[i];
+        workspace.setDistance(node, Double.longBitsToDouble(state.distance.get(node)));
+      }
+      return ServiceArea.collect(workspace, overlay, distance);
+    } finally {
+      state.reset();
+      workspace.reset();
+    }
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      int nThreads = Runtime.getRuntime().availableProcessors();
+      LOGGER.debug("Initialising ForkJoinPool with {}", nThreads);
+      pool = new ForkJoinPool(nThreads);
+    }
+    return pool;
+  }
+
+  /**
+   * The search state of one calling thread. The distances are shared with the relaxing tasks, everything else is only
+   * touched by the calling thread between parallel phases.
+   */
+  private static final class State {
+    private final NetworkGraph graph;
+    private final AtomicLongArray distance;
+    // the phase in which each node was last queued, to queue each node at most once per phase
+    private final int[] queuedPhase;
+    private final boolean[] isReached;
+    private int[] reached = new int[256];
+    private int reachedCount;
+    private int phase;
+    private IntList[] buckets = new IntList[0];
+
+    State(NetworkGraph graph) {
+      this.graph = graph;
+      int nodeCount = StartOverlay.nodeCount(graph);
+      distance = new AtomicLongArray(nodeCount);
+      for (int i = 0; i < nodeCount; i++) {
+        distance.set(i, INFINITY);
+      }
+      queuedPhase = new int[nodeCount];
+      isReached = new boolean[nodeCount];
+    }
+
+    // a search stopped by the meter leaves queued nodes at distances no shorter than their true ones
+    void search(StartOverlay overlay, double limit, double delta, PointBudget.Meter meter) {
+      int bucketCount = (int) Math.floor(limit / delta) + 1;
+      if (buckets.length < bucketCount) {
+        buckets = Arrays.copyOf(buckets, bucketCount);
+      }
+      for (int b = 0; b < bucketCount; b++) {
+        if (buckets[b] == null) {
+          buckets[b] = new IntList();
+        }
+        buckets[b].clear();
+      }
+      phase++;
+      distance.set(overlay.node, Double.doubleToLongBits(0));
+      queue(overlay.node, delta);
+
+      IntList frontier = new IntList();
+      for (int b = 0; b < bucketCount; b++) {
+        while (buckets[b].size() > 0) {
+          // take the nodes whose distance still falls in this bucket, later improvements move nodes to lower buckets
+          frontier.clear();
+          IntList bucket = buckets[b];
+          for (int i = 0; i < bucket.size(); i++) {
+            int node = bucket.get(i);
+            if (bucketOf(node, delta) == b) {
+              frontier.add(node);
+            }
+          }
+          bucket.clear();
+          phase++;
+          if (frontier.size() == 0) {
+            break;
+          }
+          if (meter != null && !meter.chargeEdges(arcCount(frontier))) {
+            LOGGER.debug("Search over budget after {} edges: {}", meter.getEdges(), meter.getReason());
+            return;
+          }
+          Relaxation improved = new Relaxation(overlay, distance, frontier.values(), 0, frontier.size(), limit);
+          if (frontier.size() <= SPLIT_THRESHOLD) {
+            improved.compute();
+          } else {
+            getPool().invoke(improved);
+          }
+          for (Relaxation.Improved list = improved.result; list != null; list = list.next) {
+            for (int i = 0; i < list.count; i++) {
+              queue(list.nodes[i], delta);
+            }
+          }
+        }
+      }
+    }
+
+    private int arcCount(IntList frontier) {
+      int count = 0;
+      for (int i = 0; i < frontier.size(); i++) {
+        int node = frontier.get(i);
+        count += node < graph.nodeCount() ? graph.arcEnd(node) - graph.arcStart(node) : 2;
+      }
+      return count;
+    }
+
+    private int bucketOf(int node, double delta) {
+      return (int) Math.floor(Double.longBitsToDouble(distance.get(node)) / delta);
+    }
+
+    private void queue(int node, double delta) {
+      if (!isReached[node]) {
+        isReached[node] = true;
+        if (reachedCount == reached.length) {
+          reached = Arrays.copyOf(reached, reachedCount * 2);
+        }
+        reached[reachedCount++] = node;
+      }
+      if (queuedPhase[node] != phase) {
+        queuedPhase[node] = phase;
+        buckets[bucketOf(node, delta)].add(node);
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < reachedCount; i++) {
+        distance.set(reached[i], INFINITY);
+        isReached[reached[i]] = false;
+      }
+      reachedCount = 0;
+    }
+  }
+
+  /**
+   * Relaxes the edges leaving a range of frontier nodes, bisecting the range until it is small enough. Returns the
+   * nodes whose distance was lowered, as a chain of per task lists.
+   */
+  private static final class Relaxation extends RecursiveTask<Relaxation> {
+    private static final long serialVersionUID = 1L;
+    private final transient StartOverlay overlay;
+    private final AtomicLongArray distance;
+    private final int[] frontier;
+    private final int from;
+    private final int to;
+    private final double limit;
+    private transient Improved result;
+
+    Relaxation(StartOverlay overlay, AtomicLongArray distance, int[] frontier, int from, int to, double limit) {
+      this.overlay = overlay;
+      this.distance = distance;
+      this.frontier = frontier;
+      this.from = from;
+      this.to = to;
+      this.limit = limit;
+    }
+
+    @Override
+    protected Relaxation compute() {
+      if (to - from > SPLIT_THRESHOLD) {
+        int middle = (from + to) >>> 1;
+        Relaxation left = new Relaxation(overlay, distance, frontier, from, middle, limit);
+        Relaxation right = new Relaxation(overlay, distance, frontier, middle, to, limit);
+        left.fork();
+        right.compute();
+        left.join();
+        result = Improved.concat(left.result, right.result);
+        return this;
+      }
+      NetworkGraph graph = overlay.graph;
+      Improved improved = new Improved();
+      for (int i = from; i < to; i++) {
+        int node = frontier[i];
+        double d = Double.longBitsToDouble(distance.get(node));
+        if (node == overlay.node) {
+          relax(graph.edgeFrom(overlay.parent), d + overlay.headLength, improved);
+          relax(graph.edgeTo(overlay.parent), d + overlay.tailLength, improved);
+          continue;
+        }
+        for (int arc = graph.arcStart(node); arc < graph.arcEnd(node); arc++) {
+          if (graph.arcEdge(arc) != overlay.parent) {
+            relax(graph.arcTarget(arc), d + graph.edgeLength(graph.arcEdge(arc)), improved);
+          }
+        }
+      }
+      result = improved;
+      return this;
+    }
+
+    private void relax(int node, double d, Improved improved) {
+      if (d <= limit && lower(node, d)) {
+        improved.add(node);
+      }
+    }
+
+    private boolean lower(int node, double d) {
+      long bits = Double.doubleToLongBits(d);
+      while (true) {
+        long current = distance.get(node);
+        if (Double.longBitsToDouble(current) <= d) {
+          return false;
+        }
+        if (distance.compareAndSet(node, current, bits)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * A list of improved nodes, chained to the lists of sibling tasks
+     */
+    static final class Improved {
+      private int[] nodes = new int[16];
+      private int count;
+      private Improved next;
+
+      void add(int node) {
+        if (count == nodes.length) {
+          nodes = Arrays.copyOf(nodes, count * 2);
+        }
+        nodes[count++] = node;
+      }
+
+      static Improved concat(Improved first, Improved second) {
+        Improved last = first;
+        while (last.next != null) {
+          last = last.next;
+        }
+        last.next = second;
+        return first;
+      }
+    }
+  }
+
+  /**
+   * A growable list of ints
+   */
+  private static final class IntList {
+    private int[] values = new int[16];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int get(int i) {
+      return values[i];
+    }
+
+    int[] values() {
+      return values;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+}
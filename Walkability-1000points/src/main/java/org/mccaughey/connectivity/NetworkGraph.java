@@ -0,0 +1,580 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * An immutable road network graph in compressed sparse row form. Nodes and edges are identified by int ids, adjacency
+ * is held in flat offset/target arrays and edge geometry in packed coordinate arrays, so a single instance can be built
+ * once per network and shared read-only by every service area query and thread.
+ *
+ * Every line (or line component of a multi line) in the network becomes one undirected edge, connected to other edges
+ * at shared end points, in the same way as LineStringGraphGenerator.
+ */
+public final class NetworkGraph {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkGraph.class);
+  private static final Map<SimpleFeatureSource, NetworkGraph> GRAPHS = Collections
+      .synchronizedMap(new WeakHashMap<SimpleFeatureSource, NetworkGraph>());
+
+  private final CoordinateReferenceSystem crs;
+  private final int nodeCount;
+  private final int edgeCount;
+  // node i is at (nodeCoords[2i], nodeCoords[2i+1])
+  private final double[] nodeCoords;
+  private final int[] edgeFrom;
+  private final int[] edgeTo;
+  private final double[] edgeLength;
+  // the vertices of edge e are coordinates edgeCoordOffsets[e] to edgeCoordOffsets[e+1] - 1 of edgeCoords
+  private final int[] edgeCoordOffsets;
+  private final double[] edgeCoords;
+  // identifies the topology and lengths of the graph, so tables and encoded regions are not used with another network
+  private final long fingerprint;
+  // the arcs leaving node i are arcOffsets[i] to arcOffsets[i+1] - 1
+  private final int[] arcOffsets;
+  private final int[] arcEdges;
+  private final int[] arcTargets;
+  private volatile SnapIndex snapIndex;
+  private volatile IntersectionIndex intersectionIndex;
+  private volatile IntersectionGrid intersectionGrid;
+  private volatile ReachTable reachTable;
+  private volatile ContractionHierarchy contractionHierarchy;
+
+  private NetworkGraph(CoordinateReferenceSystem crs, int nodeCount, double[] nodeCoords, int edgeCount,
+      int[] edgeFrom, int[] edgeTo, double[] edgeLength, int[] edgeCoordOffsets, double[] edgeCoords) {
+    this.crs = crs;
+    this.nodeCount = nodeCount;
+    this.nodeCoords = nodeCoords;
+    this.edgeCount = edgeCount;
+    this.edgeFrom = edgeFrom;
+    this.edgeTo = edgeTo;
+    this.edgeLength = edgeLength;
+    this.edgeCoordOffsets = edgeCoordOffsets;
+    this.edgeCoords = edgeCoords;
+    long hash = 17;
+    for (int e = 0; e < edgeCount; e++) {
+      hash = 31 * hash + edgeFrom[e];
+      hash = 31 * hash + edgeTo[e];
+      hash = 31 * hash + Double.doubleToLongBits(edgeLength[e]);
+    }
+    this.fingerprint = hash;
+
+    // count the degree of each node, then lay the arcs out by prefix sum
+    arcOffsets = new int[nodeCount + 1];
+    for (int e = 0; e < edgeCount; e++) {
+      arcOffsets[edgeFrom[e] + 1]++;
+      arcOffsets[edgeTo[e] + 1]++;
+    }
+    for (int n = 0; n < nodeCount; n++) {
+      arcOffsets[n + 1] += arcOffsets[n];
+    }
+    arcEdges = new int[2 * edgeCount];
+    arcTargets = new int[2 * edgeCount];
+    int[] next = Arrays.copyOf(arcOffsets, nodeCount);
+    for (int e = 0; e < edgeCount; e++) {
+      int a = next[edgeFrom[e]]++;
+      arcEdges[a] = e;
+      arcTargets[a] = edgeTo[e];
+      a = next[edgeTo[e]]++;
+      arcEdges[a] = e;
+      arcTargets[a] = edgeFrom[e];
+    }
+  }
+
+  /**
+   * Gets the graph for a network source, building it on first use. Graphs are cached for as long as the source is
+   * reachable, so callers should hold on to the same source rather than re-reading the network for each query.
+   *
+   * @param network
+   *          A network (eg roads) dataset
+   * @return The shared graph of the network
+   * @throws IOException
+   */
+  public static NetworkGraph forSource(SimpleFeatureSource network) throws IOException {
+    synchronized (GRAPHS) {
+      NetworkGraph graph = GRAPHS.get(network);
+      if (graph == null) {
+        graph = build(network.getFeatures());
+        GRAPHS.put(network, graph);
+      }
+      return graph;
+    }
+  }
+
+  /**
+   * Builds a graph from a collection of line features
+   *
+   * @param network
+   *          The network features
+   * @return A new graph of the network
+   */
+  public static NetworkGraph build(SimpleFeatureCollection network) {
+    long start = System.currentTimeMillis();
+    Builder builder = new Builder();
+    SimpleFeatureIterator features = network.features();
+    try {
+      while (features.hasNext()) {
+        SimpleFeature feature = features.next();
+        Geometry geom = (Geometry) feature.getDefaultGeometry();
+        if (geom == null) {
+          continue;
+        }
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+          Geometry part = geom.getGeometryN(i);
+          if (part instanceof LineString) {
+            builder.addEdge(((LineString) part).getCoordinates());
+          }
+        }
+      }
+    } finally {
+      features.close();
+    }
+    NetworkGraph graph = builder.build(network.getSchema().getCoordinateReferenceSystem());
+    LOGGER.info("Built network graph with {} nodes and {} edges in {}ms", new Object[] { graph.nodeCount,
+        graph.edgeCount, System.currentTimeMillis() - start });
+    return graph;
+  }
+
+  public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+    return crs;
+  }
+
+  public int nodeCount() {
+    return nodeCount;
+  }
+
+  public int edgeCount() {
+    return edgeCount;
+  }
+
+  /**
+   * @return A hash of the edge ends and lengths, the same for graphs built from the same network
+   */
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  public double nodeX(int node) {
+    return nodeCoords[2 * node];
+  }
+
+  public double nodeY(int node) {
+    return nodeCoords[2 * node + 1];
+  }
+
+  public int degree(int node) {
+    return arcOffsets[node + 1] - arcOffsets[node];
+  }
+
+  /**
+   * @return The first arc leaving node, arcs of a node are numbered contiguously up to {@link #arcEnd(int)}
+   */
+  public int arcStart(int node) {
+    return arcOffsets[node];
+  }
+
+  /**
+   * @return One past the last arc leaving node
+   */
+  public int arcEnd(int node) {
+    return arcOffsets[node + 1];
+  }
+
+  public int arcEdge(int arc) {
+    return arcEdges[arc];
+  }
+
+  public int arcTarget(int arc) {
+    return arcTargets[arc];
+  }
+
+  public int edgeFrom(int edge) {
+    return edgeFrom[edge];
+  }
+
+  public int edgeTo(int edge) {
+    return edgeTo[edge];
+  }
+
+  public double edgeLength(int edge) {
+    return edgeLength[edge];
+  }
+
+  /**
+   * @return The index of the first vertex of edge, vertices of an edge are numbered contiguously up to
+   *         {@link #edgeVertexEnd(int)}
+   */
+  public int edgeVertexStart(int edge) {
+    return edgeCoordOffsets[edge];
+  }
+
+  /**
+   * @return One past the index of the last vertex of edge
+   */
+  public int edgeVertexEnd(int edge) {
+    return edgeCoordOffsets[edge + 1];
+  }
+
+  public double vertexX(int vertex) {
+    return edgeCoords[2 * vertex];
+  }
+
+  public double vertexY(int vertex) {
+    return edgeCoords[2 * vertex + 1];
+  }
+
+  /**
+   * Creates the line geometry of an edge
+   *
+   * @param edge
+   *          The edge id
+   * @param geometryFactory
+   *          The factory to create the line with
+   * @return The edge as a LineString, running from its from node to its to node
+   */
+  public LineString edgeGeometry(int edge, GeometryFactory geometryFactory) {
+    int start = edgeCoordOffsets[edge];
+    int end = edgeCoordOffsets[edge + 1];
+    Coordinate[] coords = new Coordinate[end - start];
+    for (int v = start; v < end; v++) {
+      coords[v - start] = new Coordinate(edgeCoords[2 * v], edgeCoords[2 * v + 1]);
+    }
+    return geometryFactory.createLineString(coords);
+  }
+
+  /**
+   * Creates the line geometry of part of an edge
+   *
+   * @param edge
+   *          The edge id
+   * @param start
+   *          The distance along the edge from its from node to start the line
+   * @param end
+   *          The distance along the edge from its from node to end the line
+   * @param geometryFactory
+   *          The factory to create the line with
+   * @return The part of the edge between start and end
+   */
+  public LineString edgeGeometry(int edge, double start, double end, GeometryFactory geometryFactory) {
+    int first = edgeCoordOffsets[edge];
+    int last = edgeCoordOffsets[edge + 1] - 1;
+    if (start <= 0 && end >= edgeLength[edge]) {
+      return edgeGeometry(edge, geometryFactory);
+    }
+    List<Coordinate> coords = new ArrayList<Coordinate>();
+    double position = 0;
+    for (int v = first; v < last; v++) {
+      double x0 = edgeCoords[2 * v];
+      double y0 = edgeCoords[2 * v + 1];
+      double x1 = edgeCoords[2 * v + 2];
+      double y1 = edgeCoords[2 * v + 3];
+      double length = Math.hypot(x1 - x0, y1 - y0);
+      double next = position + length;
+      if (coords.isEmpty() && start <= next) {
+        coords.add(interpolate(x0, y0, x1, y1, length, start - position));
+      }
+      if (!coords.isEmpty()) {
+        if (end <= next || v == last - 1) {
+          coords.add(interpolate(x0, y0, x1, y1, length, Math.min(end, next) - position));
+          break;
+        }
+        coords.add(new Coordinate(x1, y1));
+      }
+      position = next;
+    }
+    if (coords.size() < 2) {
+      // start is beyond the rounded end of the edge
+      coords.clear();
+      coords.add(new Coordinate(edgeCoords[2 * last], edgeCoords[2 * last + 1]));
+      coords.add(new Coordinate(edgeCoords[2 * last], edgeCoords[2 * last + 1]));
+    }
+    return geometryFactory.createLineString(coords.toArray(new Coordinate[coords.size()]));
+  }
+
+  private static Coordinate interpolate(double x0, double y0, double x1, double y1, double length, double along) {
+    if (length <= 0) {
+      return new Coordinate(x0, y0);
+    }
+    double fraction = Math.max(0, Math.min(1, along / length));
+    return new Coordinate(x0 + (x1 - x0) * fraction, y0 + (y1 - y0) * fraction);
+  }
+
+  /**
+   * Gets the index used to snap points to the network, building it on first use
+   *
+   * @return The shared snapping index of the graph
+   */
+  public SnapIndex getSnapIndex() {
+    SnapIndex index = snapIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = snapIndex;
+        if (index == null) {
+          long start = System.currentTimeMillis();
+          index = new SnapIndex(this);
+          snapIndex = index;
+          LOGGER.debug("Built snapping index in {} ms", System.currentTimeMillis() - start);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Gets the index of the intersections of the graph, building it on first use
+   *
+   * @return The shared intersection index of the graph
+   */
+  public IntersectionIndex getIntersectionIndex() {
+    IntersectionIndex index = intersectionIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = intersectionIndex;
+        if (index == null) {
+          long start = System.currentTimeMillis();
+          index = new IntersectionIndex(this);
+          intersectionIndex = index;
+          LOGGER.debug("Indexed {} intersections in {} ms", index.size(), System.currentTimeMillis() - start);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Gets the intersection grid of the graph for approximate connectivity, building it on first use or when a
+   * different cell size is asked for
+   *
+   * @param cellSize
+   *          The width of a grid cell in network units
+   * @return The shared intersection grid of the graph with cells cellSize wide
+   */
+  public IntersectionGrid getIntersectionGrid(double cellSize) {
+    IntersectionGrid grid = intersectionGrid;
+    if (grid == null || grid.getCellSize() != cellSize) {
+      synchronized (this) {
+        grid = intersectionGrid;
+        if (grid == null || grid.getCellSize() != cellSize) {
+          long start = System.currentTimeMillis();
+          grid = new IntersectionGrid(this, cellSize);
+          intersectionGrid = grid;
+          LOGGER.debug("Gridded {} intersections in {} ms", grid.size(), System.currentTimeMillis() - start);
+        }
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * Gets the contraction hierarchy of the graph, contracting it on first use
+   *
+   * @return The shared contraction hierarchy of the graph
+   */
+  public ContractionHierarchy getContractionHierarchy() {
+    ContractionHierarchy hierarchy = contractionHierarchy;
+    if (hierarchy == null) {
+      synchronized (this) {
+        hierarchy = contractionHierarchy;
+        if (hierarchy == null) {
+          hierarchy = ContractionHierarchy.build(this);
+          contractionHierarchy = hierarchy;
+        }
+      }
+    }
+    return hierarchy;
+  }
+
+  /**
+   * Attaches a precomputed reach table to the graph, for use by {@link SearchMode#REACH_TABLE}
+   *
+   * @param table
+   *          A table written for this graph, or null to detach the current table
+   * @throws IllegalArgumentException
+   *           if the table was written for a different network
+   */
+  public void setReachTable(ReachTable table) {
+    if (table != null && !table.matches(this)) {
+      throw new IllegalArgumentException("Reach table does not match the network graph");
+    }
+    reachTable = table;
+  }
+
+  /**
+   * @return The attached reach table, or null if there is none
+   */
+  public ReachTable getReachTable() {
+    return reachTable;
+  }
+
+  /**
+   * Finds the closest location on the network to a point
+   *
+   * @param x
+   *          The x coordinate of the point
+   * @param y
+   *          The y coordinate of the point
+   * @param maxDistance
+   *          The furthest the point may be from the network
+   * @return The closest network location, or null if no edge is within maxDistance
+   */
+  public NetworkLocation locate(double x, double y, double maxDistance) {
+    return getSnapIndex().nearest(x, y, maxDistance);
+  }
+
+  /**
+   * Creates the network location at a fraction of the way along one segment of an edge
+   */
+  NetworkLocation locationOnSegment(int edge, int vertex, double fraction, double x, double y) {
+    double offset = 0;
+    for (int v = edgeCoordOffsets[edge]; v < vertex; v++) {
+      offset += Math.hypot(edgeCoords[2 * v + 2] - edgeCoords[2 * v], edgeCoords[2 * v + 3] - edgeCoords[2 * v + 1]);
+    }
+    double x0 = edgeCoords[2 * vertex];
+    double y0 = edgeCoords[2 * vertex + 1];
+    double x1 = edgeCoords[2 * vertex + 2];
+    double y1 = edgeCoords[2 * vertex + 3];
+    offset += fraction * Math.hypot(x1 - x0, y1 - y0);
+    double px = x0 + fraction * (x1 - x0);
+    double py = y0 + fraction * (y1 - y0);
+    return new NetworkLocation(edge, Math.min(offset, edgeLength[edge]), px, py, Math.hypot(px - x, py - y));
+  }
+
+  /**
+   * Accumulates nodes and edges in growable primitive arrays, nodes are matched on exact end point coordinates using an
+   * open addressing hash table. Package private so that graphs can be built from coordinates without features.
+   */
+  static final class Builder {
+    private int nodeCount;
+    private double[] nodeCoords = new double[1024];
+    private int[] nodeTable = newTable(1024);
+
+    private int edgeCount;
+    private int[] edgeFrom = new int[1024];
+    private int[] edgeTo = new int[1024];
+    private double[] edgeLength = new double[1024];
+    private int[] edgeCoordOffsets = new int[1025];
+    private int coordCount;
+    private double[] edgeCoords = new double[4096];
+
+    void addEdge(Coordinate[] coords) {
+      if (coords.length < 2) {
+        return;
+      }
+      if (edgeCount == edgeFrom.length) {
+        edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+        edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+        edgeLength = Arrays.copyOf(edgeLength, edgeCount * 2);
+        edgeCoordOffsets = Arrays.copyOf(edgeCoordOffsets, edgeCount * 2 + 1);
+      }
+      if (2 * (coordCount + coords.length) > edgeCoords.length) {
+        edgeCoords = Arrays.copyOf(edgeCoords, Math.max(edgeCoords.length * 2, 2 * (coordCount + coords.length)));
+      }
+      double length = 0;
+      for (int i = 0; i < coords.length; i++) {
+        edgeCoords[2 * coordCount] = coords[i].x;
+        edgeCoords[2 * coordCount + 1] = coords[i].y;
+        coordCount++;
+        if (i > 0) {
+          length += coords[i].distance(coords[i - 1]);
+        }
+      }
+      Coordinate first = coords[0];
+      Coordinate last = coords[coords.length - 1];
+      edgeFrom[edgeCount] = node(first.x, first.y);
+      edgeTo[edgeCount] = node(last.x, last.y);
+      edgeLength[edgeCount] = length;
+      edgeCount++;
+      edgeCoordOffsets[edgeCount] = coordCount;
+    }
+
+    private int node(double x, double y) {
+      // fold -0.0 into 0.0 so equal coordinates always hash alike
+      x += 0.0;
+      y += 0.0;
+      int mask = nodeTable.length - 1;
+      int slot = hash(x, y) & mask;
+      while (nodeTable[slot] >= 0) {
+        int n = nodeTable[slot];
+        if (nodeCoords[2 * n] == x && nodeCoords[2 * n + 1] == y) {
+          return n;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (2 * (nodeCount + 1) > nodeCoords.length) {
+        nodeCoords = Arrays.copyOf(nodeCoords, nodeCoords.length * 2);
+      }
+      nodeCoords[2 * nodeCount] = x;
+      nodeCoords[2 * nodeCount + 1] = y;
+      nodeTable[slot] = nodeCount;
+      nodeCount++;
+      if (nodeCount * 2 > nodeTable.length) {
+        rehash();
+      }
+      return nodeCount - 1;
+    }
+
+    private void rehash() {
+      nodeTable = newTable(nodeTable.length * 2);
+      int mask = nodeTable.length - 1;
+      for (int n = 0; n < nodeCount; n++) {
+        int slot = hash(nodeCoords[2 * n], nodeCoords[2 * n + 1]) & mask;
+        while (nodeTable[slot] >= 0) {
+          slot = (slot + 1) & mask;
+        }
+        nodeTable[slot] = n;
+      }
+    }
+
+    private static int[] newTable(int size) {
+      int[] table = new int[size];
+      Arrays.fill(table, -1);
+      return table;
+    }
+
+    private static int hash(double x, double y) {
+      long bits = Double.doubleToLongBits(x) * 31 + Double.doubleToLongBits(y);
+      bits ^= bits >>> 33;
+      bits *= 0xff51afd7ed558ccdL;
+      bits ^= bits >>> 33;
+      return (int) bits;
+    }
+
+    NetworkGraph build(CoordinateReferenceSystem crs) {
+      return new NetworkGraph(crs, nodeCount, Arrays.copyOf(nodeCoords, 2 * nodeCount), edgeCount, Arrays.copyOf(
+          edgeFrom, edgeCount), Arrays.copyOf(edgeTo, edgeCount), Arrays.copyOf(edgeLength, edgeCount),
+          Arrays.copyOf(edgeCoordOffsets, edgeCount + 1), Arrays.copyOf(edgeCoords, 2 * coordCount));
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * A position on a network graph edge, typically a point of interest snapped to the network
+ */
+public final class NetworkLocation {
+
+  private final int edge;
+  private final double offset;
+  private final double x;
+  private final double y;
+  private final double snapDistance;
+
+  /**
+   * @param edge
+   *          The edge id
+   * @param offset
+   *          The distance along the edge from its from node
+   * @param x
+   *          The x coordinate of the location on the edge
+   * @param y
+   *          The y coordinate of the location on the edge
+   * @param snapDistance
+   *          The distance the original point was moved to reach the edge
+   */
+  public NetworkLocation(int edge, double offset, double x, double y, double snapDistance) {
+    this.edge = edge;
+    this.offset = offset;
+    this.x = x;
+    this.y = y;
+    this.snapDistance = snapDistance;
+  }
+
+  public int getEdge() {
+    return edge;
+  }
+
+  public double getOffset() {
+    return offset;
+  }
+
+  public double getX() {
+    return x;
+  }
+
+  public double getY() {
+    return y;
+  }
+
+  public double getSnapDistance() {
+    return snapDistance;
+  }
+
+  @Override
+  public String toString() {
+    return "NetworkLocation[edge=" + edge + ", offset=" + offset + ", snapDistance=" + snapDistance + "]";
+  }
+}
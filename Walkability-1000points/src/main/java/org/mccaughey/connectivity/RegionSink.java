@@ -0,0 +1,36 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Receives service area regions as they are generated, see
+ * {@link NetworkBufferBatch#streamBuffers(RegionSink, int, boolean)}. Regions are passed to the sink from a single
+ * thread, one at a time, and the batch waits for the sink before starting more work, so a slow sink holds the batch
+ * back rather than letting results pile up.
+ */
+public interface RegionSink {
+
+  /**
+   * @param region
+   *          A finished region, with the attributes of its point
+   * @throws IOException
+   *           to stop the batch
+   */
+  void accept(SimpleFeature region) throws IOException;
+}
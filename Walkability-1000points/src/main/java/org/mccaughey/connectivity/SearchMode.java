@@ -0,0 +1,45 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * The graph traversal used to find network service areas
+ */
+public enum SearchMode {
+  /**
+   * Enumerates paths through a geotools graph built around each point, see {@link NetworkBufferFJ}
+   */
+  PATH_ENUMERATION,
+  /**
+   * Bounded Dijkstra search over the shared network graph, see {@link NetworkBufferDijkstra}
+   */
+  DIJKSTRA,
+  /**
+   * Parallel delta-stepping search over the shared network graph, for large service areas, see
+   * {@link NetworkBufferDeltaStepping}
+   */
+  DELTA_STEPPING,
+  /**
+   * Looks the service area up in the reach table attached to the network graph, see {@link ReachTable}. Falls back to
+   * DIJKSTRA when the graph has no table or the distance is beyond its radius
+   */
+  REACH_TABLE,
+  /**
+   * Range query over the contraction hierarchy of the network graph, for long distances, see
+   * {@link ContractionHierarchy}. The hierarchy is built on first use for each graph, which takes tens of seconds on a
+   * city network, so it suits a network loaded once rather than a {@link TiledNetwork} that grows
+   */
+  CONTRACTION_HIERARCHY
+}
@@ -0,0 +1,141 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+/**
+ * Per thread scratch space for graph searches. The distance, settled and edge arrays are sized to the graph once and
+ * only the entries touched by a search are reset afterwards, so a search costs nothing proportional to the size of the
+ * whole network.
+ */
+final class SearchWorkspace {
+
+  private static final ThreadLocal<SearchWorkspace> WORKSPACES = new ThreadLocal<SearchWorkspace>();
+
+  final NetworkGraph graph;
+  final double[] distance;
+  final boolean[] settled;
+  final NodeHeap heap;
+  // nodes given a distance by the current search
+  int[] reached = new int[256];
+  int reachedCount;
+
+  // reach along each edge collected from the reached nodes, edgeSlot maps an edge to its index in edges
+  final int[] edgeSlot;
+  int[] edges = new int[256];
+  double[] headReach = new double[256];
+  double[] tailReach = new double[256];
+  double[] entry = new double[256];
+  int edgeCount;
+
+  private SearchWorkspace(NetworkGraph graph) {
+    this.graph = graph;
+    // room for the virtual node and edges of a start overlay
+    distance = new double[StartOverlay.nodeCount(graph)];
+    Arrays.fill(distance, Double.POSITIVE_INFINITY);
+    settled = new boolean[StartOverlay.nodeCount(graph)];
+    heap = new NodeHeap(StartOverlay.nodeCount(graph));
+    edgeSlot = new int[StartOverlay.edgeCount(graph)];
+    Arrays.fill(edgeSlot, -1);
+  }
+
+  /**
+   * @return The workspace of the calling thread, sized for graph
+   */
+  static SearchWorkspace forGraph(NetworkGraph graph) {
+    SearchWorkspace workspace = WORKSPACES.get();
+    if (workspace == null || workspace.graph != graph) {
+      workspace = new SearchWorkspace(graph);
+      WORKSPACES.set(workspace);
+    }
+    return workspace;
+  }
+
+  /**
+   * Lowers the distance of a node, recording it as reached the first time
+   */
+  void setDistance(int node, double d) {
+    if (distance[node] == Double.POSITIVE_INFINITY) {
+      if (reachedCount == reached.length) {
+        reached = Arrays.copyOf(reached, reachedCount * 2);
+      }
+      reached[reachedCount++] = node;
+    }
+    distance[node] = d;
+  }
+
+  /**
+   * Records that edge is reached for the given length from one or both of its end nodes
+   *
+   * @param edge
+   *          The edge id
+   * @param fromHead
+   *          True if the edge is entered from its from node
+   * @param fromTail
+   *          True if the edge is entered from its to node
+   * @param reach
+   *          How far along the edge can be travelled from that node
+   * @param entryDistance
+   *          The network distance at which the edge is entered
+   */
+  void addReach(int edge, boolean fromHead, boolean fromTail, double reach, double entryDistance) {
+    int slot = slot(edge);
+    if (entryDistance < entry[slot]) {
+      entry[slot] = entryDistance;
+    }
+    if (fromHead && reach > headReach[slot]) {
+      headReach[slot] = reach;
+    }
+    if (fromTail && reach > tailReach[slot]) {
+      tailReach[slot] = reach;
+    }
+  }
+
+  int slot(int edge) {
+    int slot = edgeSlot[edge];
+    if (slot < 0) {
+      if (edgeCount == edges.length) {
+        edges = Arrays.copyOf(edges, edgeCount * 2);
+        headReach = Arrays.copyOf(headReach, edgeCount * 2);
+        tailReach = Arrays.copyOf(tailReach, edgeCount * 2);
+        entry = Arrays.copyOf(entry, edgeCount * 2);
+      }
+      slot = edgeCount++;
+      edges[slot] = edge;
+      headReach[slot] = 0;
+      tailReach[slot] = 0;
+      entry[slot] = Double.POSITIVE_INFINITY;
+      edgeSlot[edge] = slot;
+    }
+    return slot;
+  }
+
+  /**
+   * Clears everything touched by the last search
+   */
+  void reset() {
+    for (int i = 0; i < reachedCount; i++) {
+      distance[reached[i]] = Double.POSITIVE_INFINITY;
+      settled[reached[i]] = false;
+    }
+    reachedCount = 0;
+    heap.clear();
+    for (int i = 0; i < edgeCount; i++) {
+      edgeSlot[edges[i]] = -1;
+    }
+    edgeCount = 0;
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+
+/**
+ * The set of network edges reachable within a network distance of an origin. Each reached edge records the network
+ * distance at which it is entered and how far along it can be travelled from each of its end nodes, so an edge is
+ * either whole or chopped at one or both ends, as with the full/chopped edges of {@link NetworkBufferFJ}.
+ */
+public final class ServiceArea {
+
+  private static final double EPSILON = 1e-9;
+
+  private final NetworkGraph graph;
+  private final NetworkLocation origin;
+  private final double limit;
+  private final int[] edges;
+  private final double[] entry;
+  private final double[] headReach;
+  private final double[] tailReach;
+  // the part of the origin edge reached through the virtual start node
+  private final double originStart;
+  private final double originEnd;
+  // how far a reach may fall short of the searched one, see isWhole
+  private final double tolerance;
+
+  ServiceArea(NetworkGraph graph, NetworkLocation origin, double limit, int[] edges, double[] entry,
+      double[] headReach, double[] tailReach, double originStart, double originEnd) {
+    this(graph, origin, limit, edges, entry, headReach, tailReach, originStart, originEnd, EPSILON);
+  }
+
+  ServiceArea(NetworkGraph graph, NetworkLocation origin, double limit, int[] edges, double[] entry,
+      double[] headReach, double[] tailReach, double originStart, double originEnd, double tolerance) {
+    this.graph = graph;
+    this.origin = origin;
+    this.limit = limit;
+    this.edges = edges;
+    this.entry = entry;
+    this.headReach = headReach;
+    this.tailReach = tailReach;
+    this.originStart = originStart;
+    this.originEnd = originEnd;
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Collects the service area from the node distances of a finished search. Every reached node with a distance within
+   * limit contributes the remaining distance as reach along each of its edges, then the reach along the two partial
+   * edges of the overlay is folded back onto the origin edge.
+   *
+   * @param workspace
+   *          The workspace holding the node distances of the search
+   * @param overlay
+   *          The start overlay the search began from
+   * @param limit
+   *          The network distance of the service area, may be less than the search limit
+   * @return The service area
+   */
+  static ServiceArea collect(SearchWorkspace workspace, StartOverlay overlay, double limit) {
+    return collect(workspace, overlay, limit, EPSILON);
+  }
+
+  /**
+   * Collects the service area from node distances that may each be up to tolerance longer than the searched ones, such
+   * as those of a reach table lookup
+   *
+   * @param tolerance
+   *          The most a node distance may be over, an edge reached to within it of whole counts as whole
+   */
+  static ServiceArea collect(SearchWorkspace workspace, StartOverlay overlay, double limit, double tolerance) {
+    NetworkGraph graph = workspace.graph;
+    int parentFrom = graph.edgeFrom(overlay.parent);
+    int parentTo = graph.edgeTo(overlay.parent);
+    for (int i = 0; i < workspace.reachedCount; i++) {
+      int node = workspace.reached[i];
+      double d = workspace.distance[node];
+      if (d >= limit) {
+        continue;
+      }
+      if (node == overlay.node) {
+        // the virtual node is the to node of the head edge and the from node of the tail edge
+        workspace.addReach(overlay.headEdge, false, true, limit - d, d);
+        workspace.addReach(overlay.tailEdge, true, false, limit - d, d);
+        continue;
+      }
+      for (int arc = graph.arcStart(node); arc < graph.arcEnd(node); arc++) {
+        int edge = graph.arcEdge(arc);
+        if (edge != overlay.parent) {
+          workspace.addReach(edge, node == graph.edgeFrom(edge), node == graph.edgeTo(edge), limit - d, d);
+        }
+      }
+      if (node == parentFrom) {
+        workspace.addReach(overlay.headEdge, true, false, limit - d, d);
+      }
+      if (node == parentTo) {
+        workspace.addReach(overlay.tailEdge, false, true, limit - d, d);
+      }
+    }
+
+    int n = workspace.edgeCount;
+    int[] edges = new int[n + 1];
+    double[] entry = new double[n + 1];
+    double[] headReach = new double[n + 1];
+    double[] tailReach = new double[n + 1];
+    double offset = overlay.origin.getOffset();
+    double originStart = offset;
+    double originEnd = offset;
+    // the origin edge goes first, entered at the origin
+    edges[0] = overlay.parent;
+    int count = 1;
+    for (int i = 0; i < n; i++) {
+      int edge = workspace.edges[i];
+      // reach from the ends of the origin edge is kept whole, so that within can shorten it, any reach past the
+      // origin is covered by the reach from the origin itself
+      if (edge == overlay.headEdge) {
+        headReach[0] = workspace.headReach[i];
+        originStart = offset - Math.min(workspace.tailReach[i], overlay.headLength);
+      } else if (edge == overlay.tailEdge) {
+        originEnd = offset + Math.min(workspace.headReach[i], overlay.tailLength);
+        tailReach[0] = workspace.tailReach[i];
+      } else {
+        edges[count] = edge;
+        entry[count] = workspace.entry[i];
+        headReach[count] = workspace.headReach[i];
+        tailReach[count] = workspace.tailReach[i];
+        count++;
+      }
+    }
+    return new ServiceArea(graph, overlay.origin, limit, Arrays.copyOf(edges, count), Arrays.copyOf(entry, count),
+        Arrays.copyOf(headReach, count), Arrays.copyOf(tailReach, count), originStart, originEnd, tolerance);
+  }
+
+  /**
+   * Derives the service area of a shorter network distance from the same origin. The reach along an edge from one of
+   * its end nodes is the limit less the distance of the node, so shortening the limit shortens every reach by the same
+   * amount and drops the edges that are no longer reached. The result is the same as a search to the shorter distance,
+   * so one search to the longest of several distances gives the service areas of them all.
+   *
+   * @param shorterLimit
+   *          The network distance of the derived service area, at most the limit of this one
+   * @return The service area within shorterLimit of the origin
+   */
+  public ServiceArea within(double shorterLimit) {
+    if (shorterLimit > limit) {
+      throw new IllegalArgumentException("Cannot derive a service area of " + shorterLimit + " from one of " + limit);
+    }
+    if (shorterLimit == limit) {
+      return this;
+    }
+    double cut = limit - shorterLimit;
+    int n = edges.length;
+    int[] shorterEdges = new int[n];
+    double[] shorterEntry = new double[n];
+    double[] shorterHead = new double[n];
+    double[] shorterTail = new double[n];
+    // the origin edge is always kept, it is reached from the origin itself
+    shorterEdges[0] = edges[0];
+    shorterHead[0] = Math.max(headReach[0] - cut, 0);
+    shorterTail[0] = Math.max(tailReach[0] - cut, 0);
+    int count = 1;
+    for (int i = 1; i < n; i++) {
+      double head = headReach[i] - cut;
+      double tail = tailReach[i] - cut;
+      if (head > 0 || tail > 0) {
+        shorterEdges[count] = edges[i];
+        // the nearest end node is still reached, so the edge is entered at the same distance
+        shorterEntry[count] = entry[i];
+        shorterHead[count] = Math.max(head, 0);
+        shorterTail[count] = Math.max(tail, 0);
+        count++;
+      }
+    }
+    double offset = origin.getOffset();
+    return new ServiceArea(graph, origin, shorterLimit, Arrays.copyOf(shorterEdges, count), Arrays.copyOf(
+        shorterEntry, count), Arrays.copyOf(shorterHead, count), Arrays.copyOf(shorterTail, count), Math.max(
+        originStart, offset - shorterLimit), Math.min(originEnd, offset + shorterLimit), tolerance);
+  }
+
+  public NetworkGraph getGraph() {
+    return graph;
+  }
+
+  public NetworkLocation getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return The network distance of the service area
+   */
+  public double getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return The number of reached edges
+   */
+  public int size() {
+    return edges.length;
+  }
+
+  public int edge(int i) {
+    return edges[i];
+  }
+
+  /**
+   * @return The network distance at which the i'th edge is first entered
+   */
+  public double entryDistance(int i) {
+    return entry[i];
+  }
+
+  /**
+   * @return How far the i'th edge is reached from its from node
+   */
+  public double headReach(int i) {
+    return headReach[i];
+  }
+
+  /**
+   * @return How far the i'th edge is reached from its to node
+   */
+  public double tailReach(int i) {
+    return tailReach[i];
+  }
+
+  /**
+   * @return The start of the part of the origin edge reached from the origin itself, as distance along the edge
+   */
+  double originStart() {
+    return originStart;
+  }
+
+  /**
+   * @return The end of the part of the origin edge reached from the origin itself, as distance along the edge
+   */
+  double originEnd() {
+    return originEnd;
+  }
+
+  /**
+   * @return How far a reach may fall short of the searched one, EPSILON for a search and the quantum for a reach table
+   *         lookup
+   */
+  double getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * An edge is whole when the reached parts leave no gap along it longer than twice the tolerance, as the reach on
+   * either side of a gap may fall short by the tolerance
+   *
+   * @return True if the whole of the i'th edge is reached
+   */
+  public boolean isWhole(int i) {
+    double[] intervals = new double[6];
+    int count = reachedIntervals(i, intervals);
+    if (count == 0) {
+      return false;
+    }
+    double gap = 2 * tolerance;
+    double end = 0;
+    for (int k = 0; k < count; k++) {
+      if (intervals[2 * k] - end > gap) {
+        return false;
+      }
+      end = intervals[2 * k + 1];
+    }
+    return graph.edgeLength(edges[i]) - end <= gap;
+  }
+
+  /**
+   * Works out the reached parts of the i'th edge as disjoint, ordered intervals of distance along the edge
+   *
+   * @param i
+   *          The index of the reached edge
+   * @param intervals
+   *          Filled with start and end distance pairs, must hold at least 6 values
+   * @return The number of intervals
+   */
+  public int reachedIntervals(int i, double[] intervals) {
+    int edge = edges[i];
+    double length = graph.edgeLength(edge);
+    double head = Math.min(headReach[i], length);
+    double tail = Math.min(tailReach[i], length);
+    int count = 0;
+    if (head > 0) {
+      intervals[0] = 0;
+      intervals[1] = head;
+      count = 1;
+    }
+    if (edge == origin.getEdge()) {
+      count = addInterval(intervals, count, originStart, originEnd);
+    }
+    if (tail > 0) {
+      count = addInterval(intervals, count, length - tail, length);
+    }
+    return count;
+  }
+
+  // intervals are added in increasing order of start, so only the last interval can overlap the new one
+  private static int addInterval(double[] intervals, int count, double start, double end) {
+    if (count > 0 && start <= intervals[2 * count - 1] + EPSILON) {
+      intervals[2 * count - 1] = Math.max(intervals[2 * count - 1], end);
+      return count;
+    }
+    intervals[2 * count] = start;
+    intervals[2 * count + 1] = end;
+    return count + 1;
+  }
+
+  /**
+   * Creates the reached geometry of the i'th edge
+   *
+   * @param i
+   *          The index of the reached edge
+   * @param geometryFactory
+   *          The factory to create lines with
+   * @return A LineString, or a MultiLineString if the edge is reached from both ends but not all the way along
+   */
+  public Geometry edgeGeometry(int i, GeometryFactory geometryFactory) {
+    double[] intervals = new double[6];
+    int count = reachedIntervals(i, intervals);
+    LineString[] lines = new LineString[count];
+    for (int j = 0; j < count; j++) {
+      lines[j] = graph.edgeGeometry(edges[i], intervals[2 * j], intervals[2 * j + 1], geometryFactory);
+    }
+    if (count == 1) {
+      return lines[0];
+    }
+    return geometryFactory.createMultiLineString(lines);
+  }
+
+  /**
+   * Creates the service area as a map of edge id to edge feature with a "Distance" attribute, in the form returned by
+   * {@link NetworkBuffer#findServiceArea(org.geotools.data.simple.SimpleFeatureSource, SimpleFeature, Double, Double)}
+   *
+   * @return The edge features of the service area
+   */
+  public Map<Integer, SimpleFeature> toEdgeFeatures() {
+    SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+    builder.setName("Edge");
+    builder.setCRS(graph.getCoordinateReferenceSystem());
+    builder.add("Edge", Geometry.class);
+    builder.add("Name", String.class);
+    builder.add("Distance", Double.class);
+    SimpleFeatureType edgeType = builder.buildFeatureType();
+
+    GeometryFactory geometryFactory = new GeometryFactory();
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(edgeType);
+    Map<Integer, SimpleFeature> features = new HashMap<Integer, SimpleFeature>();
+    for (int i = 0; i < edges.length; i++) {
+      sfb.set("Edge", edgeGeometry(i, geometryFactory));
+      sfb.set("Distance", entry[i]);
+      features.put(edges[i], sfb.buildFeature(null));
+    }
+    return features;
+  }
+}
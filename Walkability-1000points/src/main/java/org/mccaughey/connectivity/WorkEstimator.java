@@ -0,0 +1,275 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.mccaughey.utilities.GeoJSONUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Estimates how long the region of a point will take from the length of road around it. The time of a point is
+ * mostly the search and the buffer union, and both grow with the road reached, so a point in the city centre can cost
+ * many times one on the fringe. The road length is held on a grid of cells, precomputed once from the network, and
+ * an estimate sums the cells whose centres are within the reach of the point, a few hundred cells at walking distances.
+ *
+ * The estimate is the seconds per point plus the seconds per kilometre of road times the road length. These are rough
+ * figures, good for ordering points and sizing queues rather than as a promise of the time taken.
+ */
+public final class WorkEstimator {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(WorkEstimator.class);
+  /**
+   * The message property and user data key of the estimated seconds of work
+   */
+  public static final String ESTIMATED_SECONDS = "estimatedSeconds";
+  private static final int MAGIC = 0x524F4144;
+  private static final int VERSION = 1;
+
+  private final double cellSize;
+  private final double minX;
+  private final double minY;
+  private final int columns;
+  private final int rows;
+  // the road length of cell (column, row) is lengths[row * columns + column]
+  private final float[] lengths;
+  private volatile double secondsPerPoint = 0.05;
+  private volatile double secondsPerKm = 0.02;
+
+  private WorkEstimator(double cellSize, double minX, double minY, int columns, int rows, float[] lengths) {
+    this.cellSize = cellSize;
+    this.minX = minX;
+    this.minY = minY;
+    this.columns = columns;
+    this.rows = rows;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Gets the estimator of a network file, working out the road density first if the density file is missing, older
+   * than the network file or of another cell size
+   *
+   * @param network
+   *          The network GeoJSON file, may be gzipped
+   * @param density
+   *          The file holding the road density grid
+   * @param cellSize
+   *          The width of a grid cell in network units
+   * @return The estimator
+   * @throws IOException
+   */
+  public static WorkEstimator open(File network, File density, double cellSize) throws IOException {
+    if (density.isFile() && density.lastModified() >= network.lastModified()) {
+      WorkEstimator estimator = read(density);
+      if (estimator.cellSize == cellSize) {
+        LOGGER.debug("Using road density {}", density);
+        return estimator;
+      }
+    }
+    WorkEstimator estimator = build(GeoJSONUtilities.readFeatures(network.toURI().toURL()), cellSize);
+    // written aside and moved into place, so an interrupted write is redone
+    File partial = new File(density.getPath() + ".part");
+    estimator.write(partial);
+    if (density.exists() && !density.delete()) {
+      throw new IOException("Cannot remove old road density " + density);
+    }
+    if (!partial.renameTo(density)) {
+      throw new IOException("Cannot move road density to " + density);
+    }
+    return estimator;
+  }
+
+  /**
+   * Works out the road density of a network. Each line segment adds its length to the cell holding its midpoint.
+   *
+   * @param network
+   *          The network line features
+   * @param cellSize
+   *          The width of a grid cell in network units
+   * @return The estimator
+   */
+  public static WorkEstimator build(SimpleFeatureCollection network, double cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    long start = System.currentTimeMillis();
+    Envelope bounds = network.getBounds();
+    if (bounds == null || bounds.isNull()) {
+      return new WorkEstimator(cellSize, 0, 0, 0, 0, new float[0]);
+    }
+    double minX = Math.floor(bounds.getMinX() / cellSize) * cellSize;
+    double minY = Math.floor(bounds.getMinY() / cellSize) * cellSize;
+    int columns = (int) Math.floor((bounds.getMaxX() - minX) / cellSize) + 1;
+    int rows = (int) Math.floor((bounds.getMaxY() - minY) / cellSize) + 1;
+    WorkEstimator estimator = new WorkEstimator(cellSize, minX, minY, columns, rows, new float[columns * rows]);
+    SimpleFeatureIterator features = network.features();
+    try {
+      while (features.hasNext()) {
+        Geometry geom = (Geometry) features.next().getDefaultGeometry();
+        if (geom != null) {
+          estimator.addLines(geom);
+        }
+      }
+    } finally {
+      features.close();
+    }
+    LOGGER.info("Worked out road density on {} by {} cells of {} in {}ms", new Object[] { columns, rows, cellSize,
+        System.currentTimeMillis() - start });
+    return estimator;
+  }
+
+  private void addLines(Geometry geom) {
+    for (int i = 0; i < geom.getNumGeometries(); i++) {
+      Coordinate[] coordinates = geom.getGeometryN(i).getCoordinates();
+      for (int j = 1; j < coordinates.length; j++) {
+        Coordinate a = coordinates[j - 1];
+        Coordinate b = coordinates[j];
+        int column = column((a.x + b.x) / 2);
+        int row = row((a.y + b.y) / 2);
+        if (column >= 0 && column < columns && row >= 0 && row < rows) {
+          lengths[row * columns + column] += (float) a.distance(b);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the cost model, by default 0.05 seconds per point and 0.02 seconds per kilometre of road
+   *
+   * @param secondsPerPoint
+   *          The fixed cost of a point, reading and writing it and snapping it to the network
+   * @param secondsPerKm
+   *          The cost of each kilometre of road within reach of the point
+   */
+  public void setCost(double secondsPerPoint, double secondsPerKm) {
+    if (secondsPerPoint < 0 || secondsPerKm < 0) {
+      throw new IllegalArgumentException("Costs must not be negative");
+    }
+    this.secondsPerPoint = secondsPerPoint;
+    this.secondsPerKm = secondsPerKm;
+  }
+
+  /**
+   * @param x
+   *          The x coordinate of the point
+   * @param y
+   *          The y coordinate of the point
+   * @param radius
+   *          The straight line reach of the point
+   * @return The length of road in the cells whose centres are within radius of the point
+   */
+  public double roadLengthWithin(double x, double y, double radius) {
+    int minColumn = Math.max(column(x - radius), 0);
+    int maxColumn = Math.min(column(x + radius), columns - 1);
+    int minRow = Math.max(row(y - radius), 0);
+    int maxRow = Math.min(row(y + radius), rows - 1);
+    double radiusSquared = radius * radius;
+    double length = 0;
+    for (int row = minRow; row <= maxRow; row++) {
+      double dy = minY + (row + 0.5) * cellSize - y;
+      for (int column = minColumn; column <= maxColumn; column++) {
+        double dx = minX + (column + 0.5) * cellSize - x;
+        if (dx * dx + dy * dy <= radiusSquared) {
+          length += lengths[row * columns + column];
+        }
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @param x
+   *          The x coordinate of the point
+   * @param y
+   *          The y coordinate of the point
+   * @param reach
+   *          The network distance plus the buffer size
+   * @return The estimated seconds of work to make the region of the point
+   */
+  public double estimateSeconds(double x, double y, double reach) {
+    return secondsPerPoint + secondsPerKm * roadLengthWithin(x, y, reach) / 1000;
+  }
+
+  public double getCellSize() {
+    return cellSize;
+  }
+
+  private int column(double x) {
+    return (int) Math.floor((x - minX) / cellSize);
+  }
+
+  private int row(double y) {
+    return (int) Math.floor((y - minY) / cellSize);
+  }
+
+  private static WorkEstimator read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a road density file: " + file);
+      }
+      double cellSize = in.readDouble();
+      double minX = in.readDouble();
+      double minY = in.readDouble();
+      int columns = in.readInt();
+      int rows = in.readInt();
+      float[] lengths = new float[columns * rows];
+      for (int i = 0; i < lengths.length; i++) {
+        lengths[i] = in.readFloat();
+      }
+      return new WorkEstimator(cellSize, minX, minY, columns, rows, lengths);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeDouble(cellSize);
+      out.writeDouble(minX);
+      out.writeDouble(minY);
+      out.writeInt(columns);
+      out.writeInt(rows);
+      for (float length : lengths) {
+        out.writeFloat(length);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "WorkEstimator[cells=" + columns + "x" + rows + ", cellSize=" + cellSize + ", secondsPerPoint="
+        + secondsPerPoint + ", secondsPerKm=" + secondsPerKm + "]";
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Checks the intersection estimates of the grid against the exact counts of the intersection index over random
+ * regions.
+ */
+public class IntersectionGridTest {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  @Test
+  public void estimatesAreWithinTheirErrorOfTheExactCount() {
+    NetworkGraph graph = TestNetworks.grid(40, 50, 12);
+    IntersectionIndex index = new IntersectionIndex(graph);
+    Random random = new Random(7);
+    for (double cellSize : new double[] { 20, 75, 400 }) {
+      IntersectionGrid grid = new IntersectionGrid(graph, cellSize);
+      assertEquals(index.size(), grid.size());
+      for (int i = 0; i < 60; i++) {
+        Geometry region = randomRegion(random, 2000);
+        int count = index.count(region);
+        for (int maxError : new int[] { 0, 1, 5, 40 }) {
+          IntersectionGrid.Estimate estimate = grid.estimate(region, maxError);
+          String message = "Region " + i + " in cells of " + cellSize + " within " + maxError + ", " + estimate;
+          assertTrue(message, estimate.getError() <= maxError);
+          assertTrue(message + " against " + count, Math.abs(estimate.getCount() - count) <= estimate.getError());
+          if (maxError == 0) {
+            assertEquals(message, count, estimate.getCount());
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void emptyRegionHasNoIntersections() {
+    IntersectionGrid grid = new IntersectionGrid(TestNetworks.grid(10, 50, 1), 50);
+    IntersectionGrid.Estimate estimate = grid.estimate(GEOMETRY_FACTORY.createPolygon(null, null), 0);
+    assertEquals(0, estimate.getCount());
+    assertEquals(0, estimate.getError());
+  }
+
+  // a disc, the hull of a scatter of points, a ring or two discs, somewhere over and around the network
+  private static Geometry randomRegion(Random random, double extent) {
+    Coordinate centre = new Coordinate(random.nextDouble() * extent * 1.2 - extent * 0.1, random.nextDouble() * extent
+        * 1.2 - extent * 0.1);
+    double radius = 20 + random.nextDouble() * extent / 3;
+    switch (random.nextInt(4)) {
+      case 0:
+        return GEOMETRY_FACTORY.createPoint(centre).buffer(radius);
+      case 1:
+        Coordinate[] scatter = new Coordinate[3 + random.nextInt(10)];
+        for (int k = 0; k < scatter.length; k++) {
+          scatter[k] = new Coordinate(centre.x + (random.nextDouble() - 0.5) * 2 * radius, centre.y
+              + (random.nextDouble() - 0.5) * 2 * radius);
+        }
+        return GEOMETRY_FACTORY.createMultiPoint(scatter).convexHull();
+      case 2:
+        return GEOMETRY_FACTORY.createPoint(centre).buffer(radius).difference(
+            GEOMETRY_FACTORY.createPoint(centre).buffer(radius / 2));
+      default:
+        Coordinate other = new Coordinate(centre.x + radius * 2, centre.y - radius);
+        return GEOMETRY_FACTORY.createPoint(centre).buffer(radius / 2).union(
+            GEOMETRY_FACTORY.createPoint(other).buffer(radius / 3));
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Checks that the ways of running a batch over the same points give the same regions as the plain batch.
+ */
+public class NetworkBufferBatchTest {
+
+  private static final double SPACING = 100;
+  private static final double DISTANCE = 400;
+  private static final double BUFFER_SIZE = 50;
+  private static final double CELL_SIZE = 10;
+
+  private final NetworkGraph graph = TestNetworks.grid(12, SPACING, 7);
+  private final SimpleFeatureSource roads = TestNetworks.roads(graph);
+
+  @Test
+  public void rasterRegionsKeepTheirErrorBoundThroughTheCache() throws IOException {
+    // each point twice, so the cache both builds and hands out every region
+    Coordinate[] coords = new Coordinate[12];
+    for (int i = 0; i < coords.length / 2; i++) {
+      coords[i] = new Coordinate(150 + 130 * i, 210 + 90 * i);
+      coords[i + coords.length / 2] = new Coordinate(coords[i]);
+    }
+    SimpleFeatureCollection points = TestNetworks.points(coords);
+
+    NetworkBufferBatch plain = rasterBatch(points);
+    Map<String, SimpleFeature> expected = byId(plain.createBuffers());
+
+    NetworkBufferBatch cached = rasterBatch(points);
+    ServiceAreaCache cache = new ServiceAreaCache(100);
+    cached.setServiceAreaCache(cache);
+    Map<String, SimpleFeature> actual = byId(cached.createBuffers());
+
+    assertEquals("cache hits", coords.length / 2, cache.getHitCount());
+    assertEquals("regions", expected.keySet(), actual.keySet());
+    for (Map.Entry<String, SimpleFeature> region : expected.entrySet()) {
+      Object bound = region.getValue().getUserData().get(RasterRegion.AREA_ERROR_BOUND);
+      assertNotNull("error bound of " + region.getKey(), bound);
+      assertEquals("error bound attribute of " + region.getKey(), bound, region.getValue().getAttribute(
+          RasterRegion.AREA_ERROR_BOUND_ATTRIBUTE));
+      SimpleFeature got = actual.get(region.getKey());
+      assertEquals("cached error bound of " + region.getKey(), bound, got.getUserData().get(
+          RasterRegion.AREA_ERROR_BOUND));
+      assertEquals("cached error bound attribute of " + region.getKey(), bound, got.getAttribute(
+          RasterRegion.AREA_ERROR_BOUND_ATTRIBUTE));
+      assertEquals("cached area of " + region.getKey(), area(region.getValue()), area(got), 1e-6);
+    }
+  }
+
+  @Test
+  public void longestFirstGivesTheRegionsOfThePlainBatchInOrder() throws IOException {
+    // more points than the batch works on at once
+    Random random = new Random(3);
+    Coordinate[] coords = new Coordinate[12 * Runtime.getRuntime().availableProcessors()];
+    for (int i = 0; i < coords.length; i++) {
+      coords[i] = new Coordinate(random.nextDouble() * 11 * SPACING, random.nextDouble() * 11 * SPACING);
+    }
+    SimpleFeatureCollection points = TestNetworks.points(coords);
+
+    List<SimpleFeature> expected = list(batch(points).createBuffers());
+    NetworkBufferBatch longestFirst = batch(points);
+    longestFirst.setWorkEstimator(WorkEstimator.build(roads.getFeatures(), SPACING));
+    List<SimpleFeature> actual = list(longestFirst.createBuffers());
+
+    assertEquals("regions", expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("region " + i, expected.get(i).getID(), actual.get(i).getID());
+      assertEquals("area of " + expected.get(i).getID(), area(expected.get(i)), area(actual.get(i)), 1e-6);
+    }
+  }
+
+  @Test
+  public void tilesGiveTheRegionsOfThePlainBatchInOrder() throws IOException {
+    Random random = new Random(5);
+    Coordinate[] coords = new Coordinate[60];
+    for (int i = 0; i < coords.length; i++) {
+      coords[i] = new Coordinate(random.nextDouble() * 11 * SPACING, random.nextDouble() * 11 * SPACING);
+    }
+    // too far from the network for a region, it must not cost the rest of its tile theirs
+    coords[17] = new Coordinate(18 * SPACING, 5 * SPACING);
+    SimpleFeatureCollection points = TestNetworks.points(coords);
+
+    List<SimpleFeature> expected = list(batch(points).createBuffers());
+    NetworkBufferBatch tiled = batch(points);
+    tiled.setTileSize(10 * SPACING);
+    List<SimpleFeature> actual = list(tiled.createBuffers());
+
+    assertEquals("regions", coords.length - 1, expected.size());
+    assertEquals("tiled regions", expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("region " + i, expected.get(i).getID(), actual.get(i).getID());
+      assertEquals("area of " + expected.get(i).getID(), area(expected.get(i)), area(actual.get(i)), 1e-6);
+    }
+  }
+
+  private NetworkBufferBatch batch(SimpleFeatureCollection points) {
+    NetworkBufferBatch batch = new NetworkBufferBatch(roads, points, DISTANCE, BUFFER_SIZE);
+    batch.setSearchMode(SearchMode.DIJKSTRA);
+    return batch;
+  }
+
+  private NetworkBufferBatch rasterBatch(SimpleFeatureCollection points) {
+    NetworkBufferBatch batch = batch(points);
+    batch.setRegionMode(RegionMode.RASTER);
+    batch.setCellSize(CELL_SIZE);
+    return batch;
+  }
+
+  static List<SimpleFeature> list(SimpleFeatureCollection regions) {
+    List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator features = regions.features();
+    try {
+      while (features.hasNext()) {
+        list.add(features.next());
+      }
+    } finally {
+      features.close();
+    }
+    return list;
+  }
+
+  static Map<String, SimpleFeature> byId(SimpleFeatureCollection regions) {
+    Map<String, SimpleFeature> byId = new TreeMap<String, SimpleFeature>();
+    SimpleFeatureIterator features = regions.features();
+    try {
+      while (features.hasNext()) {
+        SimpleFeature region = features.next();
+        byId.put(region.getID(), region);
+      }
+    } finally {
+      features.close();
+    }
+    return byId;
+  }
+
+  static double area(SimpleFeature region) {
+    return ((Geometry) region.getDefaultGeometry()).getArea();
+  }
+}
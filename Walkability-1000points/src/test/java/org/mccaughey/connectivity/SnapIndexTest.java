@@ -0,0 +1,149 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Checks snapping against projecting the point onto every segment of the network.
+ */
+public class SnapIndexTest {
+
+  private static final double TOLERANCE = 1e-9;
+
+  @Test
+  public void snapsToTheNearestSegment() {
+    NetworkGraph graph = TestNetworks.grid(25, 100, 11, 0.05);
+    Random random = new Random(13);
+    Coordinate[] points = new Coordinate[2000];
+    for (int i = 0; i < points.length; i++) {
+      // some beyond the edge of the grid
+      points[i] = new Coordinate(random.nextDouble() * 3000 - 300, random.nextDouble() * 3000 - 300);
+    }
+    assertSnaps(graph, points, 60);
+  }
+
+  @Test
+  public void snapsPointsOnTheNetwork() {
+    NetworkGraph graph = TestNetworks.grid(25, 100, 11);
+    Coordinate[] points = new Coordinate[graph.edgeCount()];
+    for (int edge = 0; edge < points.length; edge++) {
+      // the first vertex of every edge, most at nodes shared by several edges
+      int vertex = graph.edgeVertexStart(edge);
+      points[edge] = new Coordinate(graph.vertexX(vertex), graph.vertexY(vertex));
+    }
+    assertSnaps(graph, points, 1);
+  }
+
+  @Test
+  public void breaksTiesWithAnyNearestSegment() {
+    NetworkGraph.Builder builder = new NetworkGraph.Builder();
+    builder.addEdge(TestNetworks.line(0, 0, 100, 0));
+    builder.addEdge(TestNetworks.line(0, 10, 100, 10));
+    builder.addEdge(TestNetworks.line(50, 20, 50, 30, 60, 30));
+    NetworkGraph graph = builder.build(null);
+    Coordinate[] points = { new Coordinate(30, 5), new Coordinate(50, 5), new Coordinate(50, 15),
+        new Coordinate(50, 30), new Coordinate(-3, 5) };
+    assertSnaps(graph, points, 10);
+  }
+
+  @Test
+  public void snapsUpToTheMaximumDistance() {
+    NetworkGraph.Builder builder = new NetworkGraph.Builder();
+    builder.addEdge(TestNetworks.line(0, 0, 100, 0));
+    NetworkGraph graph = builder.build(null);
+    SnapIndex index = graph.getSnapIndex();
+    NetworkLocation location = index.nearest(40, 8, 8);
+    assertNotNull("at the maximum distance", location);
+    assertEquals("offset", 40, location.getOffset(), TOLERANCE);
+    assertNull("beyond the maximum distance", index.nearest(40, 8, 7.999));
+    assertNull("beyond the end of the edge", index.nearest(106, 6, 8));
+  }
+
+  // checks nearest and snapAll against brute force at each point
+  private static void assertSnaps(NetworkGraph graph, Coordinate[] points, double maxDistance) {
+    SnapIndex index = graph.getSnapIndex();
+    NetworkLocation[] snapped = index.snapAll(points, maxDistance);
+    int found = 0;
+    for (int i = 0; i < points.length; i++) {
+      String message = "point " + points[i];
+      List<NetworkLocation> nearest = bruteForce(graph, points[i].x, points[i].y);
+      NetworkLocation location = index.nearest(points[i].x, points[i].y, maxDistance);
+      if (nearest.get(0).getSnapDistance() > maxDistance) {
+        assertNull(message + " beyond the maximum distance", location);
+        assertNull(message + " snapped beyond the maximum distance", snapped[i]);
+        continue;
+      }
+      found++;
+      assertOneOf(message, nearest, location);
+      assertOneOf(message + " snapped", nearest, snapped[i]);
+    }
+    assertTrue("points snapped", found > 0);
+  }
+
+  private static void assertOneOf(String message, List<NetworkLocation> nearest, NetworkLocation location) {
+    assertNotNull(message, location);
+    assertEquals(message + " distance", nearest.get(0).getSnapDistance(), location.getSnapDistance(), TOLERANCE);
+    for (NetworkLocation candidate : nearest) {
+      if (candidate.getEdge() == location.getEdge()
+          && Math.abs(candidate.getOffset() - location.getOffset()) <= TOLERANCE
+          && Math.hypot(candidate.getX() - location.getX(), candidate.getY() - location.getY()) <= TOLERANCE) {
+        return;
+      }
+    }
+    throw new AssertionError(message + " snapped to " + location + ", not one of " + nearest);
+  }
+
+  // the projections of a point onto every segment of the network that are the closest to it, ties and all
+  private static List<NetworkLocation> bruteForce(NetworkGraph graph, double x, double y) {
+    List<NetworkLocation> nearest = new ArrayList<NetworkLocation>();
+    double best = Double.POSITIVE_INFINITY;
+    for (int edge = 0; edge < graph.edgeCount(); edge++) {
+      double offset = 0;
+      for (int v = graph.edgeVertexStart(edge); v < graph.edgeVertexEnd(edge) - 1; v++) {
+        double x0 = graph.vertexX(v);
+        double y0 = graph.vertexY(v);
+        double dx = graph.vertexX(v + 1) - x0;
+        double dy = graph.vertexY(v + 1) - y0;
+        double length = Math.hypot(dx, dy);
+        double f = length == 0 ? 0 : Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / (length * length)));
+        double px = x0 + f * dx;
+        double py = y0 + f * dy;
+        double distance = Math.hypot(px - x, py - y);
+        if (distance < best - TOLERANCE) {
+          nearest.clear();
+          best = distance;
+        }
+        if (distance <= best + TOLERANCE) {
+          nearest.add(new NetworkLocation(edge, Math.min(offset + f * length, graph.edgeLength(edge)), px, py,
+              distance));
+        }
+        offset += length;
+      }
+    }
+    return nearest;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Synthetic networks and comparisons shared by the search tests.
+ */
+final class TestNetworks {
+
+  private TestNetworks() {
+  }
+
+  /**
+   * A street grid of n by n nodes, with about one street in seven missing, the north-south streets bent, the odd
+   * diagonal and a loop hanging off the corner
+   *
+   * @param n
+   *          The number of nodes along a side
+   * @param spacing
+   *          The distance between neighbouring nodes
+   * @param seed
+   *          Seeds the streets left out and the bends
+   */
+  static NetworkGraph grid(int n, double spacing, long seed) {
+    return grid(n, spacing, seed, 0);
+  }
+
+  /**
+   * A street grid as {@link #grid(int, double, long)}, with zero length edges looping back to some of its nodes, such
+   * as are left where a road was digitised as a single repeated point
+   *
+   * @param zeroLengthEdges
+   *          The fraction of nodes with a zero length edge
+   */
+  static NetworkGraph grid(int n, double spacing, long seed, double zeroLengthEdges) {
+    Random random = new Random(seed);
+    NetworkGraph.Builder builder = new NetworkGraph.Builder();
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        double x = i * spacing;
+        double y = j * spacing;
+        if (i + 1 < n && random.nextDouble() < 0.85) {
+          builder.addEdge(line(x, y, x + spacing, y));
+        }
+        if (j + 1 < n && random.nextDouble() < 0.85) {
+          builder.addEdge(line(x, y, x + random.nextDouble() * spacing / 5, y + spacing / 2, x, y + spacing));
+        }
+        if (i + 1 < n && j + 1 < n && random.nextDouble() < 0.1) {
+          builder.addEdge(line(x, y, x + spacing, y + spacing));
+        }
+        if (zeroLengthEdges > 0 && random.nextDouble() < zeroLengthEdges) {
+          builder.addEdge(line(x, y, x, y));
+        }
+      }
+    }
+    builder.addEdge(line(0, 0, -spacing / 2, 0, -spacing / 2, -spacing / 2, 0, 0));
+    return builder.build(null);
+  }
+
+  static Coordinate[] line(double... xy) {
+    Coordinate[] coords = new Coordinate[xy.length / 2];
+    for (int i = 0; i < coords.length; i++) {
+      coords[i] = new Coordinate(xy[2 * i], xy[2 * i + 1]);
+    }
+    return coords;
+  }
+
+  /**
+   * @return The edges of a graph as a source of road features, as the batches read their networks
+   */
+  static SimpleFeatureSource roads(NetworkGraph graph) {
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.setName("roads");
+    stb.add("the_geom", LineString.class);
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(stb.buildFeatureType());
+    GeometryFactory geometryFactory = new GeometryFactory();
+    DefaultFeatureCollection roads = new DefaultFeatureCollection();
+    for (int edge = 0; edge < graph.edgeCount(); edge++) {
+      Coordinate[] coords = new Coordinate[graph.edgeVertexEnd(edge) - graph.edgeVertexStart(edge)];
+      for (int i = 0; i < coords.length; i++) {
+        int vertex = graph.edgeVertexStart(edge) + i;
+        coords[i] = new Coordinate(graph.vertexX(vertex), graph.vertexY(vertex));
+      }
+      sfb.add(geometryFactory.createLineString(coords));
+      roads.add(sfb.buildFeature("road." + edge));
+    }
+    return DataUtilities.source(roads);
+  }
+
+  /**
+   * @return Point features at the given places, as the batches read the points to buffer
+   */
+  static DefaultFeatureCollection points(Coordinate... coords) {
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.setName("points");
+    stb.add("the_geom", Point.class);
+    SimpleFeatureType type = stb.buildFeatureType();
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(type);
+    GeometryFactory geometryFactory = new GeometryFactory();
+    DefaultFeatureCollection points = new DefaultFeatureCollection();
+    for (int i = 0; i < coords.length; i++) {
+      sfb.add(geometryFactory.createPoint(coords[i]));
+      points.add(sfb.buildFeature("point." + i));
+    }
+    return points;
+  }
+
+  /**
+   * Origins at random places along random edges of a graph
+   */
+  static NetworkLocation[] randomOrigins(NetworkGraph graph, int count, Random random) {
+    NetworkLocation[] origins = new NetworkLocation[count];
+    for (int i = 0; i < count; i++) {
+      int edge = random.nextInt(graph.edgeCount());
+      origins[i] = new NetworkLocation(edge, random.nextDouble() * graph.edgeLength(edge), 0, 0, 0);
+    }
+    return origins;
+  }
+
+  /**
+   * Asserts that two service areas reach the same parts of the same edges, ignoring edges reached for less than the
+   * tolerance
+   */
+  static void assertSameReach(String message, ServiceArea expected, ServiceArea actual, double tolerance) {
+    Map<Integer, double[]> expectedIntervals = intervals(expected, tolerance);
+    Map<Integer, double[]> actualIntervals = intervals(actual, tolerance);
+    assertEquals(message + " reached edges", expectedIntervals.keySet(), actualIntervals.keySet());
+    for (Map.Entry<Integer, double[]> edge : expectedIntervals.entrySet()) {
+      double[] want = edge.getValue();
+      double[] got = actualIntervals.get(edge.getKey());
+      assertEquals(message + " intervals of edge " + edge.getKey(), want.length, got.length);
+      for (int k = 0; k < want.length; k++) {
+        assertEquals(message + " offset on edge " + edge.getKey(), want[k], got[k], tolerance);
+      }
+    }
+  }
+
+  /**
+   * @return The edges of a service area, including those it only touches, such as zero length edges
+   */
+  static Set<Integer> reachedEdges(ServiceArea serviceArea) {
+    Set<Integer> edges = new TreeSet<Integer>();
+    for (int i = 0; i < serviceArea.size(); i++) {
+      edges.add(serviceArea.edge(i));
+    }
+    return edges;
+  }
+
+  /**
+   * @return The reached intervals of each edge of a service area, as start and end offsets along the edge
+   */
+  static Map<Integer, double[]> intervals(ServiceArea serviceArea, double tolerance) {
+    Map<Integer, double[]> intervals = new TreeMap<Integer, double[]>();
+    double[] buffer = new double[6];
+    for (int i = 0; i < serviceArea.size(); i++) {
+      int count = serviceArea.reachedIntervals(i, buffer);
+      double length = 0;
+      for (int k = 0; k < count; k++) {
+        length += buffer[2 * k + 1] - buffer[2 * k];
+      }
+      if (length > tolerance) {
+        double[] edge = new double[2 * count];
+        System.arraycopy(buffer, 0, edge, 0, 2 * count);
+        intervals.put(serviceArea.edge(i), edge);
+      }
+    }
+    return intervals;
+  }
+}
@@ -18,6 +18,7 @@ import org.geotools.feature.FeatureCollectionIteration;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geojson.feature.FeatureJSON.*;
+import org.mccaughey.connectivity.WorkEstimator;
 import org.mccaughey.utilities.GeoJSONUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.geometry.aggregate.MultiPoint;
@@ -81,6 +82,21 @@ public class Sender implements Runnable{
 
     }
 
+    //Sends a message with the estimated seconds of work it will take, see QueuedWorkMetric
+    public void sendMessage(String s1, double estimatedSeconds){
+
+        try {
+            TextMessage message = session.createTextMessage(s1);
+            message.setDoubleProperty(WorkEstimator.ESTIMATED_SECONDS, estimatedSeconds);
+            producer.send(message);
+            System.out.println("Sent msg: '" + message.getText() + "' estimated at " + estimatedSeconds + "s");
+
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+
+    }
+
     public void close(){
         try {
             connection.close();
@@ -20,8 +20,19 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.mccaughey.ActiveMQ.QueuedWorkMetric;
 import org.mccaughey.ActiveMQ.Sender;
+import org.mccaughey.connectivity.EdgeBufferCache;
 import org.mccaughey.connectivity.NetworkBufferOMS;
+import org.mccaughey.connectivity.NetworkCleaner;
+import org.mccaughey.connectivity.NetworkGraph;
+import org.mccaughey.connectivity.PointBudget;
+import org.mccaughey.connectivity.ReachTable;
+import org.mccaughey.connectivity.RegionSimplifier;
+import org.mccaughey.connectivity.SearchMode;
+import org.mccaughey.connectivity.ServiceAreaCache;
+import org.mccaughey.connectivity.TiledNetwork;
+import org.mccaughey.connectivity.WorkEstimator;
 import org.mccaughey.utilities.GeoJSONUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 
@@ -42,6 +53,24 @@ public class GeneratePolygon implements MessageListener,Runnable {
     private static Sender sender_1;
     private static Sender sender_2;
     private static Sender sender_3;
+    // The road network is read once and shared by every message
+    private static SimpleFeatureSource roads;
+    // The search mode in use, Dijkstra if the reach table asked for cannot be used
+    private static SearchMode searchMode = Config.SEARCH_MODE;
+    // The road network tiles read so far, shared by every message
+    private static TiledNetwork tiledRoads;
+
+    //Shared by every message, points that snap to the same place reuse the same region
+    private static final ServiceAreaCache serviceAreaCache = new ServiceAreaCache(Config.SERVICE_AREA_CACHE_SIZE);
+    private static final EdgeBufferCache edgeBufferCache = new EdgeBufferCache(Config.EDGE_BUFFER_CACHE_SIZE);
+    //No budget at all unless a limit is set, so regions only get the BudgetExceeded attribute when it can be set
+    private static final PointBudget budget =
+            Config.POINT_BUDGET_MILLIS > 0 || Config.POINT_BUDGET_EDGES > 0 || Config.POINT_BUDGET_UNIONS > 0
+                    ? new PointBudget(Config.POINT_BUDGET_MILLIS, Config.POINT_BUDGET_EDGES,
+                            Config.POINT_BUDGET_UNIONS, PointBudget.Fallback.HULL) : null;
+    private static final RegionSimplifier simplifier =
+            Config.REGION_SIMPLIFY_TOLERANCE > 0 || Config.REGION_GRID_SIZE > 0
+                    ? new RegionSimplifier(Config.REGION_SIMPLIFY_TOLERANCE, Config.REGION_GRID_SIZE) : null;
 
     public static void main(String[] argv) throws Exception {
 
@@ -49,6 +78,10 @@ public class GeneratePolygon implements MessageListener,Runnable {
         Thread receiver = new Thread(l);
         receiver.start();
 
+        //Serve the estimated work waiting in the queue for the autoscaler
+        Thread metricThread = new Thread(new QueuedWorkMetric(subject_Receive, Config.METRICS_PORT));
+        metricThread.start();
+
         sender_1 = new Sender("PolygonConnectivity");
         Thread senderThread_1 = new Thread(sender_1);
         senderThread_1.start();
@@ -108,17 +141,28 @@ public class GeneratePolygon implements MessageListener,Runnable {
                 SimpleFeature point = fjson.readFeature(inputStream);
 
                 SimpleFeature[] pointArray = {point};
-                URL roadsUrl = new File("./src/main/java/org/mccaughey/psma_cut_projected.geojson.gz").toURI().toURL();
 
                  /*
                 Step 1. Generate Polygons (Regions).
                 * */
 
                 NetworkBufferOMS networkBufferOMS = new NetworkBufferOMS();
-                networkBufferOMS.network = DataUtilities.source(GeoJSONUtilities.readFeatures(roadsUrl));
+                if (Config.SEARCH_MODE == SearchMode.REACH_TABLE
+                        || Config.SEARCH_MODE == SearchMode.CONTRACTION_HIERARCHY) {
+                    //The reach table and the hierarchy cover the whole network, so they need the whole network
+                    //loaded, and a graph that does not grow so they are only prepared once
+                    networkBufferOMS.network = getRoads();
+                } else {
+                    networkBufferOMS.tiledNetwork = getTiledRoads();
+                }
                 networkBufferOMS.points = DataUtilities.source(pointArray);
                 networkBufferOMS.bufferSize = Config.BUFFER_SIZE;
                 networkBufferOMS.distance = Config.DISTANCE;
+                networkBufferOMS.searchMode = getSearchMode();
+                networkBufferOMS.serviceAreaCache = serviceAreaCache;
+                networkBufferOMS.edgeBufferCache = edgeBufferCache;
+                networkBufferOMS.budget = budget;
+                networkBufferOMS.simplifier = simplifier;
                 networkBufferOMS.run();
 
                 //The region is a SimpleFeatureSource object
@@ -162,9 +206,17 @@ public class GeneratePolygon implements MessageListener,Runnable {
                     fout_0.flush();
                     fout_0.close();
 
-                    sender_1.sendMessage(index + "--" + msg);
-                    sender_2.sendMessage(index + "--" + msg);
-                    sender_3.sendMessage(index + "--" + msg);
+                    //Pass the estimate of the point on, the work of the later stages grows with the region too
+                    if (message.propertyExists(WorkEstimator.ESTIMATED_SECONDS)) {
+                        double estimate = message.getDoubleProperty(WorkEstimator.ESTIMATED_SECONDS);
+                        sender_1.sendMessage(index + "--" + msg, estimate);
+                        sender_2.sendMessage(index + "--" + msg, estimate);
+                        sender_3.sendMessage(index + "--" + msg, estimate);
+                    } else {
+                        sender_1.sendMessage(index + "--" + msg);
+                        sender_2.sendMessage(index + "--" + msg);
+                        sender_3.sendMessage(index + "--" + msg);
+                    }
 
                     //Change the counter value
                     File file_counter = new File("./src/main/java/org/mccaughey/output/counter_region.json");
@@ -194,4 +246,43 @@ public class GeneratePolygon implements MessageListener,Runnable {
 
     }
 
+    private static synchronized SimpleFeatureSource getRoads() throws IOException {
+        if (roads == null) {
+            URL roadsUrl = NetworkCleaner.cleaned(new File(Config.ROADS_FILE), new File(Config.CLEAN_ROADS_FILE))
+                    .toURI().toURL();
+            SimpleFeatureSource source = DataUtilities.source(GeoJSONUtilities.readFeatures(roadsUrl));
+            if (Config.SEARCH_MODE == SearchMode.CONTRACTION_HIERARCHY) {
+                //Contract before the first point rather than during it
+                NetworkGraph.forSource(source).getContractionHierarchy();
+            } else {
+                //Attach the precomputed reach table, a missing or stale table (eg written before the roads were
+                //cleaned again) falls back to Dijkstra rather than failing every message
+                File reachTableFile = new File(Config.REACH_TABLE_FILE);
+                try {
+                    NetworkGraph.forSource(source).setReachTable(ReachTable.open(reachTableFile));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Cannot use reach table " + reachTableFile + ", searching with Dijkstra: " + e);
+                    searchMode = SearchMode.DIJKSTRA;
+                } catch (IOException e) {
+                    System.out.println("Cannot use reach table " + reachTableFile + ", searching with Dijkstra: " + e);
+                    searchMode = SearchMode.DIJKSTRA;
+                }
+            }
+            roads = source;
+        }
+        return roads;
+    }
+
+    private static synchronized SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    private static synchronized TiledNetwork getTiledRoads() throws IOException {
+        if (tiledRoads == null) {
+            File cleanRoads = NetworkCleaner.cleaned(new File(Config.ROADS_FILE), new File(Config.CLEAN_ROADS_FILE));
+            tiledRoads = TiledNetwork.open(cleanRoads, new File(Config.ROAD_TILE_DIRECTORY), Config.ROAD_TILE_SIZE);
+        }
+        return tiledRoads;
+    }
+
 }
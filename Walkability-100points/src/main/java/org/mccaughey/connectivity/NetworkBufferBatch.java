@@ -17,16 +17,28 @@
 package org.mccaughey.connectivity;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -43,6 +55,7 @@ import org.slf4j.LoggerFactory;
 import au.org.aurin.gis.SplitMultipointUtil;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.MultiPolygon;
@@ -61,6 +74,8 @@ public class NetworkBufferBatch { // extends RecursiveAction {
   // */
   // private static final long serialVersionUID = 1L;
   static final Logger LOGGER = LoggerFactory.getLogger(NetworkBufferBatch.class);
+  // points worked on at once by createBuffers
+  private static final int DEFAULT_WINDOW = 4 * Runtime.getRuntime().availableProcessors();
   private SimpleFeatureSource network;
   private SimpleFeatureCollection points;
   private DefaultFeatureCollection buffers;
@@ -68,6 +83,18 @@ public class NetworkBufferBatch { // extends RecursiveAction {
   private Double distance;
   private Double bufferSize;
   private int pointsPerThread;
+  private SearchMode searchMode = SearchMode.PATH_ENUMERATION;
+  private Double tileSize;
+  private BufferUnion bufferUnion = new BufferUnion();
+  private RegionMode regionMode = RegionMode.BUFFER;
+  private Double cellSize;
+  private Double hullEdgeLength;
+  private ServiceAreaCache serviceAreaCache;
+  private TiledNetwork tiledNetwork;
+  private PointBudget budget;
+  private EdgeBufferCache edgeBufferCache;
+  private WorkEstimator workEstimator;
+  private final AtomicInteger overBudget = new AtomicInteger();
 
   /**
    * Generates network buffers for a set of points
@@ -92,6 +119,111 @@ public class NetworkBufferBatch { // extends RecursiveAction {
     this.pointsPerThread = 1000; // TODO: make this dynamic
   }
 
+  /**
+   * @param searchMode
+   *          The graph traversal used to find each service area, defaults to PATH_ENUMERATION
+   */
+  public void setSearchMode(SearchMode searchMode) {
+    this.searchMode = searchMode;
+  }
+
+  /**
+   * @param bufferUnion
+   *          The engine used to buffer each service area, sets the precision and quadrant segments of the buffers
+   */
+  public void setBufferUnion(BufferUnion bufferUnion) {
+    this.bufferUnion = bufferUnion;
+  }
+
+  /**
+   * @param regionMode
+   *          How the polygon of each service area is made, defaults to BUFFER
+   */
+  public void setRegionMode(RegionMode regionMode) {
+    this.regionMode = regionMode;
+  }
+
+  /**
+   * @param cellSize
+   *          The grid cell width of RASTER regions, defaults to a quarter of the buffer size
+   */
+  public void setCellSize(Double cellSize) {
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * @param hullEdgeLength
+   *          The tightness of CONCAVE_HULL regions, the longest gap between edge vertices that is filled in, defaults
+   *          to an eighth of the network distance
+   */
+  public void setHullEdgeLength(Double hullEdgeLength) {
+    this.hullEdgeLength = hullEdgeLength;
+  }
+
+  /**
+   * @param serviceAreaCache
+   *          Reuses the service areas and regions of points that snap to the same network location, may be shared
+   *          between batches with the same region settings. Only used with the network graph search modes.
+   */
+  public void setServiceAreaCache(ServiceAreaCache serviceAreaCache) {
+    this.serviceAreaCache = serviceAreaCache;
+  }
+
+  /**
+   * @param edgeBufferCache
+   *          Reuses the buffers of whole edges across the points of BUFFER regions, may be shared between batches.
+   *          Only used with the network graph search modes.
+   */
+  public void setEdgeBufferCache(EdgeBufferCache edgeBufferCache) {
+    this.edgeBufferCache = edgeBufferCache;
+  }
+
+  /**
+   * @param tiledNetwork
+   *          Road network tiles to fault in whenever a point reaches past the network loaded so far, the network given
+   *          to the constructor should be a source from the same tiles
+   */
+  public void setTiledNetwork(TiledNetwork tiledNetwork) {
+    this.tiledNetwork = tiledNetwork;
+  }
+
+  /**
+   * @param budget
+   *          Limits the time and work spent on each point, points over budget get a convex hull region or are left
+   *          out as the budget says. Null for no limit (the default).
+   */
+  public void setBudget(PointBudget budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * @param workEstimator
+   *          Estimates the cost of each point, so the dearest points are started first and a few slow points do not
+   *          finish long after the rest. Null to start the points in order (the default).
+   */
+  public void setWorkEstimator(WorkEstimator workEstimator) {
+    this.workEstimator = workEstimator;
+  }
+
+  /**
+   * @return The number of points that went over budget so far, whether they fell back to a hull or failed
+   */
+  public int getOverBudgetCount() {
+    return overBudget.get();
+  }
+
+  /**
+   * Groups the points into square tiles so the network is filtered, and the graph and snapping index built, once per
+   * tile instead of once per point. Each tile reads the network within distance + bufferSize of its bounds, so results
+   * are the same as for individual points.
+   *
+   * @param tileSize
+   *          The width of a tile, or null to process each point on its own (the default)
+   */
+  public void setTileSize(Double tileSize) {
+    this.tileSize = tileSize;
+  }
+
   /**
    *
    * @return A SimpleFeatureCollection of the service area networks for all points of interest
@@ -106,26 +238,402 @@ public class NetworkBufferBatch { // extends RecursiveAction {
    * @throws IOException
    */
   public SimpleFeatureCollection createBuffers() throws IOException {
-    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    if (tileSize != null) {
+      return createBuffersByTile();
+    }
+    if (workEstimator != null) {
+      return createBuffersLongestFirst();
+    }
+    streamBuffers(new RegionSink() {
+      public void accept(SimpleFeature region) {
+        buffers.add(region);
+        LOGGER.debug("Completing Buffer");
+      }
+    }, DEFAULT_WINDOW, true);
+    LOGGER.debug("Completed {} buffers for {} points", buffers.size(), points.size());
+    return buffers;
+  }
 
+  /**
+   * Generates the buffers one point at a time, passing each to a sink as soon as it is done, so memory stays bounded
+   * by the window whatever the number of points and the sink can start on the first regions straight away. Points are
+   * read lazily and a new point is only started once an earlier region has gone to the sink. Points that fail are
+   * logged and skipped, as with {@link #createBuffers()}. The tile size is not used, as tiles need every point read up
+   * front.
+   *
+   * @param sink
+   *          Receives the regions
+   * @param window
+   *          The most points being worked on or waiting for the sink at once
+   * @param ordered
+   *          True to pass regions to the sink in the order of the points, holding back regions that finish early
+   *          within the window, false to pass them on in the order they finish
+   * @return The number of regions passed to the sink
+   * @throws IOException
+   *           if the sink fails, no further points are started
+   */
+  public int streamBuffers(RegionSink sink, int window, boolean ordered) throws IOException {
+    if (window <= 0) {
+      throw new IllegalArgumentException("Window must be positive: " + window);
+    }
+    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    CompletionService<SimpleFeature> completionService = new ExecutorCompletionService<SimpleFeature>(
+        executorService);
+    // futures in point order, only used when ordered
+    Deque<Future<SimpleFeature>> pending = new ArrayDeque<Future<SimpleFeature>>();
+    int inFlight = 0;
+    int emitted = 0;
+    int count = 0;
+    SimpleFeatureIterator features = points.features();
     try {
-      List<Future> futures = new ArrayList<Future>();
-      int count = 0;
-      SimpleFeatureIterator features = points.features();
       while (features.hasNext()) {
         for (SimpleFeature point : SplitMultipointUtil.getIndividualPoints(features.next())) {
           LOGGER.debug("Feature {} : Buffer count {}", point.getID(), ++count);
-          Buffernator ac = new Buffernator(point, network);
-          Future future = executorService.submit(ac);
-          futures.add(future);
+          if (inFlight == window) {
+            emitted += emit(ordered ? pending.poll() : completionService.take(), sink);
+            inFlight--;
+          }
+          Buffernator buffernator = new Buffernator(point, network);
+          if (ordered) {
+            pending.add(executorService.submit(buffernator));
+          } else {
+            completionService.submit(buffernator);
+          }
+          inFlight++;
+        }
+      }
+      while (inFlight > 0) {
+        emitted += emit(ordered ? pending.poll() : completionService.take(), sink);
+        inFlight--;
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      features.close();
+      executorService.shutdownNow();
+    }
+    return emitted;
+  }
+
+  /**
+   * Generates the regions of every point at several network distances. Each point is snapped and searched once, to the
+   * longest distance, and the service areas of the shorter distances are derived from that search with
+   * {@link ServiceArea#within(double)}. PATH_ENUMERATION keeps no node distances, so it still traverses once per
+   * distance. A point is left out at the distances it is too far from the network for, as it would be in a batch of
+   * that distance alone. The tile size and the service area cache are not used.
+   *
+   * @param distances
+   *          The network distances, in place of the distance given to the constructor
+   * @return The regions of the points at each distance, in increasing order of distance and in the order of the points
+   * @throws IOException
+   */
+  public Map<Double, SimpleFeatureCollection> createBuffers(Collection<Double> distances) throws IOException {
+    if (distances.isEmpty()) {
+      throw new IllegalArgumentException("At least one distance is needed");
+    }
+    double[] sorted = sortedDistances(distances);
+    Map<Double, SimpleFeatureCollection> regions = new LinkedHashMap<Double, SimpleFeatureCollection>();
+    for (double networkDistance : sorted) {
+      regions.put(networkDistance, new DefaultFeatureCollection());
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    Deque<Future<SimpleFeature[]>> pending = new ArrayDeque<Future<SimpleFeature[]>>();
+    SimpleFeatureIterator features = points.features();
+    try {
+      while (features.hasNext()) {
+        for (SimpleFeature point : SplitMultipointUtil.getIndividualPoints(features.next())) {
+          if (pending.size() == DEFAULT_WINDOW) {
+            addRegions(pending.poll(), sorted, regions);
+          }
+          pending.add(executorService.submit(new MultiBuffernator(point, network, sorted)));
+        }
+      }
+      while (!pending.isEmpty()) {
+        addRegions(pending.poll(), sorted, regions);
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      features.close();
+      executorService.shutdownNow();
+    }
+    for (Map.Entry<Double, SimpleFeatureCollection> entry : regions.entrySet()) {
+      LOGGER.debug("Completed {} buffers at {} for {} points", new Object[] { entry.getValue().size(), entry.getKey(),
+          points.size() });
+    }
+    return regions;
+  }
+
+  /**
+   * @return The distinct distances in increasing order, as the several distances of a batch are searched
+   */
+  static double[] sortedDistances(Collection<Double> distances) {
+    TreeSet<Double> unique = new TreeSet<Double>(distances);
+    double[] sorted = new double[unique.size()];
+    int d = 0;
+    for (Double networkDistance : unique) {
+      sorted[d++] = networkDistance;
+    }
+    return sorted;
+  }
+
+  /**
+   * Finds the reached edges of every point without making their polygons, for consumers that only need the network
+   * reached or will make the polygons of a few regions themselves with {@link LazyRegion#getGeometry()}. A polygon is
+   * made with the buffer union and the edge buffer cache of the batch, whatever the region mode. The budget is charged
+   * for the search alone, a point that goes over keeps the part of its service area found so far unless the fallback is
+   * to fail. The tile size and the service area cache are not used.
+   *
+   * @return The regions of the points by point id, in the order of the points
+   * @throws IOException
+   */
+  public Map<String, LazyRegion> createLazyRegions() throws IOException {
+    if (searchMode == SearchMode.PATH_ENUMERATION) {
+      throw new IllegalArgumentException("Lazy regions need a network graph search mode");
+    }
+    Map<String, LazyRegion> regions = new LinkedHashMap<String, LazyRegion>();
+    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    Deque<Future<LazyRegion>> pending = new ArrayDeque<Future<LazyRegion>>();
+    Deque<String> ids = new ArrayDeque<String>();
+    SimpleFeatureIterator features = points.features();
+    try {
+      while (features.hasNext()) {
+        for (final SimpleFeature point : SplitMultipointUtil.getIndividualPoints(features.next())) {
+          if (pending.size() == DEFAULT_WINDOW) {
+            addLazyRegion(pending.poll(), ids.poll(), regions);
+          }
+          pending.add(executorService.submit(new Callable<LazyRegion>() {
+            public LazyRegion call() throws IOException {
+              return createLazyRegion(point);
+            }
+          }));
+          ids.add(String.valueOf(point.getID()));
         }
       }
-      for (Future future : futures) {
+      while (!pending.isEmpty()) {
+        addLazyRegion(pending.poll(), ids.poll(), regions);
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      features.close();
+      executorService.shutdownNow();
+    }
+    LOGGER.debug("Completed {} lazy regions for {} points", regions.size(), points.size());
+    return regions;
+  }
+
+  private LazyRegion createLazyRegion(SimpleFeature point) throws IOException {
+    Envelope reach = new Envelope(((Point) point.getDefaultGeometry()).getCoordinate());
+    reach.expandBy(distance + bufferSize);
+    PointBudget.Meter meter = budget == null ? null : budget.start();
+    ServiceArea serviceArea = NetworkBuffer.findReachedEdges(networkWithin(network, reach), point, distance,
+        bufferSize, searchMode, meter);
+    if (meter != null && meter.isExceeded()) {
+      overBudget.incrementAndGet();
+      if (budget.getFallback() == PointBudget.Fallback.FAIL) {
+        throw new BudgetExceededException("Point " + point.getID() + " over budget, " + meter.getReason());
+      }
+      LOGGER.warn("Point {} over budget, {}, keeping the network reached so far", point.getID(), meter.getReason());
+    }
+    return new LazyRegion(serviceArea, bufferSize, bufferUnion, edgeBufferCache);
+  }
+
+  private void addLazyRegion(Future<LazyRegion> future, String id, Map<String, LazyRegion> regions)
+      throws InterruptedException {
+    try {
+      regions.put(id, future.get());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BudgetExceededException) {
+        LOGGER.warn("Region search failed: {}", e.getCause().getMessage());
+      } else {
+        LOGGER.error("Region search failed for point " + id, e.getCause());
+      }
+    }
+  }
+
+  // waits for the regions of a point and adds them to the collection of each distance
+  private void addRegions(Future<SimpleFeature[]> future, double[] distances,
+      Map<Double, SimpleFeatureCollection> regions) throws InterruptedException {
+    try {
+      SimpleFeature[] pointRegions = future.get();
+      for (int i = 0; i < distances.length; i++) {
+        if (pointRegions[i] != null) {
+          ((DefaultFeatureCollection) regions.get(distances[i])).add(pointRegions[i]);
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BudgetExceededException) {
+        LOGGER.warn("Buffer generation failed: {}", e.getCause().getMessage());
+      } else {
+        LOGGER.error("Buffer generation failed for a point", e);
+      }
+    }
+  }
+
+  // waits for a region and passes it to the sink, returns the number of regions passed on
+  private int emit(Future<SimpleFeature> future, RegionSink sink) throws IOException, InterruptedException {
+    try {
+      SimpleFeature region = future.get();
+      if (region == null) {
+        return 0;
+      }
+      sink.accept(region);
+      return 1;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BudgetExceededException) {
+        LOGGER.warn("Buffer generation failed: {}", e.getCause().getMessage());
+      } else {
+        LOGGER.error("Buffer generation failed for a point", e);
+      }
+      return 0;
+    }
+  }
+
+  // starts the points in decreasing order of estimated cost, a window at a time as createBuffers does, the buffers are
+  // still kept in the order of the points
+  private SimpleFeatureCollection createBuffersLongestFirst() throws IOException {
+    List<SimpleFeature> allPoints = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator features = points.features();
+    try {
+      while (features.hasNext()) {
+        allPoints.addAll(SplitMultipointUtil.getIndividualPoints(features.next()));
+      }
+    } finally {
+      features.close();
+    }
+    final double[] estimates = new double[allPoints.size()];
+    Integer[] order = new Integer[allPoints.size()];
+    double total = 0;
+    for (int i = 0; i < estimates.length; i++) {
+      estimates[i] = estimateSeconds(allPoints.get(i));
+      total += estimates[i];
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(estimates[b], estimates[a]);
+      }
+    });
+    LOGGER.debug("Estimated {} seconds of work for {} points", total, allPoints.size());
+
+    long start = System.currentTimeMillis();
+    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // regions by point index, put back in the order of the points once all are done
+    SimpleFeature[] regions = new SimpleFeature[allPoints.size()];
+    Deque<Future<SimpleFeature>> pending = new ArrayDeque<Future<SimpleFeature>>();
+    Deque<Integer> indices = new ArrayDeque<Integer>();
+    try {
+      for (Integer i : order) {
+        if (pending.size() == DEFAULT_WINDOW) {
+          emitAt(pending.poll(), indices.poll(), regions);
+        }
+        pending.add(executorService.submit(new Buffernator(allPoints.get(i), network)));
+        indices.add(i);
+      }
+      while (!pending.isEmpty()) {
+        emitAt(pending.poll(), indices.poll(), regions);
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      executorService.shutdownNow();
+    }
+    for (SimpleFeature region : regions) {
+      if (region != null) {
+        buffers.add(region);
+      }
+    }
+    LOGGER.debug("Completed {} buffers for {} points in {}ms", new Object[] { buffers.size(), allPoints.size(),
+        System.currentTimeMillis() - start });
+    return buffers;
+  }
+
+  // waits for the region of the point at index and puts it there
+  private void emitAt(Future<SimpleFeature> future, final int index, final SimpleFeature[] regions)
+      throws IOException, InterruptedException {
+    emit(future, new RegionSink() {
+      public void accept(SimpleFeature region) {
+        regions[index] = region;
+      }
+    });
+  }
+
+  private double estimateSeconds(SimpleFeature point) {
+    Point geom = (Point) point.getDefaultGeometry();
+    return workEstimator.estimateSeconds(geom.getX(), geom.getY(), distance + bufferSize);
+  }
+
+  private SimpleFeatureCollection createBuffersByTile() throws IOException {
+    List<SimpleFeature> allPoints = new ArrayList<SimpleFeature>();
+    Map<Long, List<Integer>> tiles = new LinkedHashMap<Long, List<Integer>>();
+    SimpleFeatureIterator features = points.features();
+    try {
+      while (features.hasNext()) {
+        for (SimpleFeature point : SplitMultipointUtil.getIndividualPoints(features.next())) {
+          Point geom = (Point) point.getDefaultGeometry();
+          long column = (long) Math.floor(geom.getX() / tileSize);
+          long row = (long) Math.floor(geom.getY() / tileSize);
+          Long key = (column << 32) ^ (row & 0xffffffffL);
+          List<Integer> tile = tiles.get(key);
+          if (tile == null) {
+            tile = new ArrayList<Integer>();
+            tiles.put(key, tile);
+          }
+          tile.add(allPoints.size());
+          allPoints.add(point);
+        }
+      }
+    } finally {
+      features.close();
+    }
+    LOGGER.debug("Grouped {} points into {} tiles", allPoints.size(), tiles.size());
+
+    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      List<Future<List<SimpleFeature>>> futures = new ArrayList<Future<List<SimpleFeature>>>();
+      List<List<Integer>> tileIndices = new ArrayList<List<Integer>>();
+      List<List<Integer>> tileOrder = new ArrayList<List<Integer>>(tiles.values());
+      if (workEstimator != null) {
+        // the dearest tiles first, the buffers are put back in the order of the points whatever the tile order
+        final Map<List<Integer>, Double> tileEstimates = new IdentityHashMap<List<Integer>, Double>();
+        for (List<Integer> tile : tileOrder) {
+          double estimate = 0;
+          for (Integer index : tile) {
+            estimate += estimateSeconds(allPoints.get(index));
+          }
+          tileEstimates.put(tile, estimate);
+        }
+        Collections.sort(tileOrder, new Comparator<List<Integer>>() {
+          public int compare(List<Integer> a, List<Integer> b) {
+            return Double.compare(tileEstimates.get(b), tileEstimates.get(a));
+          }
+        });
+      }
+      for (List<Integer> tile : tileOrder) {
+        List<SimpleFeature> tilePoints = new ArrayList<SimpleFeature>();
+        for (Integer index : tile) {
+          tilePoints.add(allPoints.get(index));
+        }
+        futures.add(executorService.submit(new TileBuffernator(tilePoints)));
+        tileIndices.add(tile);
+      }
+      SimpleFeature[] results = new SimpleFeature[allPoints.size()];
+      for (int t = 0; t < futures.size(); t++) {
         try {
-          buffers.add((SimpleFeature) (future.get()));
-          LOGGER.debug("Completing Buffer");
+          List<SimpleFeature> tileBuffers = futures.get(t).get();
+          for (int i = 0; i < tileBuffers.size(); i++) {
+            results[tileIndices.get(t).get(i)] = tileBuffers.get(i);
+          }
         } catch (ExecutionException e) {
-          LOGGER.error("Buffer generation failed for a point", e);
+          LOGGER.error("Buffer generation failed for a tile of " + tileIndices.get(t).size() + " points", e);
+        }
+      }
+      // keep the buffers in the order of the points
+      for (SimpleFeature buffer : results) {
+        if (buffer != null) {
+          buffers.add(buffer);
         }
       }
       LOGGER.debug("Completed {} buffers for {} points", buffers.size(), points.size());
@@ -134,10 +642,117 @@ public class NetworkBufferBatch { // extends RecursiveAction {
     } finally {
       executorService.shutdownNow();
     }
-
     return buffers;
   }
 
+  // finds the service area of a point and makes its region, going through the cache when there is one
+  private SimpleFeature createServiceAreaRegion(SimpleFeatureSource source, final SimpleFeature point)
+      throws IOException {
+    if (searchMode == SearchMode.PATH_ENUMERATION) {
+      PointBudget.Meter meter = budget == null ? null : budget.start();
+      Map serviceArea = NetworkBuffer.findServiceArea(source, point, distance, bufferSize, searchMode, meter);
+      LOGGER.debug("Buffering service network");
+      return createRegionWithinBudget(null, serviceArea, point, distance, meter);
+    }
+    if (serviceAreaCache == null) {
+      PointBudget.Meter meter = budget == null ? null : budget.start();
+      ServiceArea serviceArea = NetworkBuffer.findReachedEdges(source, point, distance, bufferSize, searchMode, meter);
+      LOGGER.debug("Buffering service network");
+      return createRegionWithinBudget(serviceArea, null, point, distance, meter);
+    }
+    final NetworkGraph graph = NetworkGraph.forSource(source);
+    final NetworkLocation origin = NetworkBuffer.snapToNetwork(graph, point, distance + bufferSize);
+    ServiceAreaCache.Entry entry = serviceAreaCache.get(graph, origin, distance, bufferSize, regionMode,
+        regionSettings(), new Callable<ServiceAreaCache.Entry>() {
+          public ServiceAreaCache.Entry call() {
+            PointBudget.Meter meter = budget == null ? null : budget.start();
+            ServiceArea serviceArea = NetworkBuffer.findReachedEdges(graph, origin, distance, searchMode, meter);
+            SimpleFeature region = createRegionWithinBudget(serviceArea, null, point, distance, meter);
+            if (region == null) {
+              return new ServiceAreaCache.Entry(null);
+            }
+            // the cache hands fallbacks to the points waiting on them but does not keep them
+            return new ServiceAreaCache.Entry((Geometry) region.getDefaultGeometry(), region.getUserData());
+          }
+        });
+    if (entry.getRegion() == null) {
+      return null;
+    }
+    SimpleFeature region = NetworkBuffer.buildFeatureFromGeometry(point, entry.getRegion(),
+        String.valueOf(point.getID()));
+    region.getUserData().putAll(entry.getUserData());
+    return regionMode == RegionMode.RASTER ? withAreaErrorBound(region) : region;
+  }
+
+  // gives a region the area error bound attribute raster regions are made with, from its user data
+  private static SimpleFeature withAreaErrorBound(SimpleFeature region) {
+    return NetworkBuffer.addAttribute(region, RasterRegion.AREA_ERROR_BOUND_ATTRIBUTE, Double.class,
+        region.getUserData().get(RasterRegion.AREA_ERROR_BOUND));
+  }
+
+  // everything besides the mode, distance and buffer size that changes the region of a service area
+  private List<Object> regionSettings() {
+    return Arrays.<Object> asList(cellSize, hullEdgeLength, bufferUnion);
+  }
+
+  // makes the region of a point, falling back as the budget says once the search or the union has gone over. The
+  // edges are given either as the service area of a graph search or as the edge features of path enumeration.
+  private SimpleFeature createRegionWithinBudget(ServiceArea reached, Map serviceArea, SimpleFeature point,
+      double networkDistance, PointBudget.Meter meter) {
+    if (meter == null) {
+      return createRegion(reached, serviceArea, point, networkDistance, null);
+    }
+    if (!meter.isExceeded()) {
+      try {
+        return createRegion(reached, serviceArea, point, networkDistance, meter);
+      } catch (BudgetExceededException e) {
+        LOGGER.debug("Region of point {} over budget", point.getID());
+      }
+    }
+    overBudget.incrementAndGet();
+    String reason = meter.getReason();
+    if (budget.getFallback() == PointBudget.Fallback.FAIL) {
+      throw new BudgetExceededException("Point " + point.getID() + " over budget, " + reason);
+    }
+    LOGGER.warn("Point {} over budget, {}, using the convex hull of the network reached", point.getID(), reason);
+    SimpleFeature region = NetworkBuffer.createConvexHullFromEdges(serviceArea == null ? reached.toEdgeFeatures()
+        : serviceArea, bufferSize, point, String.valueOf(point.getID()));
+    region.getUserData().put(PointBudget.BUDGET_EXCEEDED, reason);
+    return regionMode == RegionMode.RASTER ? withAreaErrorBound(region) : region;
+  }
+
+  // the network to search within an area, faulting in tiles when the area reaches past the loaded network
+  private SimpleFeatureSource networkWithin(SimpleFeatureSource source, Envelope area) throws IOException {
+    if (tiledNetwork == null) {
+      return source;
+    }
+    return tiledNetwork.sourceFor(area);
+  }
+
+  private SimpleFeature createRegion(ServiceArea reached, Map serviceArea, SimpleFeature point,
+      double networkDistance, PointBudget.Meter meter) {
+    String id = String.valueOf(point.getID());
+    if (regionMode == RegionMode.BUFFER && reached != null && edgeBufferCache != null) {
+      return NetworkBuffer.createBufferFromServiceArea(reached, bufferSize, point, id, bufferUnion, edgeBufferCache,
+          meter);
+    }
+    if (serviceArea == null) {
+      serviceArea = reached.toEdgeFeatures();
+    }
+    switch (regionMode) {
+      case RASTER:
+        Double size = cellSize == null ? bufferSize / 4 : cellSize;
+        return NetworkBuffer.createRasterRegionFromEdges(serviceArea, bufferSize, size, point, id);
+      case CONVEX_HULL:
+        return NetworkBuffer.createConvexHullFromEdges(serviceArea, bufferSize, point, id);
+      case CONCAVE_HULL:
+        Double edgeLength = hullEdgeLength == null ? networkDistance / 8 : hullEdgeLength;
+        return NetworkBuffer.createConcaveHullFromEdges(serviceArea, bufferSize, edgeLength, point, id);
+      default:
+        return NetworkBuffer.createBufferFromEdges(serviceArea, bufferSize, point, id, bufferUnion, meter);
+    }
+  }
+
   private List<SimpleFeature> getIndividualPoints(SimpleFeature geometryFeature) throws IOException {
     List<SimpleFeature> points = new ArrayList<SimpleFeature>();
     points.addAll(getPointFeatures(geometryFeature));
@@ -226,12 +841,112 @@ public class NetworkBufferBatch { // extends RecursiveAction {
 
     public SimpleFeature call() throws IOException {
       LOGGER.debug("Calculating service network");
-      Map serviceArea = NetworkBuffer.findServiceArea(network, point, distance, bufferSize);
+      Envelope reach = new Envelope(((Point) point.getDefaultGeometry()).getCoordinate());
+      reach.expandBy(distance + bufferSize);
+      return createServiceAreaRegion(networkWithin(network, reach), point);
+    }
+  }
 
-      LOGGER.debug("Buffering service network");
-      SimpleFeature networkBuffer = NetworkBuffer.createBufferFromEdges(serviceArea, bufferSize, point,
-          String.valueOf(point.getID()));
-      return networkBuffer;
+  /**
+   * Generates the regions of one point at several distances from a single search
+   */
+  class MultiBuffernator implements Callable<SimpleFeature[]> {
+    private SimpleFeature point;
+    private SimpleFeatureSource network;
+    private double[] distances;
+
+    MultiBuffernator(SimpleFeature point, SimpleFeatureSource network, double[] distances) {
+      this.point = point;
+      this.network = network;
+      this.distances = distances;
+    }
+
+    public SimpleFeature[] call() throws IOException {
+      double longest = distances[distances.length - 1];
+      Envelope reach = new Envelope(((Point) point.getDefaultGeometry()).getCoordinate());
+      reach.expandBy(longest + bufferSize);
+      SimpleFeatureSource source = networkWithin(network, reach);
+      PointBudget.Meter meter = budget == null ? null : budget.start();
+      SimpleFeature[] regions = new SimpleFeature[distances.length];
+      if (searchMode == SearchMode.PATH_ENUMERATION) {
+        for (int i = 0; i < distances.length; i++) {
+          Map serviceArea = NetworkBuffer.findServiceArea(source, point, distances[i], bufferSize, searchMode, meter);
+          regions[i] = createRegionWithinBudget(null, serviceArea, point, distances[i], meter);
+        }
+        return regions;
+      }
+      NetworkGraph graph = NetworkGraph.forSource(source);
+      NetworkLocation origin = NetworkBuffer.snapToNetwork(graph, point, longest + bufferSize);
+      ServiceArea[] serviceAreas = NetworkBuffer.findReachedEdges(graph, origin, distances, searchMode, meter);
+      for (int i = 0; i < distances.length; i++) {
+        if (origin.getSnapDistance() > distances[i] + bufferSize) {
+          LOGGER.debug("Point {} is too far from the network for {}", point.getID(), distances[i]);
+          continue;
+        }
+        regions[i] = createRegionWithinBudget(serviceAreas[i], null, point, distances[i], meter);
+      }
+      return regions;
+    }
+  }
+
+  /**
+   * Generates the buffers of all the points in one tile against a network source covering the tile, so the graph of
+   * the tile network is built once and shared by every point. A point that fails is logged and left out without the
+   * rest of the tile, and if the tile network cannot be read each point reads its own as outside a tile.
+   */
+  class TileBuffernator implements Callable<List<SimpleFeature>> {
+    private List<SimpleFeature> tilePoints;
+
+    TileBuffernator(List<SimpleFeature> tilePoints) {
+      this.tilePoints = tilePoints;
+    }
+
+    public List<SimpleFeature> call() {
+      SimpleFeatureSource tileSource = null;
+      try {
+        tileSource = tileNetwork();
+      } catch (IOException e) {
+        LOGGER.error("Reading the network of a tile failed, buffering its " + tilePoints.size()
+            + " points one at a time", e);
+      } catch (RuntimeException e) {
+        LOGGER.error("Reading the network of a tile failed, buffering its " + tilePoints.size()
+            + " points one at a time", e);
+      }
+
+      // each point fails on its own, as it would outside a tile
+      List<SimpleFeature> tileBuffers = new ArrayList<SimpleFeature>();
+      for (SimpleFeature point : tilePoints) {
+        try {
+          tileBuffers.add(tileSource == null ? new Buffernator(point, network).call() : createServiceAreaRegion(
+              tileSource, point));
+        } catch (BudgetExceededException e) {
+          LOGGER.warn("Buffer generation failed: {}", e.getMessage());
+          tileBuffers.add(null);
+        } catch (IOException e) {
+          LOGGER.error("Buffer generation failed for point " + point.getID(), e);
+          tileBuffers.add(null);
+        } catch (RuntimeException e) {
+          LOGGER.error("Buffer generation failed for point " + point.getID(), e);
+          tileBuffers.add(null);
+        }
+      }
+      return tileBuffers;
+    }
+
+    // the network within reach of every point of the tile, read once for all of them
+    private SimpleFeatureSource tileNetwork() throws IOException {
+      Envelope bounds = new Envelope();
+      for (SimpleFeature point : tilePoints) {
+        bounds.expandToInclude(((Point) point.getDefaultGeometry()).getCoordinate());
+      }
+      bounds.expandBy(distance + bufferSize);
+      GeometryFactory geometryFactory = new GeometryFactory();
+      DefaultFeatureCollection tileNetwork = new DefaultFeatureCollection();
+      tileNetwork.addAll(NetworkBuffer.featuresInRegion(networkWithin(network, bounds),
+          geometryFactory.toGeometry(bounds)));
+      LOGGER.debug("Calculating service networks for {} points on a tile network of {} features", tilePoints.size(),
+          tileNetwork.size());
+      return DataUtilities.source(tileNetwork);
     }
   }
 }
@@ -51,6 +51,7 @@ public class NetworkBufferFJ extends RecursiveAction {
   private Path currentPath;
   private Double distance;
   private Map serviceArea;
+  private PointBudget.Meter meter;
   private static String distanceAttribute = "Distance";
 
   /**
@@ -66,22 +67,39 @@ public class NetworkBufferFJ extends RecursiveAction {
    *          The service area (set of edges)
    */
   public NetworkBufferFJ(Map network, Path currentPath, Double distance, Map serviceArea) {
+    this(network, currentPath, distance, serviceArea, null);
+  }
+
+  /**
+   * Intialise inputs with a budget, the traversal stops expanding paths once the point is over budget and the service
+   * area holds the edges found so far
+   * 
+   * @param network
+   *          Network/graph dataset
+   * @param currentPath
+   *          The current path being traversed
+   * @param distance
+   *          The maximum distance to traverse a path
+   * @param serviceArea
+   *          The service area (set of edges)
+   * @param meter
+   *          The budget of the point, or null for no limit
+   */
+  public NetworkBufferFJ(Map network, Path currentPath, Double distance, Map serviceArea, PointBudget.Meter meter) {
     this.network = network;
     this.currentPath = currentPath;
     this.distance = distance;
     this.serviceArea = serviceArea;
+    this.meter = meter;
   }
 
   /**
-   * Sets up the ForkJoinPool and then calls invoke to find service area
+   * Finds the service area by traversing every path from the current path. The traversal runs on the calling thread,
+   * use {@link NetworkBufferDeltaStepping} to spread a single service area across processors.
    * 
    * @return A complete service area - set of edges that belong to paths with maximum distance specified
    */
   public Map createBuffer() {
-    // Get the available processors, processors==threads is probably best?
-    Runtime runtime = Runtime.getRuntime();
-    int nProcessors = runtime.availableProcessors();
-    int nThreads = 1; // nProcessors/2;
     compute();
     return serviceArea;
   }
@@ -97,6 +115,9 @@ public class NetworkBufferFJ extends RecursiveAction {
     List<Path> nextPaths = new ArrayList();
     Node current = currentPath.getLast();
     List<Edge> graphEdges = (List<Edge>) network.get(current);
+    if (meter != null && !meter.chargeEdges(graphEdges.size())) {
+      return;
+    }
 
     for (Edge graphEdge : graphEdges) {
       Path nextPath = currentPath.duplicate();
@@ -111,7 +132,7 @@ public class NetworkBufferFJ extends RecursiveAction {
     }
     LOGGER.trace("Nextpaths For path {} - {}", currentPath, nextPaths.size());
     for (Path nextPath : nextPaths) {
-      NetworkBufferFJ nbfj = new NetworkBufferFJ(network, nextPath, distance, serviceArea);
+      NetworkBufferFJ nbfj = new NetworkBufferFJ(network, nextPath, distance, serviceArea, meter);
       this.serviceArea = nbfj.createBuffer();
     }
   }
@@ -151,49 +172,54 @@ public class NetworkBufferFJ extends RecursiveAction {
     SimpleFeature graphFeature = ((SimpleFeature) newEdge.getObject());
     SimpleFeatureType edgeType = createEdgeFeatureType(graphFeature.getType().getCoordinateReferenceSystem());
     SimpleFeature edgeFeature = buildFeatureFromGeometry(edgeType, (Geometry) graphFeature.getDefaultGeometry());
-    if (serviceArea.containsKey(newEdge)) {
-      SimpleFeature existingFeature = (SimpleFeature) serviceArea.get(newEdge);
-      Double minimalDistance = (Double) existingFeature.getAttribute(distanceAttribute);
-      if (minimalDistance > pathLength) {
-        edgeFeature.setAttribute(distanceAttribute, pathLength);
-        serviceArea.put(newEdge, edgeFeature);
-        return true;
+    // the service area may be shared, so the check and the update must be atomic
+    synchronized (serviceArea) {
+      if (serviceArea.containsKey(newEdge)) {
+        SimpleFeature existingFeature = (SimpleFeature) serviceArea.get(newEdge);
+        Double minimalDistance = (Double) existingFeature.getAttribute(distanceAttribute);
+        if (minimalDistance > pathLength) {
+          edgeFeature.setAttribute(distanceAttribute, pathLength);
+          serviceArea.put(newEdge, edgeFeature);
+          return true;
+        }
+        return false;
       }
-      return false;
+      edgeFeature.setAttribute(distanceAttribute, pathLength);
+      serviceArea.put(newEdge, edgeFeature);
+      return true;
     }
-    edgeFeature.setAttribute(distanceAttribute, pathLength);
-    serviceArea.put(newEdge, edgeFeature);
-    return true;
   }
 
   private static void addNewEdge(Map serviceArea, Path path, Edge graphEdge, Edge newEdge) {
-    Double pathLength = pathLength(path);
-    if (serviceArea.containsKey(graphEdge)) {
-      SimpleFeature existingFeature = (SimpleFeature) serviceArea.get(graphEdge);
-
-      Geometry existingGeometry = (Geometry) existingFeature.getDefaultGeometry();
-      Geometry newGeometry = (Geometry) ((SimpleFeature) newEdge.getObject()).getDefaultGeometry();
-
-      SimpleFeature newFeature = buildFeatureFromGeometry(existingFeature.getType(), newGeometry);
-      newFeature.setAttribute(distanceAttribute, pathLength);
-
-      if (newGeometry.getLength() >= existingGeometry.getLength()) {
-        if (newGeometry.contains(existingGeometry)) {
-          serviceArea.put(graphEdge, newFeature);
-        } else {
-          serviceArea.put(newEdge, newFeature);
+    synchronized (serviceArea) {
+      Double pathLength = pathLength(path);
+      if (serviceArea.containsKey(graphEdge)) {
+        SimpleFeature existingFeature = (SimpleFeature) serviceArea.get(graphEdge);
+
+        Geometry existingGeometry = (Geometry) existingFeature.getDefaultGeometry();
+        Geometry newGeometry = (Geometry) ((SimpleFeature) newEdge.getObject()).getDefaultGeometry();
+
+        SimpleFeature newFeature = buildFeatureFromGeometry(existingFeature.getType(), newGeometry);
+        newFeature.setAttribute(distanceAttribute, pathLength);
+
+        if (newGeometry.getLength() >= existingGeometry.getLength()) {
+          if (newGeometry.contains(existingGeometry)) {
+            serviceArea.put(graphEdge, newFeature);
+          } else {
+            serviceArea.put(newEdge, newFeature);
+          }
         }
-      }
 
-    } else {
-      SimpleFeature newFeature = (SimpleFeature) newEdge.getObject();
-      Geometry newGeometry = (Geometry) newFeature.getDefaultGeometry();
-      SimpleFeatureType edgeType = createEdgeFeatureType(newFeature.getType().getCoordinateReferenceSystem());
-      newFeature = buildFeatureFromGeometry(edgeType, newGeometry);
-      newFeature.setAttribute(distanceAttribute, pathLength);
+      } else {
+        SimpleFeature newFeature = (SimpleFeature) newEdge.getObject();
+        Geometry newGeometry = (Geometry) newFeature.getDefaultGeometry();
+        SimpleFeatureType edgeType = createEdgeFeatureType(newFeature.getType().getCoordinateReferenceSystem());
+        newFeature = buildFeatureFromGeometry(edgeType, newGeometry);
+        newFeature.setAttribute(distanceAttribute, pathLength);
 
-      serviceArea.put(graphEdge, newFeature);
+        serviceArea.put(graphEdge, newFeature);
 
+      }
     }
   }
 
@@ -0,0 +1,322 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.operation.polygonize.Polygonizer;
+
+/**
+ * An approximate service area region built on a grid instead of by buffering. The reached lines are rasterized onto a
+ * bitset of cells, dilated by the buffer distance with an exact Euclidean distance transform and the outline of the
+ * filled cells is traced back into polygons.
+ *
+ * Every line point lies in a marked cell and every cell is within half a cell diagonal of its centre, so the region
+ * lies between the exact buffer shrunk and grown by one cell diagonal, see {@link #getAreaErrorBound()}.
+ */
+public final class RasterRegion {
+
+  /**
+   * The user data key of the area error bound of a raster region feature
+   */
+  public static final String AREA_ERROR_BOUND = "areaErrorBound";
+  /**
+   * The attribute holding the area error bound of a raster region feature, null for a region that fell back to a hull
+   * over budget
+   */
+  public static final String AREA_ERROR_BOUND_ATTRIBUTE = "AreaErrorBound";
+
+  private final Geometry geometry;
+  private final double areaErrorBound;
+
+  private RasterRegion(Geometry geometry, double areaErrorBound) {
+    this.geometry = geometry;
+    this.areaErrorBound = areaErrorBound;
+  }
+
+  /**
+   * Builds the region within bufferSize of a set of lines
+   *
+   * @param lines
+   *          The reached lines, multi lines are split into their component lines
+   * @param bufferSize
+   *          The distance to dilate the lines by
+   * @param cellSize
+   *          The width of a grid cell, smaller cells are slower but more accurate
+   * @param geometryFactory
+   *          The factory to create the region with
+   * @return The region
+   */
+  public static RasterRegion create(Collection<Geometry> lines, double bufferSize, double cellSize,
+      GeometryFactory geometryFactory) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+    }
+    Envelope bounds = new Envelope();
+    for (Geometry line : lines) {
+      bounds.expandToInclude(line.getEnvelopeInternal());
+    }
+    if (bounds.isNull()) {
+      return new RasterRegion(geometryFactory.createMultiPolygon(new Polygon[0]), 0);
+    }
+    // pad by a cell so the outline never touches the edge of the grid
+    bounds.expandBy(bufferSize + cellSize);
+    Grid grid = new Grid(bounds, cellSize);
+    for (Geometry geometry : lines) {
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        Coordinate[] coords = ((LineString) geometry.getGeometryN(i)).getCoordinates();
+        for (int j = 0; j < coords.length - 1; j++) {
+          grid.markSegment(coords[j].x, coords[j].y, coords[j + 1].x, coords[j + 1].y);
+        }
+        if (coords.length == 1) {
+          grid.mark(grid.column(coords[0].x), grid.row(coords[0].y));
+        }
+      }
+    }
+    grid.dilate(bufferSize / cellSize);
+    Geometry outline = grid.vectorize(geometryFactory);
+    return new RasterRegion(outline, errorDistance(cellSize) * outline.getBoundary().getLength());
+  }
+
+  /**
+   * @return How far the raster outline can be from the exact buffer outline
+   */
+  public static double errorDistance(double cellSize) {
+    return cellSize * Math.sqrt(2);
+  }
+
+  public Geometry getGeometry() {
+    return geometry;
+  }
+
+  /**
+   * A first order bound on the difference in area from the exact buffered region: the outline lies within one cell
+   * diagonal of the exact outline, so the area differs by at most the band of that width along the outline.
+   *
+   * @return The area error bound, in square units of the network
+   */
+  public double getAreaErrorBound() {
+    return areaErrorBound;
+  }
+
+  /**
+   * A grid of cells over the region, cell (column, row) covers [minX + column * size, minX + (column + 1) * size) and
+   * likewise for rows in y
+   */
+  private static final class Grid {
+    private final double minX;
+    private final double minY;
+    private final double size;
+    private final int columns;
+    private final int rows;
+    private BitSet cells;
+
+    Grid(Envelope bounds, double size) {
+      this.minX = bounds.getMinX();
+      this.minY = bounds.getMinY();
+      this.size = size;
+      this.columns = (int) Math.ceil(bounds.getWidth() / size) + 1;
+      this.rows = (int) Math.ceil(bounds.getHeight() / size) + 1;
+      if ((long) columns * rows > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Cell size " + size + " is too small for a region of " + bounds);
+      }
+      this.cells = new BitSet(columns * rows);
+    }
+
+    int column(double x) {
+      return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - minX) / size)));
+    }
+
+    int row(double y) {
+      return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / size)));
+    }
+
+    void mark(int column, int row) {
+      cells.set(row * columns + column);
+    }
+
+    boolean isFilled(int column, int row) {
+      return column >= 0 && column < columns && row >= 0 && row < rows && cells.get(row * columns + column);
+    }
+
+    // marks every cell the segment passes through, stepping from cell to cell across the nearest cell side
+    void markSegment(double x0, double y0, double x1, double y1) {
+      int column = column(x0);
+      int row = row(y0);
+      int endColumn = column(x1);
+      int endRow = row(y1);
+      mark(column, row);
+      double dx = x1 - x0;
+      double dy = y1 - y0;
+      int stepX = dx > 0 ? 1 : -1;
+      int stepY = dy > 0 ? 1 : -1;
+      double nextX = dx == 0 ? Double.POSITIVE_INFINITY : (minX + (column + (dx > 0 ? 1 : 0)) * size - x0) / dx;
+      double nextY = dy == 0 ? Double.POSITIVE_INFINITY : (minY + (row + (dy > 0 ? 1 : 0)) * size - y0) / dy;
+      double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : size / Math.abs(dx);
+      double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : size / Math.abs(dy);
+      int steps = Math.abs(endColumn - column) + Math.abs(endRow - row);
+      for (int i = 0; i < steps; i++) {
+        if (nextX < nextY) {
+          column += stepX;
+          nextX += deltaX;
+        } else {
+          row += stepY;
+          nextY += deltaY;
+        }
+        mark(Math.max(0, Math.min(columns - 1, column)), Math.max(0, Math.min(rows - 1, row)));
+      }
+    }
+
+    /**
+     * Fills every cell whose centre is within radius cells of the centre of a marked cell, using the separable squared
+     * distance transform of Felzenszwalb and Huttenlocher, so the cost is linear in the number of cells whatever the
+     * radius
+     */
+    void dilate(double radius) {
+      double[] distance = new double[columns * rows];
+      for (int i = 0; i < distance.length; i++) {
+        distance[i] = cells.get(i) ? 0 : Double.POSITIVE_INFINITY;
+      }
+      int longest = Math.max(columns, rows);
+      double[] f = new double[longest];
+      double[] d = new double[longest];
+      int[] v = new int[longest];
+      double[] z = new double[longest + 1];
+      for (int c = 0; c < columns; c++) {
+        for (int r = 0; r < rows; r++) {
+          f[r] = distance[r * columns + c];
+        }
+        transform(f, rows, d, v, z);
+        for (int r = 0; r < rows; r++) {
+          distance[r * columns + c] = d[r];
+        }
+      }
+      double limit = radius * radius;
+      BitSet dilated = new BitSet(columns * rows);
+      for (int r = 0; r < rows; r++) {
+        System.arraycopy(distance, r * columns, f, 0, columns);
+        transform(f, columns, d, v, z);
+        for (int c = 0; c < columns; c++) {
+          if (d[c] <= limit) {
+            dilated.set(r * columns + c);
+          }
+        }
+      }
+      cells = dilated;
+    }
+
+    // the one dimensional squared distance transform of f, the lower envelope of the parabolas rooted at each cell
+    private static void transform(double[] f, int n, double[] d, int[] v, double[] z) {
+      int k = -1;
+      for (int q = 0; q < n; q++) {
+        if (f[q] == Double.POSITIVE_INFINITY) {
+          continue;
+        }
+        double s = Double.NEGATIVE_INFINITY;
+        while (k >= 0) {
+          s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2.0 * (q - v[k]));
+          if (s > z[k]) {
+            break;
+          }
+          k--;
+        }
+        k++;
+        v[k] = q;
+        z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+        z[k + 1] = Double.POSITIVE_INFINITY;
+      }
+      if (k < 0) {
+        for (int q = 0; q < n; q++) {
+          d[q] = Double.POSITIVE_INFINITY;
+        }
+        return;
+      }
+      int j = 0;
+      for (int q = 0; q < n; q++) {
+        while (z[j + 1] < q) {
+          j++;
+        }
+        d[q] = (double) (q - v[j]) * (q - v[j]) + f[v[j]];
+      }
+    }
+
+    /**
+     * Traces the cell sides between filled and empty cells as maximal straight runs, broken wherever a side running the
+     * other way meets them so the lines are fully noded, polygonizes them and keeps the faces made of filled cells
+     */
+    Geometry vectorize(GeometryFactory geometryFactory) {
+      List<LineString> sides = new ArrayList<LineString>();
+      // horizontal sides along the grid line below row r
+      for (int r = 0; r <= rows; r++) {
+        int start = -1;
+        for (int c = 0; c <= columns; c++) {
+          boolean side = c < columns && isFilled(c, r - 1) != isFilled(c, r);
+          boolean corner = isFilled(c - 1, r - 1) != isFilled(c, r - 1) || isFilled(c - 1, r) != isFilled(c, r);
+          if (start >= 0 && (!side || corner)) {
+            sides.add(line(geometryFactory, start, r, c, r));
+            start = -1;
+          }
+          if (side && start < 0) {
+            start = c;
+          }
+        }
+      }
+      // vertical sides along the grid line left of column c
+      for (int c = 0; c <= columns; c++) {
+        int start = -1;
+        for (int r = 0; r <= rows; r++) {
+          boolean side = r < rows && isFilled(c - 1, r) != isFilled(c, r);
+          boolean corner = isFilled(c - 1, r - 1) != isFilled(c - 1, r) || isFilled(c, r - 1) != isFilled(c, r);
+          if (start >= 0 && (!side || corner)) {
+            sides.add(line(geometryFactory, c, start, c, r));
+            start = -1;
+          }
+          if (side && start < 0) {
+            start = r;
+          }
+        }
+      }
+
+      Polygonizer polygonizer = new Polygonizer();
+      polygonizer.add(sides);
+      List<Polygon> filled = new ArrayList<Polygon>();
+      for (Object face : polygonizer.getPolygons()) {
+        Polygon polygon = (Polygon) face;
+        // an interior point lies in or on the side of a cell of the face, flooring picks such a cell
+        Point inside = polygon.getInteriorPoint();
+        if (isFilled(column(inside.getX()), row(inside.getY()))) {
+          filled.add(polygon);
+        }
+      }
+      return geometryFactory.createMultiPolygon(filled.toArray(new Polygon[filled.size()]));
+    }
+
+    private LineString line(GeometryFactory geometryFactory, int column0, int row0, int column1, int row1) {
+      return geometryFactory.createLineString(new Coordinate[] {
+          new Coordinate(minX + column0 * size, minY + row0 * size),
+          new Coordinate(minX + column1 * size, minY + row1 * size) });
+    }
+  }
+}
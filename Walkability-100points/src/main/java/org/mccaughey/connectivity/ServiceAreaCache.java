@@ -0,0 +1,281 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A bounded, least recently used cache of service areas and their region polygons, keyed by the network location an
+ * origin snaps to. Origins that snap to the same edge within the offset tolerance of each other share one entry, so
+ * repeated or near identical points are only searched and buffered once. Concurrent requests for the same key wait for
+ * the first to finish rather than computing it again.
+ *
+ * Fallback regions of points that went over their {@link PointBudget} are handed to the requests waiting on them but
+ * not kept, as the budget may only have run out because the machine was busy at the time.
+ *
+ * Entries are keyed by the {@link NetworkGraph#fingerprint()} of the network rather than the graph itself and hold no
+ * reference to it, so a graph replaced by a larger one (see {@link TiledNetwork}) can be collected while its entries
+ * age out of the cache.
+ */
+public final class ServiceAreaCache {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(ServiceAreaCache.class);
+  /**
+   * The default distance along an edge within which origins share an entry
+   */
+  public static final double DEFAULT_OFFSET_TOLERANCE = 1.0;
+
+  private final double offsetTolerance;
+  private final Map<Key, FutureTask<Entry>> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param capacity
+   *          The most entries to keep, the least recently used entry is evicted beyond this
+   */
+  public ServiceAreaCache(int capacity) {
+    this(capacity, DEFAULT_OFFSET_TOLERANCE);
+  }
+
+  /**
+   * @param capacity
+   *          The most entries to keep, the least recently used entry is evicted beyond this
+   * @param offsetTolerance
+   *          The distance along an edge within which origins share an entry
+   */
+  public ServiceAreaCache(final int capacity, double offsetTolerance) {
+    if (capacity <= 0 || offsetTolerance <= 0) {
+      throw new IllegalArgumentException("Cache capacity and offset tolerance must be positive");
+    }
+    this.offsetTolerance = offsetTolerance;
+    this.entries = new LinkedHashMap<Key, FutureTask<Entry>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, FutureTask<ServiceAreaCache.Entry>> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Gets the cached entry for an origin, computing it if it is not cached
+   *
+   * @param graph
+   *          The network graph the origin is snapped to
+   * @param origin
+   *          The snapped origin
+   * @param distance
+   *          The network distance of the service area
+   * @param bufferSize
+   *          The buffer size of the region
+   * @param regionMode
+   *          How the region was made
+   * @param settings
+   *          Any other settings the region depends on, such as the cell size or buffer precision, compared by equals
+   * @param compute
+   *          Computes the entry on a miss
+   * @return The cached or computed entry
+   * @throws IOException
+   */
+  public Entry get(NetworkGraph graph, NetworkLocation origin, double distance, double bufferSize,
+      RegionMode regionMode, Object settings, Callable<Entry> compute) throws IOException {
+    Key key = new Key(graph.fingerprint(), origin.getEdge(), Math.round(origin.getOffset() / offsetTolerance),
+        distance, bufferSize, regionMode, settings);
+    FutureTask<Entry> task;
+    boolean miss = false;
+    synchronized (entries) {
+      task = entries.get(key);
+      if (task == null) {
+        task = new FutureTask<Entry>(compute);
+        entries.put(key, task);
+        miss = true;
+      }
+    }
+    if (miss) {
+      misses.incrementAndGet();
+      LOGGER.debug("Service area cache miss for edge {} at {}", origin.getEdge(), origin.getOffset());
+      task.run();
+    } else {
+      hits.incrementAndGet();
+    }
+    try {
+      Entry entry = task.get();
+      if (miss && entry.getBudgetExceeded() != null) {
+        // the next point at the location searches again
+        forget(key, task);
+      }
+      return entry;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      // forget failures so that they are retried
+      forget(key, task);
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private void forget(Key key, FutureTask<Entry> task) {
+    synchronized (entries) {
+      if (entries.get(key) == task) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return The number of entries held
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return The fraction of requests served from the cache
+   */
+  public double getHitRate() {
+    long total = hits.get() + misses.get();
+    return total == 0 ? 0 : (double) hits.get() / total;
+  }
+
+  @Override
+  public String toString() {
+    return "ServiceAreaCache[size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+  }
+
+  /**
+   * The cached region of a service area, with the user data of the region feature such as the area error bound of a
+   * raster region or why a fallback region went over budget
+   */
+  public static final class Entry {
+    private final Geometry region;
+    private final Map<Object, Object> userData;
+
+    public Entry(Geometry region) {
+      this(region, Collections.emptyMap());
+    }
+
+    /**
+     * @param userData
+     *          The user data of the region feature, copied
+     */
+    public Entry(Geometry region, Map<?, ?> userData) {
+      this.region = region;
+      this.userData = Collections.unmodifiableMap(new HashMap<Object, Object>(userData));
+    }
+
+    public Geometry getRegion() {
+      return region;
+    }
+
+    /**
+     * @return The user data of the region feature, to be copied to the feature of every point given the region
+     */
+    public Map<Object, Object> getUserData() {
+      return userData;
+    }
+
+    /**
+     * @return Why the point went over its {@link PointBudget} if the region is a fallback, otherwise null
+     */
+    public String getBudgetExceeded() {
+      return (String) userData.get(PointBudget.BUDGET_EXCEEDED);
+    }
+  }
+
+  private static final class Key {
+    private final long network;
+    private final int edge;
+    private final long offset;
+    private final double distance;
+    private final double bufferSize;
+    private final RegionMode regionMode;
+    private final Object settings;
+
+    Key(long network, int edge, long offset, double distance, double bufferSize, RegionMode regionMode,
+        Object settings) {
+      this.network = network;
+      this.edge = edge;
+      this.offset = offset;
+      this.distance = distance;
+      this.bufferSize = bufferSize;
+      this.regionMode = regionMode;
+      this.settings = settings;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return network == other.network && edge == other.edge && offset == other.offset
+          && Double.compare(distance, other.distance) == 0 && Double.compare(bufferSize, other.bufferSize) == 0
+          && regionMode == other.regionMode && (settings == null ? other.settings == null : settings
+          .equals(other.settings));
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (int) (network ^ (network >>> 32));
+      hash = 31 * hash + edge;
+      hash = 31 * hash + (int) (offset ^ (offset >>> 32));
+      long bits = Double.doubleToLongBits(distance);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+      bits = Double.doubleToLongBits(bufferSize);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+      hash = 31 * hash + (regionMode == null ? 0 : regionMode.hashCode());
+      return 31 * hash + (settings == null ? 0 : settings.hashCode());
+    }
+  }
+}
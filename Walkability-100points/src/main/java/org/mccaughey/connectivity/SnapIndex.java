@@ -0,0 +1,335 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * A static spatial index of the line segments of a network graph for snapping points to the network. Segments are
+ * sorted along a Hilbert curve and packed bottom up into a tree of flat bounding box arrays, which is built once per
+ * graph (see {@link NetworkGraph#getSnapIndex()}) and is safe to share between threads.
+ *
+ * Nearest neighbour queries are best-first: tree nodes are visited in order of their box distance from the point, and
+ * segments are queued at their exact distance, so the first segment taken from the queue is the nearest and only the
+ * part of the tree around the point is touched.
+ */
+public final class SnapIndex {
+
+  private static final int NODE_SIZE = 16;
+  static final int HILBERT_MAX = (1 << 16) - 1;
+
+  private final NetworkGraph graph;
+  private final int segmentCount;
+  // the first vertex and edge of each segment, a segment runs from vertex to vertex + 1
+  private final int[] segmentVertex;
+  private final int[] segmentEdge;
+  // tree nodes, leaves 0 to segmentCount - 1 in Hilbert order followed by each level up to the root
+  private final double[] boxes;
+  // the segment of a leaf, or the first child of an internal node
+  private final int[] children;
+  // the end (exclusive) of each level of nodes
+  private final int[] levelEnds;
+
+  SnapIndex(NetworkGraph graph) {
+    this.graph = graph;
+    int count = 0;
+    for (int e = 0; e < graph.edgeCount(); e++) {
+      count += graph.edgeVertexEnd(e) - graph.edgeVertexStart(e) - 1;
+    }
+    segmentCount = count;
+    segmentVertex = new int[count];
+    segmentEdge = new int[count];
+    int s = 0;
+    for (int e = 0; e < graph.edgeCount(); e++) {
+      for (int v = graph.edgeVertexStart(e); v < graph.edgeVertexEnd(e) - 1; v++) {
+        segmentVertex[s] = v;
+        segmentEdge[s] = e;
+        s++;
+      }
+    }
+
+    int nodeCount = count;
+    int levels = 1;
+    for (int n = count; n > 1; n = (n + NODE_SIZE - 1) / NODE_SIZE) {
+      nodeCount += (n + NODE_SIZE - 1) / NODE_SIZE;
+      levels++;
+    }
+    boxes = new double[4 * nodeCount];
+    children = new int[nodeCount];
+    levelEnds = new int[levels];
+    if (count == 0) {
+      return;
+    }
+
+    sortLeaves();
+    int levelStart = 0;
+    int levelEnd = count;
+    int level = 0;
+    levelEnds[level++] = levelEnd;
+    int next = levelEnd;
+    while (levelEnd - levelStart > 1) {
+      for (int first = levelStart; first < levelEnd; first += NODE_SIZE) {
+        int last = Math.min(first + NODE_SIZE, levelEnd);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < last; child++) {
+          minX = Math.min(minX, boxes[4 * child]);
+          minY = Math.min(minY, boxes[4 * child + 1]);
+          maxX = Math.max(maxX, boxes[4 * child + 2]);
+          maxY = Math.max(maxY, boxes[4 * child + 3]);
+        }
+        setBox(next, minX, minY, maxX, maxY);
+        children[next] = first;
+        next++;
+      }
+      levelStart = levelEnd;
+      levelEnd = next;
+      levelEnds[level++] = levelEnd;
+    }
+  }
+
+  // orders the segments along a Hilbert curve through their centres so that neighbouring leaves are close together
+  private void sortLeaves() {
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (int s = 0; s < segmentCount; s++) {
+      int v = segmentVertex[s];
+      minX = Math.min(minX, Math.min(graph.vertexX(v), graph.vertexX(v + 1)));
+      minY = Math.min(minY, Math.min(graph.vertexY(v), graph.vertexY(v + 1)));
+      maxX = Math.max(maxX, Math.max(graph.vertexX(v), graph.vertexX(v + 1)));
+      maxY = Math.max(maxY, Math.max(graph.vertexY(v), graph.vertexY(v + 1)));
+    }
+    double width = Math.max(maxX - minX, Double.MIN_NORMAL);
+    double height = Math.max(maxY - minY, Double.MIN_NORMAL);
+    long[] keys = new long[segmentCount];
+    for (int s = 0; s < segmentCount; s++) {
+      int v = segmentVertex[s];
+      double cx = (graph.vertexX(v) + graph.vertexX(v + 1)) / 2;
+      double cy = (graph.vertexY(v) + graph.vertexY(v + 1)) / 2;
+      int hx = (int) (HILBERT_MAX * (cx - minX) / width);
+      int hy = (int) (HILBERT_MAX * (cy - minY) / height);
+      keys[s] = ((long) hilbert(hx, hy) << 32) | s;
+    }
+    Arrays.sort(keys);
+    for (int leaf = 0; leaf < segmentCount; leaf++) {
+      int s = (int) keys[leaf];
+      int v = segmentVertex[s];
+      setBox(leaf, Math.min(graph.vertexX(v), graph.vertexX(v + 1)), Math.min(graph.vertexY(v), graph.vertexY(v + 1)),
+          Math.max(graph.vertexX(v), graph.vertexX(v + 1)), Math.max(graph.vertexY(v), graph.vertexY(v + 1)));
+      children[leaf] = s;
+    }
+  }
+
+  private void setBox(int node, double minX, double minY, double maxX, double maxY) {
+    boxes[4 * node] = minX;
+    boxes[4 * node + 1] = minY;
+    boxes[4 * node + 2] = maxX;
+    boxes[4 * node + 3] = maxY;
+  }
+
+  /**
+   * Finds the closest location on the network to a point
+   *
+   * @param x
+   *          The x coordinate of the point
+   * @param y
+   *          The y coordinate of the point
+   * @param maxDistance
+   *          The furthest the point may be from the network
+   * @return The closest network location, or null if no edge is within maxDistance
+   */
+  public NetworkLocation nearest(double x, double y, double maxDistance) {
+    return nearest(x, y, maxDistance, new Queue());
+  }
+
+  /**
+   * Snaps a batch of points to the network, sharing the query state between them
+   *
+   * @param points
+   *          The points to snap
+   * @param maxDistance
+   *          The furthest a point may be from the network
+   * @return The closest network location of each point, null where no edge is within maxDistance
+   */
+  public NetworkLocation[] snapAll(Coordinate[] points, double maxDistance) {
+    Queue queue = new Queue();
+    NetworkLocation[] locations = new NetworkLocation[points.length];
+    for (int i = 0; i < points.length; i++) {
+      locations[i] = nearest(points[i].x, points[i].y, maxDistance, queue);
+    }
+    return locations;
+  }
+
+  private NetworkLocation nearest(double x, double y, double maxDistance, Queue queue) {
+    if (segmentCount == 0) {
+      return null;
+    }
+    double limit = maxDistance * maxDistance;
+    queue.clear();
+    int root = levelEnds[levelEnds.length - 1] - 1;
+    queue.offer(root, root < segmentCount ? segmentDistance(segmentVertex[children[root]], x, y) : boxDistance(root, x,
+        y));
+    while (!queue.isEmpty() && queue.peekKey() <= limit) {
+      int node = queue.poll();
+      if (node < segmentCount) {
+        // queued at its exact distance, so nothing left in the queue is any closer
+        int s = children[node];
+        int v = segmentVertex[s];
+        return graph.locationOnSegment(segmentEdge[s], v, fraction(v, x, y), x, y);
+      }
+      int first = children[node];
+      int last = Math.min(first + NODE_SIZE, levelEnd(first));
+      for (int child = first; child < last; child++) {
+        double d = child < segmentCount ? segmentDistance(segmentVertex[children[child]], x, y) : boxDistance(child, x,
+            y);
+        if (d <= limit) {
+          queue.offer(child, d);
+        }
+      }
+    }
+    return null;
+  }
+
+  private int levelEnd(int node) {
+    for (int end : levelEnds) {
+      if (node < end) {
+        return end;
+      }
+    }
+    return levelEnds[levelEnds.length - 1];
+  }
+
+  // squared distance from the point to a node box
+  private double boxDistance(int node, double x, double y) {
+    double dx = Math.max(0, Math.max(boxes[4 * node] - x, x - boxes[4 * node + 2]));
+    double dy = Math.max(0, Math.max(boxes[4 * node + 1] - y, y - boxes[4 * node + 3]));
+    return dx * dx + dy * dy;
+  }
+
+  // the fraction of the way along the segment starting at vertex closest to the point
+  private double fraction(int vertex, double x, double y) {
+    double x0 = graph.vertexX(vertex);
+    double y0 = graph.vertexY(vertex);
+    double dx = graph.vertexX(vertex + 1) - x0;
+    double dy = graph.vertexY(vertex + 1) - y0;
+    double lengthSq = dx * dx + dy * dy;
+    if (lengthSq == 0) {
+      return 0;
+    }
+    return Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / lengthSq));
+  }
+
+  // squared distance from the point to the segment starting at vertex
+  private double segmentDistance(int vertex, double x, double y) {
+    double f = fraction(vertex, x, y);
+    double x0 = graph.vertexX(vertex);
+    double y0 = graph.vertexY(vertex);
+    double px = x0 + f * (graph.vertexX(vertex + 1) - x0) - x;
+    double py = y0 + f * (graph.vertexY(vertex + 1) - y0) - y;
+    return px * px + py * py;
+  }
+
+  // the position of (x, y) along a Hilbert curve over a 2^16 grid, shared with BufferUnion
+  static int hilbert(int x, int y) {
+    int d = 0;
+    for (int s = 1 << 15; s > 0; s >>= 1) {
+      int rx = (x & s) > 0 ? 1 : 0;
+      int ry = (y & s) > 0 ? 1 : 0;
+      d += s * s * ((3 * rx) ^ ry);
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        int t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+
+  /**
+   * A growable binary min heap of tree nodes keyed by squared distance
+   */
+  private static final class Queue {
+    private int[] nodes = new int[64];
+    private double[] keys = new double[64];
+    private int size;
+
+    void offer(int node, double key) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+        keys = Arrays.copyOf(keys, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (keys[parent] <= key) {
+          break;
+        }
+        nodes[i] = nodes[parent];
+        keys[i] = keys[parent];
+        i = parent;
+      }
+      nodes[i] = node;
+      keys[i] = key;
+    }
+
+    int poll() {
+      int top = nodes[0];
+      size--;
+      int node = nodes[size];
+      double key = keys[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && keys[child + 1] < keys[child]) {
+          child++;
+        }
+        if (keys[child] >= key) {
+          break;
+        }
+        nodes[i] = nodes[child];
+        keys[i] = keys[child];
+        i = child;
+      }
+      nodes[i] = node;
+      keys[i] = key;
+      return top;
+    }
+
+    double peekKey() {
+      return keys[0];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.mccaughey.utilities.GeoJSONUtilities;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * A road network split into square tiles cached on disk, so that a job only reads the part of the network around its
+ * points. The tiles are cut from the network file once and rebuilt whenever the file changes. Each feature is stored
+ * in the tile holding the centre of its envelope, and the index records the bounds of the features in each tile, so
+ * the tiles needed for an area are exactly those whose bounds intersect it.
+ *
+ * A tiled network starts with no tiles loaded. {@link #load(Geometry)} reads the tiles of a study area up front and
+ * {@link #sourceFor(Envelope)} faults in any further tiles a query reaches, handing out a new feature source whenever
+ * the loaded network grows so that graphs built on the old source stay consistent. The same source, and so the same
+ * {@link NetworkGraph}, is handed out until the loaded tiles change.
+ *
+ * Every new source means a new graph and indexes for the whole loaded network, so once tiles are loaded a fault grows
+ * the area it loads ring by ring until it at least doubles the loaded network. The graph is then rebuilt a number of
+ * times logarithmic in the tiles, however the queries wander, rather than once per fault.
+ */
+public final class TiledNetwork {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(TiledNetwork.class);
+  private static final String INDEX_FILE = "tiles.properties";
+  private static final String TILE_PREFIX = "tile_";
+  private static final String TILE_SUFFIX = ".geojson";
+
+  private final File directory;
+  private final double tileSize;
+  // tile key to the bounds of the features in the tile
+  private final Map<String, Envelope> tiles;
+  private final Set<String> loaded = new HashSet<String>();
+  private DefaultFeatureCollection features = new DefaultFeatureCollection();
+  private SimpleFeatureSource source;
+  private CoordinateReferenceSystem crs;
+
+  private TiledNetwork(File directory, double tileSize, Map<String, Envelope> tiles) {
+    this.directory = directory;
+    this.tileSize = tileSize;
+    this.tiles = tiles;
+  }
+
+  /**
+   * Opens the tiles of a network file, cutting them first if they are missing or older than the file
+   *
+   * @param network
+   *          The network GeoJSON file, may be gzipped
+   * @param directory
+   *          The directory holding the tile cache
+   * @param tileSize
+   *          The width of a tile in network units
+   * @return The tiled network, with no tiles loaded
+   * @throws IOException
+   */
+  public static TiledNetwork open(File network, File directory, double tileSize) throws IOException {
+    if (tileSize <= 0) {
+      throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+    }
+    Properties index = readIndex(directory);
+    if (index == null || !String.valueOf(network.length()).equals(index.getProperty("source.length"))
+        || !String.valueOf(network.lastModified()).equals(index.getProperty("source.modified"))
+        || !String.valueOf(tileSize).equals(index.getProperty("tile.size"))) {
+      index = cut(network, directory, tileSize);
+    }
+    Map<String, Envelope> tiles = new LinkedHashMap<String, Envelope>();
+    for (String name : index.stringPropertyNames()) {
+      if (name.startsWith(TILE_PREFIX)) {
+        String[] bounds = index.getProperty(name).split(",");
+        tiles.put(name, new Envelope(Double.parseDouble(bounds[0]), Double.parseDouble(bounds[2]), Double
+            .parseDouble(bounds[1]), Double.parseDouble(bounds[3])));
+      }
+    }
+    LOGGER.info("Opened {} network tiles of {} in {}", new Object[] { tiles.size(), network, directory });
+    return new TiledNetwork(directory, tileSize, tiles);
+  }
+
+  /**
+   * The area a set of points can reach: the convex hull of the points grown by the reach
+   *
+   * @param points
+   *          The points of interest
+   * @param reach
+   *          How far from a point the network is needed, the network distance plus the buffer size
+   * @return The study area
+   */
+  public static Geometry studyArea(SimpleFeatureCollection points, double reach) {
+    List<Geometry> geometries = new ArrayList<Geometry>();
+    SimpleFeatureIterator iterator = points.features();
+    try {
+      while (iterator.hasNext()) {
+        geometries.add((Geometry) iterator.next().getDefaultGeometry());
+      }
+    } finally {
+      iterator.close();
+    }
+    return new GeometryFactory().buildGeometry(geometries).convexHull().buffer(reach);
+  }
+
+  /**
+   * Loads the tiles that intersect an area
+   *
+   * @param area
+   *          The area the network is needed in
+   * @return A source of every loaded tile
+   * @throws IOException
+   */
+  public synchronized SimpleFeatureSource load(Geometry area) throws IOException {
+    GeometryFactory geometryFactory = new GeometryFactory();
+    List<String> missing = new ArrayList<String>();
+    for (Map.Entry<String, Envelope> tile : tiles.entrySet()) {
+      if (!loaded.contains(tile.getKey()) && tile.getValue().intersects(area.getEnvelopeInternal())
+          && area.intersects(geometryFactory.toGeometry(tile.getValue()))) {
+        missing.add(tile.getKey());
+      }
+    }
+    return loadTiles(grow(missing, area.getEnvelopeInternal()));
+  }
+
+  /**
+   * Gets a source that holds the whole network within an area, faulting in the tiles it needs
+   *
+   * @param area
+   *          The area a query may reach
+   * @return The current source if it already covers area, otherwise a new source of every loaded tile
+   * @throws IOException
+   */
+  public synchronized SimpleFeatureSource sourceFor(Envelope area) throws IOException {
+    return loadTiles(grow(missingTiles(area), area));
+  }
+
+  /**
+   * @return The coordinate reference system of the network, read from the smallest tile
+   * @throws IOException
+   */
+  public synchronized CoordinateReferenceSystem getCoordinateReferenceSystem() throws IOException {
+    if (crs == null && !tiles.isEmpty()) {
+      File smallest = null;
+      for (String tile : tiles.keySet()) {
+        File file = tileFile(directory, tile);
+        if (smallest == null || file.length() < smallest.length()) {
+          smallest = file;
+        }
+      }
+      crs = GeoJSONUtilities.readFeatures(smallest.toURI().toURL()).getSchema().getCoordinateReferenceSystem();
+    }
+    return crs;
+  }
+
+  public int tileCount() {
+    return tiles.size();
+  }
+
+  public synchronized int loadedTileCount() {
+    return loaded.size();
+  }
+
+  private List<String> missingTiles(Envelope area) {
+    List<String> missing = new ArrayList<String>();
+    for (Map.Entry<String, Envelope> tile : tiles.entrySet()) {
+      if (!loaded.contains(tile.getKey()) && tile.getValue().intersects(area)) {
+        missing.add(tile.getKey());
+      }
+    }
+    return missing;
+  }
+
+  // widens a fault by a tile at a time until it at least doubles the loaded network, sized by the tile files
+  private List<String> grow(List<String> missing, Envelope area) {
+    if (missing.isEmpty() || loaded.isEmpty()) {
+      return missing;
+    }
+    long loadedBytes = tileBytes(loaded);
+    Envelope wider = new Envelope(area);
+    List<String> grown = missing;
+    while (tileBytes(grown) < loadedBytes && loaded.size() + grown.size() < tiles.size()) {
+      wider.expandBy(tileSize);
+      grown = missingTiles(wider);
+    }
+    if (grown.size() > missing.size()) {
+      LOGGER.debug("Widened a fault of {} tiles to {} tiles", missing.size(), grown.size());
+    }
+    return grown;
+  }
+
+  private long tileBytes(Collection<String> names) {
+    long bytes = 0;
+    for (String tile : names) {
+      bytes += tileFile(directory, tile).length();
+    }
+    return bytes;
+  }
+
+  private SimpleFeatureSource loadTiles(List<String> missing) throws IOException {
+    if (missing.isEmpty() && source != null) {
+      return source;
+    }
+    long start = System.currentTimeMillis();
+    // a new collection, the old one still backs sources and graphs handed out before
+    DefaultFeatureCollection grown = new DefaultFeatureCollection();
+    grown.addAll(features);
+    for (String tile : missing) {
+      SimpleFeatureCollection tileFeatures = GeoJSONUtilities.readFeatures(tileFile(directory, tile).toURI().toURL());
+      if (crs == null) {
+        crs = tileFeatures.getSchema().getCoordinateReferenceSystem();
+      }
+      grown.addAll(tileFeatures);
+      loaded.add(tile);
+    }
+    features = grown;
+    source = DataUtilities.source(features);
+    LOGGER.info("Loaded {} network tiles, {} of {} tiles and {} features held, in {}ms", new Object[] {
+        missing.size(), loaded.size(), tiles.size(), features.size(), System.currentTimeMillis() - start });
+    return source;
+  }
+
+  private static Properties cut(File network, File directory, double tileSize) throws IOException {
+    long start = System.currentTimeMillis();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create tile directory " + directory);
+    }
+    File indexFile = new File(directory, INDEX_FILE);
+    if (indexFile.exists() && !indexFile.delete()) {
+      throw new IOException("Cannot remove old tile index " + indexFile);
+    }
+    File[] old = directory.listFiles();
+    if (old != null) {
+      for (File file : old) {
+        if (file.getName().startsWith(TILE_PREFIX) && !file.delete()) {
+          throw new IOException("Cannot remove old tile " + file);
+        }
+      }
+    }
+    Map<String, DefaultFeatureCollection> tileFeatures = new LinkedHashMap<String, DefaultFeatureCollection>();
+    Map<String, Envelope> tileBounds = new LinkedHashMap<String, Envelope>();
+    SimpleFeatureIterator iterator = GeoJSONUtilities.readFeatures(network.toURI().toURL()).features();
+    try {
+      while (iterator.hasNext()) {
+        SimpleFeature feature = iterator.next();
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (geometry == null) {
+          continue;
+        }
+        Envelope envelope = geometry.getEnvelopeInternal();
+        long column = (long) Math.floor((envelope.getMinX() + envelope.getMaxX()) / 2 / tileSize);
+        long row = (long) Math.floor((envelope.getMinY() + envelope.getMaxY()) / 2 / tileSize);
+        String tile = TILE_PREFIX + column + "_" + row;
+        DefaultFeatureCollection collection = tileFeatures.get(tile);
+        if (collection == null) {
+          collection = new DefaultFeatureCollection();
+          tileFeatures.put(tile, collection);
+          tileBounds.put(tile, new Envelope());
+        }
+        collection.add(feature);
+        tileBounds.get(tile).expandToInclude(envelope);
+      }
+    } finally {
+      iterator.close();
+    }
+
+    Properties index = new Properties();
+    for (Map.Entry<String, DefaultFeatureCollection> tile : tileFeatures.entrySet()) {
+      GeoJSONUtilities.writeFeatures(tile.getValue(), tileFile(directory, tile.getKey()));
+      Envelope bounds = tileBounds.get(tile.getKey());
+      index.setProperty(tile.getKey(), bounds.getMinX() + "," + bounds.getMinY() + "," + bounds.getMaxX() + ","
+          + bounds.getMaxY());
+    }
+    index.setProperty("source.length", String.valueOf(network.length()));
+    index.setProperty("source.modified", String.valueOf(network.lastModified()));
+    index.setProperty("tile.size", String.valueOf(tileSize));
+    // the index goes last, so an interrupted cut is redone
+    OutputStream out = new FileOutputStream(indexFile);
+    try {
+      index.store(out, "Network tiles of " + network);
+    } finally {
+      out.close();
+    }
+    LOGGER.info("Cut {} into {} tiles in {}ms", new Object[] { network, tileFeatures.size(),
+        System.currentTimeMillis() - start });
+    return index;
+  }
+
+  private static Properties readIndex(File directory) throws IOException {
+    File file = new File(directory, INDEX_FILE);
+    if (!file.isFile()) {
+      return null;
+    }
+    Properties index = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      index.load(in);
+    } finally {
+      in.close();
+    }
+    return index;
+  }
+
+  private static File tileFile(File directory, String tile) {
+    return new File(directory, tile + TILE_SUFFIX);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the nearest destination distances of the single multi-source search against a Dijkstra search from each
+ * origin on its own.
+ */
+public class DestinationAccessTest {
+
+  private static final double TOLERANCE = 1e-6;
+
+  @Test
+  public void findsTheSameDistancesAsDijkstraFromEachOrigin() {
+    NetworkGraph graph = TestNetworks.grid(20, 70, 6);
+    Random random = new Random(3);
+    List<NetworkLocation> destinations = new ArrayList<NetworkLocation>();
+    for (NetworkLocation destination : TestNetworks.randomOrigins(graph, 12, random)) {
+      destinations.add(new NetworkLocation(destination.getEdge(), destination.getOffset(), 0, 0,
+          random.nextDouble() * 20));
+    }
+    // a destination at a node
+    destinations.add(new NetworkLocation(0, 0, 0, 0, 0));
+    List<NetworkLocation> origins = new ArrayList<NetworkLocation>();
+    for (NetworkLocation origin : TestNetworks.randomOrigins(graph, 60, random)) {
+      origins.add(new NetworkLocation(origin.getEdge(), origin.getOffset(), 0, 0, random.nextDouble() * 10));
+    }
+    // origins on the same edge as a destination, either side of it
+    for (NetworkLocation destination : destinations) {
+      int edge = destination.getEdge();
+      origins.add(new NetworkLocation(edge, destination.getOffset() / 2, 0, 0, 0));
+      origins.add(new NetworkLocation(edge, (destination.getOffset() + graph.edgeLength(edge)) / 2, 0, 0, 0));
+    }
+    for (double limit : new double[] { 100, 400, 5000 }) {
+      DestinationAccess access = DestinationAccess.build(graph, destinations, limit);
+      for (NetworkLocation origin : origins) {
+        assertEquals("From " + origin + " within " + limit, nearest(graph, origin, destinations, limit), access
+            .distance(origin), TOLERANCE);
+      }
+    }
+  }
+
+  // the distance to the nearest destination, read off the end node distances of a search from the origin alone
+  private static double nearest(NetworkGraph graph, NetworkLocation origin, Collection<NetworkLocation> destinations,
+      double limit) {
+    ServiceArea serviceArea = NetworkBufferDijkstra.findServiceArea(graph, origin, limit);
+    double nearest = Double.POSITIVE_INFINITY;
+    for (NetworkLocation destination : destinations) {
+      int edge = destination.getEdge();
+      double offset = destination.getOffset();
+      for (int i = 0; i < serviceArea.size(); i++) {
+        if (serviceArea.edge(i) != edge) {
+          continue;
+        }
+        double distance = Double.POSITIVE_INFINITY;
+        if (serviceArea.headReach(i) > 0) {
+          distance = Math.min(distance, limit - serviceArea.headReach(i) + offset);
+        }
+        if (serviceArea.tailReach(i) > 0) {
+          distance = Math.min(distance, limit - serviceArea.tailReach(i) + graph.edgeLength(edge) - offset);
+        }
+        if (edge == origin.getEdge()) {
+          distance = Math.min(distance, Math.abs(origin.getOffset() - offset));
+        }
+        nearest = Math.min(nearest, distance + destination.getSnapDistance());
+      }
+    }
+    nearest += origin.getSnapDistance();
+    return nearest <= limit ? nearest : Double.POSITIVE_INFINITY;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that regions come back from their encoding with the same edges, reached to within the quantum of the
+ * encoding, and with the same edges whole.
+ */
+public class LazyRegionTest {
+
+  private static final double BUFFER_SIZE = 50;
+
+  @Test
+  public void decodedRegionsReachTheSameEdges() {
+    NetworkGraph graph = TestNetworks.grid(20, 60, 4);
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 30, new Random(5));
+    for (double distance : new double[] { 45, 400, 1600 }) {
+      for (NetworkLocation origin : origins) {
+        assertRoundTrip("From " + origin + " within " + distance, NetworkBufferDijkstra.findServiceArea(graph, origin,
+            distance));
+      }
+    }
+  }
+
+  @Test
+  public void wholeEdgesStayWhole() {
+    // the last edge is reached exactly to its end, at every fraction of the quantum
+    for (int k = 0; k < 50; k++) {
+      double first = 40 + k * 0.37;
+      NetworkGraph.Builder builder = new NetworkGraph.Builder();
+      builder.addEdge(TestNetworks.line(0, 0, first, 0));
+      builder.addEdge(TestNetworks.line(first, 0, first + 100, 0));
+      NetworkGraph graph = builder.build(null);
+      ServiceArea serviceArea = NetworkBufferDijkstra.findServiceArea(graph, new NetworkLocation(0, 0, 0, 0, 0),
+          first + 100);
+      assertRoundTrip("After " + first, serviceArea);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesAnotherNetwork() {
+    NetworkGraph graph = TestNetworks.grid(8, 60, 1);
+    byte[] encoded = new LazyRegion(NetworkBufferDijkstra.findServiceArea(graph, new NetworkLocation(0, 10, 0, 0, 0),
+        200), BUFFER_SIZE, null, null).encode();
+    LazyRegion.decode(encoded, TestNetworks.grid(8, 60, 2), null, null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesTruncatedBytes() {
+    NetworkGraph graph = TestNetworks.grid(8, 60, 1);
+    byte[] encoded = new LazyRegion(NetworkBufferDijkstra.findServiceArea(graph, new NetworkLocation(0, 10, 0, 0, 0),
+        200), BUFFER_SIZE, null, null).encode();
+    LazyRegion.decode(Arrays.copyOf(encoded, encoded.length - 3), graph, null, null);
+  }
+
+  private static void assertRoundTrip(String message, ServiceArea original) {
+    LazyRegion region = new LazyRegion(original, BUFFER_SIZE, null, null);
+    LazyRegion decoded = LazyRegion.decode(region.encode(), original.getGraph(), null, null);
+    ServiceArea serviceArea = decoded.getServiceArea();
+    NetworkGraph graph = original.getGraph();
+    // the distances are 16 bit fractions of the limit or of the origin edge
+    double quantum = Math.max(original.getLimit(), graph.edgeLength(original.getOrigin().getEdge())) / 0xFFFF;
+    assertEquals(message + " buffer size", BUFFER_SIZE, decoded.getBufferSize(), 0);
+    assertEquals(message + " limit", original.getLimit(), serviceArea.getLimit(), 0);
+    assertEquals(message + " origin edge", original.getOrigin().getEdge(), serviceArea.getOrigin().getEdge());
+    assertEquals(message + " origin offset", original.getOrigin().getOffset(), serviceArea.getOrigin().getOffset(), 0);
+    assertEquals(message + " edges", TestNetworks.reachedEdges(original), TestNetworks.reachedEdges(serviceArea));
+
+    Map<Integer, Integer> decodedIndex = new HashMap<Integer, Integer>();
+    for (int i = 0; i < serviceArea.size(); i++) {
+      decodedIndex.put(serviceArea.edge(i), i);
+    }
+    for (int i = 0; i < original.size(); i++) {
+      int edge = original.edge(i);
+      int j = decodedIndex.get(edge);
+      String edgeMessage = message + " edge " + edge;
+      assertEquals(edgeMessage + " whole", original.isWhole(i), serviceArea.isWhole(j));
+      assertEquals(edgeMessage + " entry", original.entryDistance(i), serviceArea.entryDistance(j), quantum);
+      double reached = reachedLength(original, i);
+      double decodedReached = reachedLength(serviceArea, j);
+      // reaches are rounded up, so a decoded region never falls short of the original
+      assertTrue(edgeMessage + " reached " + decodedReached + " of " + reached, decodedReached >= reached - 1e-9
+          && decodedReached <= reached + 3 * quantum);
+    }
+    assertEquals(message + " reached length", region.getReachedLength(), decoded.getReachedLength(), 3 * quantum
+        * original.size());
+  }
+
+  private static double reachedLength(ServiceArea serviceArea, int i) {
+    double[] intervals = new double[6];
+    int count = serviceArea.reachedIntervals(i, intervals);
+    double length = 0;
+    for (int k = 0; k < count; k++) {
+      length += intervals[2 * k + 1] - intervals[2 * k];
+    }
+    return length;
+  }
+}
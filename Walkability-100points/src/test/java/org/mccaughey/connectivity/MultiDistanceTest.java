@@ -0,0 +1,72 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the service areas of several distances derived from one search to the longest match a search to each
+ * distance on its own.
+ */
+public class MultiDistanceTest {
+
+  private static final double TOLERANCE = 1e-6;
+  private static final SearchMode[] SEARCH_MODES = { SearchMode.DIJKSTRA, SearchMode.DELTA_STEPPING,
+      SearchMode.CONTRACTION_HIERARCHY };
+
+  @Test
+  public void sortsAndDropsRepeatedDistances() {
+    List<Double> distances = Arrays.asList(800.0, 150.0, 45.0, 800.0, 2500.0, 150.0);
+    assertArrayEquals(new double[] { 45, 150, 800, 2500 }, NetworkBufferBatch.sortedDistances(distances), 0);
+  }
+
+  @Test
+  public void derivedServiceAreasMatchSeparateSearches() {
+    NetworkGraph graph = TestNetworks.grid(25, 60, 8);
+    double[] distances = NetworkBufferBatch.sortedDistances(Arrays.asList(800.0, 150.0, 45.0, 800.0, 2500.0, 150.0));
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 25, new Random(6));
+    for (SearchMode searchMode : SEARCH_MODES) {
+      for (NetworkLocation origin : origins) {
+        ServiceArea[] derived = NetworkBuffer.findReachedEdges(graph, origin, distances, searchMode, null);
+        assertEquals(distances.length, derived.length);
+        for (int i = 0; i < distances.length; i++) {
+          String message = searchMode + " from " + origin + " within " + distances[i];
+          ServiceArea separate = NetworkBuffer.findReachedEdges(graph, origin, distances[i], searchMode);
+          assertEquals(message + " limit", distances[i], derived[i].getLimit(), 0);
+          assertEquals(message + " edges", TestNetworks.reachedEdges(separate), TestNetworks.reachedEdges(derived[i]));
+          TestNetworks.assertSameReach(message, separate, derived[i], TOLERANCE);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void singleDistanceIsTheSearchItself() {
+    NetworkGraph graph = TestNetworks.grid(10, 100, 2);
+    NetworkLocation origin = new NetworkLocation(3, 20, 0, 0, 0);
+    ServiceArea[] derived = NetworkBuffer.findReachedEdges(graph, origin, NetworkBufferBatch.sortedDistances(Arrays
+        .asList(300.0, 300.0)), SearchMode.DIJKSTRA, null);
+    assertEquals(1, derived.length);
+    TestNetworks.assertSameReach("Within 300", NetworkBufferDijkstra.findServiceArea(graph, origin, 300), derived[0],
+        TOLERANCE);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks reach table lookups against Dijkstra over the same origins and distances, allowing each reach to fall short by
+ * the quantum of the table, and that incomplete tables are refused.
+ */
+public class ReachTableTest {
+
+  private static final double RADIUS = 900;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void reachesTheSameNetworkAsDijkstra() throws IOException {
+    NetworkGraph graph = TestNetworks.grid(20, 60, 5);
+    ReachTable table = write(graph);
+    assertTrue(table.matches(graph));
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 40, new Random(3));
+    for (double distance : new double[] { 45, 300, RADIUS }) {
+      for (NetworkLocation origin : origins) {
+        assertSameReach("From " + origin + " within " + distance, NetworkBufferDijkstra.findServiceArea(graph, origin,
+            distance), table.findServiceArea(graph, origin, distance), table.getQuantum());
+      }
+    }
+  }
+
+  @Test
+  public void reachesTheSameNetworkFromNodes() throws IOException {
+    NetworkGraph graph = TestNetworks.grid(12, 100, 9);
+    ReachTable table = write(graph);
+    for (int edge = 0; edge < graph.edgeCount(); edge += 3) {
+      for (double offset : new double[] { 0, graph.edgeLength(edge) }) {
+        NetworkLocation origin = new NetworkLocation(edge, offset, 0, 0, 0);
+        assertSameReach("From " + origin, NetworkBufferDijkstra.findServiceArea(graph, origin, 350), table
+            .findServiceArea(graph, origin, 350), table.getQuantum());
+      }
+    }
+  }
+
+  @Test
+  public void leavesNoPartialFile() throws IOException {
+    File file = folder.newFile("grid.reach");
+    ReachTable.write(TestNetworks.grid(6, 60, 1), RADIUS, file);
+    assertTrue(file.length() > 0);
+    assertFalse(new File(file.getPath() + ".part").exists());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesATableWithoutItsIndex() throws IOException {
+    File file = folder.newFile("grid.reach");
+    ReachTable.write(TestNetworks.grid(6, 60, 1), RADIUS, file);
+    // as a table whose write stopped before the index position was filled in
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(40);
+      raf.writeLong(0);
+    } finally {
+      raf.close();
+    }
+    ReachTable.open(file);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesATruncatedTable() throws IOException {
+    File file = folder.newFile("grid.reach");
+    ReachTable.write(TestNetworks.grid(6, 60, 1), RADIUS, file);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 16);
+    } finally {
+      raf.close();
+    }
+    ReachTable.open(file);
+  }
+
+  private ReachTable write(NetworkGraph graph) throws IOException {
+    File file = new File(folder.getRoot(), "grid.reach");
+    ReachTable.write(graph, RADIUS, file);
+    return ReachTable.open(file);
+  }
+
+  // the lookup reaches no further than the search, each reach at most a quantum short of it, with the same edges whole
+  private static void assertSameReach(String message, ServiceArea expected, ServiceArea actual, double quantum) {
+    Map<Integer, Integer> actualIndex = new HashMap<Integer, Integer>();
+    for (int i = 0; i < actual.size(); i++) {
+      actualIndex.put(actual.edge(i), i);
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      int edge = expected.edge(i);
+      String edgeMessage = message + " edge " + edge;
+      double searched = reachedLength(expected, i);
+      Integer j = actualIndex.remove(edge);
+      if (j == null) {
+        // only an edge touched by a node within a quantum of the limit may be missed
+        assertTrue(edgeMessage + " missed, reached " + searched, searched <= 2 * quantum);
+        continue;
+      }
+      double looked = reachedLength(actual, j);
+      assertTrue(edgeMessage + " reached " + looked + " of " + searched, looked <= searched + 1e-9
+          && looked >= searched - 4 * quantum);
+      if (expected.isWhole(i)) {
+        assertTrue(edgeMessage + " whole", actual.isWhole(j));
+      } else if (actual.isWhole(j)) {
+        // counted whole when the search leaves a gap no longer than the quanta the reaches either side may be short by
+        assertTrue(edgeMessage + " whole", searched >= expected.getGraph().edgeLength(edge) - 2 * quantum);
+      }
+    }
+    assertTrue(message + " reached edges the search did not " + actualIndex.keySet(), actualIndex.isEmpty());
+  }
+
+  private static double reachedLength(ServiceArea serviceArea, int i) {
+    double[] intervals = new double[6];
+    int count = serviceArea.reachedIntervals(i, intervals);
+    double length = 0;
+    for (int k = 0; k < count; k++) {
+      length += intervals[2 * k + 1] - intervals[2 * k];
+    }
+    return length;
+  }
+}
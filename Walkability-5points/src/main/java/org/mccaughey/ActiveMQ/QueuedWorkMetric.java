@@ -0,0 +1,152 @@
+package org.mccaughey.ActiveMQ;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.mccaughey.connectivity.WorkEstimator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+
+/**
+ * Serves the estimated seconds of work waiting in a queue as a Prometheus gauge on /metrics, so the autoscaler can
+ * scale a stage on the work queued for it rather than on CPU alone. The queue is browsed and the "estimatedSeconds"
+ * property of each message summed, messages without one count as a second. A browse is reused for scrapes that come
+ * within BROWSE_CACHE_MILLIS of it, so scraping every pod often does not keep walking the queue.
+ *
+ * Every replica of a stage serves the same total for the whole queue, so the series must be combined with max rather
+ * than summed, see hpa/prometheus-adapter-rules.yaml.
+ *
+ * The broker hands a browser at most its maxBrowsePageSize messages, 400 unless the policyEntry of the queue in
+ * activemq.xml sets it higher, so a longer queue is only partly counted. The work of those messages is still well over
+ * the HPA targets, so the stage scales out all the same, and walkability_queued_browse_limited is 1 while it happens.
+ */
+public class QueuedWorkMetric implements Runnable, HttpHandler {
+    //URL of the JMS server
+    private static String url = "tcp://115.146.85.235:61616";
+    //Messages sent without an estimate count as this many seconds
+    private static final double DEFAULT_SECONDS = 1.0;
+    //The broker default of maxBrowsePageSize, a browse that reaches it may have missed messages
+    private static final int BROWSE_LIMIT = 400;
+    //Scrapes within this long of the last browse are served from it
+    private static final long BROWSE_CACHE_MILLIS = 10000;
+
+    private String subject; // Queue Name.
+    private int port;
+    private Connection connection;
+    private Session session;
+    private Queue queue;
+    private HttpServer server;
+    private String lastScrape;
+    private long lastScrapeMillis;
+
+    public QueuedWorkMetric(String subject, int port){
+        this.subject = subject;
+        this.port = port;
+    }
+
+    public void run(){
+        try{
+            ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(url);
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            queue = session.createQueue(subject);
+
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/metrics", this);
+            server.start();
+            System.out.println("Serving queued work of " + subject + " on port " + port);
+        }
+        catch(JMSException e){
+            e.printStackTrace();
+        }
+        catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+        int status = 200;
+        try {
+            body = scrape().getBytes(Charset.forName("UTF-8"));
+        } catch (JMSException e) {
+            body = ("Cannot browse " + subject + ": " + e.getMessage()).getBytes(Charset.forName("UTF-8"));
+            status = 503;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    //The session is not shared between threads, so scrapes take turns
+    public synchronized String scrape() throws JMSException {
+        long now = System.currentTimeMillis();
+        if (lastScrape != null && now - lastScrapeMillis < BROWSE_CACHE_MILLIS) {
+            return lastScrape;
+        }
+        lastScrape = browse();
+        lastScrapeMillis = now;
+        return lastScrape;
+    }
+
+    private String browse() throws JMSException {
+        double seconds = 0;
+        int messages = 0;
+        QueueBrowser browser = session.createBrowser(queue);
+        try {
+            Enumeration<?> queued = browser.getEnumeration();
+            while (queued.hasMoreElements()) {
+                Message message = (Message) queued.nextElement();
+                seconds += message.propertyExists(WorkEstimator.ESTIMATED_SECONDS)
+                        ? message.getDoubleProperty(WorkEstimator.ESTIMATED_SECONDS) : DEFAULT_SECONDS;
+                messages++;
+            }
+        } finally {
+            browser.close();
+        }
+        String label = "{queue=\"" + subject + "\"}";
+        return "# HELP walkability_queued_work_seconds Estimated seconds of work waiting in the queue\n"
+                + "# TYPE walkability_queued_work_seconds gauge\n"
+                + "walkability_queued_work_seconds" + label + " " + seconds + "\n"
+                + "# HELP walkability_queued_messages Messages waiting in the queue\n"
+                + "# TYPE walkability_queued_messages gauge\n"
+                + "walkability_queued_messages" + label + " " + messages + "\n"
+                + "# HELP walkability_queued_browse_limited 1 if the queue had more messages than could be browsed\n"
+                + "# TYPE walkability_queued_browse_limited gauge\n"
+                + "walkability_queued_browse_limited" + label + " " + (messages >= BROWSE_LIMIT ? 1 : 0) + "\n";
+    }
+
+    public void close(){
+        if (server != null) {
+            server.stop(0);
+        }
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+}
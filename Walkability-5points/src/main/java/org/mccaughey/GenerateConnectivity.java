@@ -12,20 +12,23 @@ import javax.jms.MessageListener;
 
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
-import org.geotools.data.DataUtilities;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.mccaughey.ActiveMQ.QueuedWorkMetric;
 import org.mccaughey.ActiveMQ.Sender;
 import org.mccaughey.connectivity.ConnectivityIndex;
 import org.mccaughey.connectivity.NetworkBufferOMS;
-import org.mccaughey.utilities.GeoJSONUtilities;
+import org.mccaughey.connectivity.NetworkCleaner;
+import org.mccaughey.connectivity.TiledNetwork;
 import org.opengis.feature.simple.SimpleFeature;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
 import java.io.*;
-import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -39,6 +42,8 @@ public class GenerateConnectivity implements MessageListener,Runnable {
     private static String subject_Receive = "PolygonConnectivity";
     private Connection connection_Receive;
     private static Sender sender;
+    // The road network tiles read so far, shared by every message
+    private static TiledNetwork tiledRoads;
 
     public static void main(String[] argv){
 
@@ -46,6 +51,10 @@ public class GenerateConnectivity implements MessageListener,Runnable {
         Thread receiver = new Thread(l);
         receiver.start();
 
+        //Serve the estimated work waiting in the queue for the autoscaler
+        Thread metricThread = new Thread(new QueuedWorkMetric(subject_Receive, Config.METRICS_PORT));
+        metricThread.start();
+
         sender = new Sender("connectivityZscore");
         Thread senderThread = new Thread(sender);
         senderThread.start();
@@ -96,9 +105,17 @@ public class GenerateConnectivity implements MessageListener,Runnable {
                 FeatureJSON fjson = new FeatureJSON();
                 SimpleFeature region = fjson.readFeature(inputStream);
 
-                URL roadsUrl = new File("./src/main/java/org/mccaughey/psma_cut_projected.geojson.gz").toURI().toURL();
-
-                SimpleFeature connectivityFeature = ConnectivityIndex.connectivity(DataUtilities.source(GeoJSONUtilities.readFeatures(roadsUrl)), region);
+                //Only the road tiles under the region are read
+                Envelope regionBounds = ((Geometry) region.getDefaultGeometry()).getEnvelopeInternal();
+                SimpleFeatureSource roads = getTiledRoads().sourceFor(regionBounds);
+                SimpleFeature connectivityFeature;
+                if (Config.CONNECTIVITY_CELL_SIZE > 0) {
+                    //Screening runs estimate from the intersection grid
+                    connectivityFeature = ConnectivityIndex.approximateConnectivity(roads, region,
+                            Config.CONNECTIVITY_CELL_SIZE, Config.CONNECTIVITY_MAX_ERROR);
+                } else {
+                    connectivityFeature = ConnectivityIndex.connectivity(roads, region);
+                }
                 Double connectivity = (Double) connectivityFeature.getAttribute("Connectivity");
 
                 int currCounter;
@@ -158,6 +175,14 @@ public class GenerateConnectivity implements MessageListener,Runnable {
 
     }
 
+    private static synchronized TiledNetwork getTiledRoads() throws IOException {
+        if (tiledRoads == null) {
+            File cleanRoads = NetworkCleaner.cleaned(new File(Config.ROADS_FILE), new File(Config.CLEAN_ROADS_FILE));
+            tiledRoads = TiledNetwork.open(cleanRoads, new File(Config.ROAD_TILE_DIRECTORY), Config.ROAD_TILE_SIZE);
+        }
+        return tiledRoads;
+    }
+
     public void close(){
         try {
             connection_Receive.close();
@@ -5,9 +5,13 @@ import org.geotools.geojson.feature.FeatureJSON;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mccaughey.ActiveMQ.Sender;
+import org.mccaughey.connectivity.WorkEstimator;
 import org.mccaughey.utilities.GeoJSONUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -111,16 +115,37 @@ public class SendPoint {
             fout_3.flush();
             fout_3.close();
 
+            //Estimate the work of each point from the road density around it, so the stages can scale on queued work
+            WorkEstimator estimator = null;
+            try {
+                estimator = WorkEstimator.open(new File(Config.ROADS_FILE), new File(Config.ROAD_DENSITY_FILE),
+                        Config.ROAD_DENSITY_CELL_SIZE);
+                estimator.setCost(Config.WORK_SECONDS_PER_POINT, Config.WORK_SECONDS_PER_KM);
+            } catch (IOException e) {
+                System.out.println("Sending points without work estimates: " + e.toString());
+            }
+
             URL pointsUrl = new File("./src/main/java/org/mccaughey/Rndm5ptsProjected.json").toURI().toURL();
             SimpleFeatureIterator points = GeoJSONUtilities.readFeatures(pointsUrl).features();
             int counter = 0;
+            double estimatedSeconds = 0;
             while(points.hasNext()){
                 counter++;
                 SimpleFeature point = points.next();
                 FeatureJSON fjson = new FeatureJSON();
                 String output = fjson.toString(point);
-                p.sendMessage(counter + "--" + output);
+                if (estimator == null) {
+                    p.sendMessage(counter + "--" + output);
+                } else {
+                    Point centre = ((Geometry) point.getDefaultGeometry()).getCentroid();
+                    double estimate = estimator.estimateSeconds(centre.getX(), centre.getY(),
+                            Config.DISTANCE + Config.BUFFER_SIZE);
+                    estimatedSeconds += estimate;
+                    p.sendMessage(counter + "--" + output, estimate);
+                }
             }
+            points.close();
+            System.out.println("Sent " + counter + " points, estimated at " + estimatedSeconds + "s of work");
 
         }
         catch(IOException e){
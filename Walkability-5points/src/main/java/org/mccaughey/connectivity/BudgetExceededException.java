@@ -0,0 +1,32 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * Thrown when a point goes over its {@link PointBudget}, either from the buffer union part way through or by the
+ * batch when the budget says over budget points fail
+ */
+public class BudgetExceededException extends IllegalStateException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * @param reason
+   *          The limit that was exceeded
+   */
+  public BudgetExceededException(String reason) {
+    super(reason);
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import jsr166y.ForkJoinPool;
+import jsr166y.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.operation.buffer.BufferParameters;
+
+/**
+ * Buffers a set of network lines into a single region. The lines are sorted along a Hilbert curve so that lines close
+ * together on the ground are close together in the list, then the list is split in half recursively on a ForkJoinPool.
+ * Each small run of lines is buffered in one go as a multi line, and the halves are unioned on the way back up, so
+ * every union joins two regions of similar size that mostly overlap rather than adding one edge at a time to an ever
+ * growing region.
+ */
+public final class BufferUnion {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(BufferUnion.class);
+  // runs of lines at most this long are buffered together on one thread
+  private static final int LEAF_SIZE = 32;
+  private static ForkJoinPool pool;
+
+  private final PrecisionModel precisionModel;
+  private final GeometryFactory geometryFactory;
+  private final int quadrantSegments;
+
+  /**
+   * Creates a buffer union with floating precision and the default number of quadrant segments
+   */
+  public BufferUnion() {
+    this(new PrecisionModel(), BufferParameters.DEFAULT_QUADRANT_SEGMENTS);
+  }
+
+  /**
+   * @param precisionModel
+   *          The precision the lines are rounded to before buffering, a fixed precision gives faster, more robust
+   *          unions
+   * @param quadrantSegments
+   *          The number of line segments used to approximate a quarter circle in the buffers
+   */
+  public BufferUnion(PrecisionModel precisionModel, int quadrantSegments) {
+    this.precisionModel = precisionModel;
+    this.geometryFactory = new GeometryFactory(precisionModel);
+    this.quadrantSegments = quadrantSegments;
+  }
+
+  /**
+   * Buffers the lines and unions the buffers
+   *
+   * @param geometries
+   *          The lines to buffer, multi lines are split into their component lines
+   * @param distance
+   *          The distance to buffer
+   * @return The region within distance of any of the lines
+   */
+  public Geometry union(Collection<Geometry> geometries, double distance) {
+    return union(geometries, distance, null);
+  }
+
+  /**
+   * Buffers the lines and unions the buffers, charging each union to a point budget. The clock is read before every
+   * run of lines is buffered and every pair of regions is unioned.
+   *
+   * @param geometries
+   *          The lines to buffer, multi lines are split into their component lines
+   * @param distance
+   *          The distance to buffer
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The region within distance of any of the lines
+   * @throws BudgetExceededException
+   *           if the point goes over budget
+   */
+  public Geometry union(Collection<Geometry> geometries, double distance, PointBudget.Meter meter) {
+    return union(geometries, Collections.<Geometry> emptyList(), distance, meter);
+  }
+
+  /**
+   * Buffers the lines and unions the buffers together with regions that are already buffered, such as the cached
+   * buffers of whole edges from {@link EdgeBufferCache}. The lines and regions are sorted along the Hilbert curve
+   * together, so each region is unioned with its neighbours.
+   *
+   * @param geometries
+   *          The lines to buffer, multi lines are split into their component lines
+   * @param buffered
+   *          Regions already buffered by distance with {@link #buffer(LineString, double)}
+   * @param distance
+   *          The distance to buffer
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The region within distance of any of the lines, joined with the buffered regions
+   * @throws BudgetExceededException
+   *           if the point goes over budget
+   */
+  public Geometry union(Collection<Geometry> geometries, Collection<Geometry> buffered, double distance,
+      PointBudget.Meter meter) {
+    List<Geometry> items = new ArrayList<Geometry>();
+    for (Geometry geometry : geometries) {
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        items.add(toPrecision((LineString) geometry.getGeometryN(i)));
+      }
+    }
+    int lineCount = items.size();
+    items.addAll(buffered);
+    Geometry[] sorted = sort(items);
+    LOGGER.debug("Buffering {} lines with {} buffered regions", lineCount, buffered.size());
+    Union union = new Union(sorted, 0, sorted.length, distance, meter);
+    if (sorted.length <= LEAF_SIZE) {
+      return union.compute();
+    }
+    return getPool().invoke(union);
+  }
+
+  /**
+   * Buffers a single line with the precision and quadrant segments of this engine, as the lines given to union are
+   *
+   * @param line
+   *          The line to buffer
+   * @param distance
+   *          The distance to buffer
+   * @return The buffer of the line
+   */
+  public Geometry buffer(LineString line, double distance) {
+    return toPrecision(line).buffer(distance, quadrantSegments);
+  }
+
+  private LineString toPrecision(LineString line) {
+    if (precisionModel.isFloating()) {
+      return geometryFactory.createLineString(line.getCoordinates());
+    }
+    Coordinate[] coords = line.getCoordinates();
+    Coordinate[] precise = new Coordinate[coords.length];
+    for (int i = 0; i < coords.length; i++) {
+      precise[i] = new Coordinate(coords[i]);
+      precisionModel.makePrecise(precise[i]);
+    }
+    return geometryFactory.createLineString(precise);
+  }
+
+  // orders the geometries along a Hilbert curve through the centres of their envelopes
+  private static Geometry[] sort(List<Geometry> lines) {
+    Envelope bounds = new Envelope();
+    for (Geometry line : lines) {
+      bounds.expandToInclude(line.getEnvelopeInternal());
+    }
+    double width = Math.max(bounds.getWidth(), Double.MIN_NORMAL);
+    double height = Math.max(bounds.getHeight(), Double.MIN_NORMAL);
+    long[] keys = new long[lines.size()];
+    for (int i = 0; i < keys.length; i++) {
+      Envelope envelope = lines.get(i).getEnvelopeInternal();
+      double cx = (envelope.getMinX() + envelope.getMaxX()) / 2;
+      double cy = (envelope.getMinY() + envelope.getMaxY()) / 2;
+      int hx = (int) (SnapIndex.HILBERT_MAX * (cx - bounds.getMinX()) / width);
+      int hy = (int) (SnapIndex.HILBERT_MAX * (cy - bounds.getMinY()) / height);
+      keys[i] = ((long) SnapIndex.hilbert(hx, hy) << 32) | i;
+    }
+    Arrays.sort(keys);
+    Geometry[] sorted = new Geometry[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      sorted[i] = lines.get((int) keys[i]);
+    }
+    return sorted;
+  }
+
+  /**
+   * Buffer unions with the same precision and quadrant segments make the same buffers
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof BufferUnion)) {
+      return false;
+    }
+    BufferUnion other = (BufferUnion) o;
+    return quadrantSegments == other.quadrantSegments && precisionModel.equals(other.precisionModel);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * precisionModel.hashCode() + quadrantSegments;
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      int nThreads = Runtime.getRuntime().availableProcessors();
+      LOGGER.debug("Initialising ForkJoinPool with {}", nThreads);
+      pool = new ForkJoinPool(nThreads);
+    }
+    return pool;
+  }
+
+  /**
+   * Buffers and unions a run of the sorted lines and regions, bisecting the run until it is small enough
+   */
+  private final class Union extends RecursiveTask<Geometry> {
+    private static final long serialVersionUID = 1L;
+    private final Geometry[] items;
+    private final int from;
+    private final int to;
+    private final double distance;
+    private final transient PointBudget.Meter meter;
+
+    Union(Geometry[] items, int from, int to, double distance, PointBudget.Meter meter) {
+      this.items = items;
+      this.from = from;
+      this.to = to;
+      this.distance = distance;
+      this.meter = meter;
+    }
+
+    @Override
+    protected Geometry compute() {
+      if (to - from <= LEAF_SIZE) {
+        if (meter != null) {
+          meter.checkTime();
+        }
+        return leaf();
+      }
+      int middle = (from + to) >>> 1;
+      Union left = new Union(items, from, middle, distance, meter);
+      Union right = new Union(items, middle, to, distance, meter);
+      left.fork();
+      Geometry rightRegion = right.compute();
+      Geometry leftRegion = left.join();
+      if (meter != null) {
+        meter.chargeUnion();
+      }
+      return leftRegion.union(rightRegion);
+    }
+
+    // buffers the lines of the run in one go, then unions the buffer with the regions of the run
+    private Geometry leaf() {
+      List<LineString> leafLines = new ArrayList<LineString>();
+      List<Geometry> regions = new ArrayList<Geometry>();
+      for (int i = from; i < to; i++) {
+        if (items[i] instanceof LineString) {
+          leafLines.add((LineString) items[i]);
+        } else {
+          regions.add(items[i]);
+        }
+      }
+      if (!leafLines.isEmpty() || regions.isEmpty()) {
+        regions.add(geometryFactory.createMultiLineString(leafLines.toArray(new LineString[leafLines.size()]))
+            .buffer(distance, quadrantSegments));
+      }
+      if (regions.size() == 1) {
+        return regions.get(0);
+      }
+      if (meter != null) {
+        meter.chargeUnion();
+      }
+      return geometryFactory.buildGeometry(regions).union();
+    }
+  }
+}
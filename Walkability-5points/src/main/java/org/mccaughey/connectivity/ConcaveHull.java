@@ -0,0 +1,122 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+
+/**
+ * A concave hull of a service area, built as an alpha shape of the reached edge vertices: the Delaunay triangles with
+ * no side longer than a maximum edge length are unioned and the result is buffered. Lines are densified first so that
+ * long straight edges keep their shape, and any line left outside the kept triangles (a dead end or an isolated
+ * street) is buffered along with the hull, so nothing reached is lost.
+ *
+ * Shorter maximum edge lengths hug the network more tightly, longer ones approach the convex hull.
+ */
+public final class ConcaveHull {
+
+  private ConcaveHull() {
+  }
+
+  /**
+   * Creates the buffered concave hull of a set of lines
+   *
+   * @param lines
+   *          The reached lines, multi lines are split into their component lines
+   * @param distance
+   *          The distance to buffer the hull
+   * @param maxEdgeLength
+   *          The longest triangle side kept in the hull, sets how tightly the hull follows the lines
+   * @param geometryFactory
+   *          The factory to create the hull with
+   * @return The buffered hull
+   */
+  public static Geometry create(Collection<Geometry> lines, double distance, double maxEdgeLength,
+      GeometryFactory geometryFactory) {
+    if (maxEdgeLength <= 0) {
+      throw new IllegalArgumentException("Maximum edge length must be positive: " + maxEdgeLength);
+    }
+    List<Coordinate[]> densified = new ArrayList<Coordinate[]>();
+    Set<Coordinate> sites = new HashSet<Coordinate>();
+    for (Geometry geometry : lines) {
+      for (int i = 0; i < geometry.getNumGeometries(); i++) {
+        Coordinate[] coords = densify(((LineString) geometry.getGeometryN(i)).getCoordinates(), maxEdgeLength);
+        densified.add(coords);
+        for (Coordinate coord : coords) {
+          sites.add(coord);
+        }
+      }
+    }
+
+    List<Geometry> parts = new ArrayList<Geometry>();
+    Set<Coordinate> covered = new HashSet<Coordinate>();
+    if (sites.size() >= 3) {
+      DelaunayTriangulationBuilder triangulation = new DelaunayTriangulationBuilder();
+      triangulation.setSites(sites);
+      Geometry triangles = triangulation.getTriangles(geometryFactory);
+      List<Geometry> kept = new ArrayList<Geometry>();
+      for (int i = 0; i < triangles.getNumGeometries(); i++) {
+        Geometry triangle = triangles.getGeometryN(i);
+        Coordinate[] corners = triangle.getCoordinates();
+        if (corners[0].distance(corners[1]) <= maxEdgeLength && corners[1].distance(corners[2]) <= maxEdgeLength
+            && corners[2].distance(corners[0]) <= maxEdgeLength) {
+          kept.add(triangle);
+          covered.add(corners[0]);
+          covered.add(corners[1]);
+          covered.add(corners[2]);
+        }
+      }
+      if (!kept.isEmpty()) {
+        parts.add(CascadedPolygonUnion.union(kept));
+      }
+    }
+    for (Coordinate[] coords : densified) {
+      for (int j = 0; j < coords.length - 1; j++) {
+        if (!covered.contains(coords[j]) || !covered.contains(coords[j + 1])) {
+          parts.add(geometryFactory.createLineString(new Coordinate[] { coords[j], coords[j + 1] }));
+        }
+      }
+    }
+    return geometryFactory.buildGeometry(parts).buffer(distance);
+  }
+
+  // adds vertices so that no segment is longer than spacing
+  private static Coordinate[] densify(Coordinate[] coords, double spacing) {
+    List<Coordinate> dense = new ArrayList<Coordinate>();
+    for (int i = 0; i < coords.length; i++) {
+      if (i > 0) {
+        Coordinate from = coords[i - 1];
+        Coordinate to = coords[i];
+        int pieces = (int) Math.ceil(from.distance(to) / spacing);
+        for (int k = 1; k < pieces; k++) {
+          double fraction = (double) k / pieces;
+          dense.add(new Coordinate(from.x + (to.x - from.x) * fraction, from.y + (to.y - from.y) * fraction));
+        }
+      }
+      dense.add(coords[i]);
+    }
+    return dense.toArray(new Coordinate[dense.size()]);
+  }
+}
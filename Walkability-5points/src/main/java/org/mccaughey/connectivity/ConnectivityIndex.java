@@ -5,33 +5,17 @@
 package org.mccaughey.connectivity;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.graph.build.feature.FeatureGraphGenerator;
-import org.geotools.graph.build.line.LineStringGraphGenerator;
-import org.geotools.graph.structure.Edge;
-import org.geotools.graph.structure.Graph;
-import org.geotools.graph.structure.Node;
 import org.mccaughey.utilities.ValidationUtils;
-import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.FeatureType;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
 
 /**
  * Calculates the Connectivity Index - count of 3 legged intersection per square kilometer, from a region and a network.
@@ -49,7 +33,8 @@ public final class ConnectivityIndex {
   }
 
   /**
-   * Calculates the connectivity of a region upon a network
+   * Calculates the connectivity of a region upon a network. The intersections are counted from the index of the
+   * network graph, which is built once per source, so regions sharing a source share the graph and its index.
    * 
    * @param featureSource
    *          the feature source containing features in the network
@@ -60,10 +45,23 @@ public final class ConnectivityIndex {
    */
   public static SimpleFeature connectivity(SimpleFeatureSource featureSource, SimpleFeature roiFeature)
       throws IOException {
+    return connectivity(NetworkGraph.forSource(featureSource).getIntersectionIndex(), roiFeature);
+  }
+
+  /**
+   * Calculates the connectivity of a region from the intersections of a network
+   * 
+   * @param intersections
+   *          the intersection index of the network, see {@link NetworkGraph#getIntersectionIndex()}
+   * @param roiFeature
+   *          the region of interest
+   * @return returns the connections per square kilometer in the roi
+   */
+  public static SimpleFeature connectivity(IntersectionIndex intersections, SimpleFeature roiFeature) {
     LOGGER.debug("Calculating connectivity with feature {}", roiFeature.getID());
     Geometry roiGeom = (Geometry) roiFeature.getDefaultGeometryProperty().getValue();
 
-    Graph graph = buildLineNetwork(featureSource, roiGeom);
+    int connections = intersections.count(roiGeom);
     // Construct a new feature with a "Connectivity" attribute to store
     // connectivity in //
     SimpleFeatureType sft = (SimpleFeatureType) roiFeature.getType();
@@ -79,84 +77,58 @@ public final class ConnectivityIndex {
     sfb.addAll(roiFeature.getAttributes());
 
     double area = roiGeom.getArea();
-    double connectivity = countConnections(graph, roiFeature) / (area / 1000000); // FIXME: converting to sq. km. -- bit
-                                                                                  // dodgy should
-                                                                                  // check units but assuming in metres
+    double connectivity = connections / (area / 1000000); // FIXME: converting to sq. km. -- bit
+                                                          // dodgy should
+                                                          // check units but assuming in metres
     sfb.add(ValidationUtils.isValidDouble(connectivity) ? connectivity : null);
     sfb.add(area);
 
-    sfb.add(countConnections(graph, roiFeature));
+    sfb.add(connections);
     SimpleFeature connectivityFeature = sfb.buildFeature(roiFeature.getID());
 
     return connectivityFeature;
   }
 
   /**
-   * Constructs a geotools Graph line network from a feature source within a given region of interest
+   * Estimates the connectivity of a region upon a network from a grid of intersection counts, for screening runs that
+   * do not need every intersection tested. The feature has the attributes of
+   * {@link #connectivity(SimpleFeatureSource, SimpleFeature)} plus "ConnectionsError", the most the estimated
+   * connections can differ from the exact count.
    * 
    * @param featureSource
-   *          the network feature source
-   * @param roi
-   *          the region of interest (must be a polygon?)
-   * @return returns a geotools Graph based on the features within the region of interest
+   *          the feature source containing features in the network
+   * @param roiFeature
+   *          the region of interest
+   * @param cellSize
+   *          the width of a grid cell in network units
+   * @param maxError
+   *          the most the connections may differ from the exact count, 0 for an exact count
+   * @return returns the estimated connections per square kilometer in the roi
    * @throws IOException
    */
-  private static Graph buildLineNetwork(SimpleFeatureSource featureSource, Geometry roi) throws IOException {
-    // Construct a filter which first filters within the bbox of roi and then
-    // filters with intersections of roi
-    FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
-    FeatureType schema = featureSource.getSchema();
-
-    String geometryPropertyName = schema.getGeometryDescriptor().getLocalName();
-
-    Filter filter = ff.intersects(ff.property(geometryPropertyName), ff.literal(roi));
-
-    // get a feature collection of filtered features
-    SimpleFeatureCollection fCollection = featureSource.getFeatures(filter);
-
-    // create a linear graph generator
-    LineStringGraphGenerator lineStringGen = new LineStringGraphGenerator();
-
-    // wrap it in a feature graph generator
-    FeatureGraphGenerator featureGen = new FeatureGraphGenerator(lineStringGen);
-
-    // put all the features that intersect the roi into the graph generator
-    FeatureIterator iter = fCollection.features();
-
-    try {
-      while (iter.hasNext()) {
-        Feature feature = iter.next();
-        featureGen.add(feature);
-      }
-    } finally {
-      iter.close();
-    }
-    return featureGen.getGraph();
-  }
+  public static SimpleFeature approximateConnectivity(SimpleFeatureSource featureSource, SimpleFeature roiFeature,
+      double cellSize, int maxError) throws IOException {
+    LOGGER.debug("Estimating connectivity with feature {}", roiFeature.getID());
+    Geometry roiGeom = (Geometry) roiFeature.getDefaultGeometryProperty().getValue();
 
-  /**
-   * Counts all the connections (3 legged nodes) in a graph
-   * 
-   * @param graph
-   *          the graph to process.
-   * @return returns the total number of connections
-   */
-  private static int countConnections(Graph graph, SimpleFeature roi) {
-    int count = 0;
-    List<SimpleFeature> features = new ArrayList();
-    for (Node node : (Collection<Node>) graph.getNodes()) {
-      if (node.getDegree() >= 3) { // 3 or more legged nodes are connected
+    IntersectionGrid.Estimate estimate = NetworkGraph.forSource(featureSource).getIntersectionGrid(cellSize)
+        .estimate(roiGeom, maxError);
+    SimpleFeatureTypeBuilder stb = new SimpleFeatureTypeBuilder();
+    stb.init((SimpleFeatureType) roiFeature.getType());
+    stb.setName("connectivityFeatureType");
+    stb.add("Connectivity", Double.class);
+    stb.add("Area", Double.class);
+    stb.add("Connections", Integer.class);
+    stb.add("ConnectionsError", Integer.class);
+    SimpleFeatureBuilder sfb = new SimpleFeatureBuilder(stb.buildFeatureType());
+    sfb.addAll(roiFeature.getAttributes());
 
-        for (Edge edge : (List<Edge>) node.getEdges()) {
-          features.add(((SimpleFeature) edge.getObject()));
-        }
-        Point nPoint = ((Point) node.getObject());
-        Geometry roiGeom = (Geometry) (roi.getDefaultGeometry());
-        if (roiGeom.intersects(nPoint)) {
-          count++;
-        }
-      }
-    }
-    return count;
+    double area = roiGeom.getArea();
+    double connectivity = estimate.getCount() / (area / 1000000); // assuming metres, as above
+    sfb.add(ValidationUtils.isValidDouble(connectivity) ? connectivity : null);
+    sfb.add(area);
+    sfb.add(estimate.getCount());
+    sfb.add(estimate.getError());
+    return sfb.buildFeature(roiFeature.getID());
   }
 }
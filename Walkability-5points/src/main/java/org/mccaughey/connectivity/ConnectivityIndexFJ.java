@@ -4,7 +4,9 @@
  */
 package org.mccaughey.connectivity;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import jsr166y.ForkJoinPool;
 import jsr166y.RecursiveAction;
@@ -17,8 +19,13 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
- * Calculates connectivity for a set of regions using a Fork/Join for concurrency
+ * Calculates connectivity for a set of regions using a Fork/Join for concurrency. Every task shares the intersection
+ * index of the road network and a cost estimate of each region (the intersections under its envelope plus its
+ * vertices), and splits its regions in two by cost until a task holds a small share of the total, so a few large
+ * regions are spread over the workers rather than queued behind one of them.
  * 
  * @author amacaulay
  */
@@ -26,9 +33,34 @@ public class ConnectivityIndexFJ extends RecursiveAction {
 
   private static final long serialVersionUID = 1L;
   static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityIndexFJ.class);
+  // tasks are split until each holds at most 1 / (threads * LEAVES_PER_THREAD) of the cost, leaving work to steal
+  private static final int LEAVES_PER_THREAD = 8;
   private transient DefaultFeatureCollection results;
   private final transient SimpleFeatureSource roadsFeatureSource;
   private final transient SimpleFeatureCollection regions;
+  private transient Batch batch;
+  private int from;
+  private int to;
+  // the connectivity features of regions from to to - 1, in region order
+  private transient List<SimpleFeature> features;
+
+  /**
+   * The regions of a calculation and what every task shares, fixed before the first split
+   */
+  private static final class Batch {
+    private final IntersectionIndex intersections;
+    private final SimpleFeature[] regions;
+    // the cost of regions 0 to i - 1 is costs[i]
+    private final double[] costs;
+    private final double leafCost;
+
+    private Batch(IntersectionIndex intersections, SimpleFeature[] regions, double[] costs, double leafCost) {
+      this.intersections = intersections;
+      this.regions = regions;
+      this.costs = costs;
+      this.leafCost = leafCost;
+    }
+  }
 
   public SimpleFeatureCollection getResults() {
     return results;
@@ -46,61 +78,95 @@ public class ConnectivityIndexFJ extends RecursiveAction {
     this.results = new DefaultFeatureCollection();
   }
 
+  private ConnectivityIndexFJ(Batch batch, int from, int to) {
+    this.roadsFeatureSource = null;
+    this.regions = null;
+    this.batch = batch;
+    this.from = from;
+    this.to = to;
+  }
+
   /**
-   * Computes the connectivity index, for a single region, otherwise if there are multiple regions it splits the task
-   * into single region operations and invokes separately note: this is slightly different from normal fork/join which
-   * bisects until the threshold condition is met.
+   * Computes the connectivity of the regions of the task. A task over its share of the cost is bisected at the middle
+   * of its cost, down to single regions, and the halves are invoked together, otherwise the regions are calculated in
+   * turn into a list of the task.
    */
   @Override
   protected void compute() {
-    if (regions.size() <= 100) { // if there is only one region compute the
-      SimpleFeatureIterator regionsIter = regions.features(); // connectivity
-                                                              // and store in
-                                                              // results
+    if (batch == null) {
       try {
-
-        while (regionsIter.hasNext()) {
-          SimpleFeature region = regionsIter.next();
-          SimpleFeature connectivityFeature = ConnectivityIndex.connectivity(roadsFeatureSource, region);
-          results.add(connectivityFeature);
-        }
-        LOGGER.debug("Completed {} features connectivity", regions.size());
-      } catch (Exception e) {
+        batch = prepare(getPool().getParallelism());
+      } catch (IOException e) {
         LOGGER.debug("Completing with exception {}", e.getMessage());
         this.completeExceptionally(e);
-      } finally {
-        regionsIter.close();
+        return;
+      }
+      from = 0;
+      to = batch.regions.length;
+    }
+    if (to - from > 1 && batch.costs[to] - batch.costs[from] > batch.leafCost) {
+      ConnectivityIndexFJ left = new ConnectivityIndexFJ(batch, from, split());
+      ConnectivityIndexFJ right = new ConnectivityIndexFJ(batch, left.to, to);
+      invokeAll(left, right);
+      features = left.features;
+      features.addAll(right.features);
+    } else {
+      features = new ArrayList<SimpleFeature>(to - from);
+      for (int i = from; i < to; i++) {
+        features.add(ConnectivityIndex.connectivity(batch.intersections, batch.regions[i]));
+      }
+      LOGGER.debug("Completed {} features connectivity", to - from);
+    }
+    if (results != null) {
+      results.addAll(features);
+    }
+  }
+
+  /**
+   * Reads the regions and their costs, and builds the intersection index of the network if it is not already cached
+   */
+  private Batch prepare(int threads) throws IOException {
+    IntersectionIndex intersections = NetworkGraph.forSource(roadsFeatureSource).getIntersectionIndex();
+    List<SimpleFeature> list = new ArrayList<SimpleFeature>();
+    SimpleFeatureIterator regionsIter = regions.features();
+    try {
+      while (regionsIter.hasNext()) {
+        list.add(regionsIter.next());
       }
-    } else { // otherwise split the regions into single region arrays and
-             // invokeAll
-      ArrayList<ConnectivityIndexFJ> indexers = new ArrayList<ConnectivityIndexFJ>();
-      SimpleFeatureIterator features = regions.features();
-      int featureCount = 0;
-      DefaultFeatureCollection regionsSubCollection = new DefaultFeatureCollection();
-      while (features.hasNext()) {
-        SimpleFeature feature = features.next();
-        regionsSubCollection.add(feature);
-
-        featureCount++;
-        if (featureCount == 100) {
-          ConnectivityIndexFJ cifj = new ConnectivityIndexFJ(roadsFeatureSource, regionsSubCollection);
-          indexers.add(cifj);
-          regionsSubCollection = new DefaultFeatureCollection();
-          featureCount = 0;
-        }
+    } finally {
+      regionsIter.close();
+    }
+    SimpleFeature[] array = list.toArray(new SimpleFeature[list.size()]);
+    double[] costs = new double[array.length + 1];
+    for (int i = 0; i < array.length; i++) {
+      Geometry geometry = (Geometry) array[i].getDefaultGeometry();
+      double cost = 1;
+      if (geometry != null) {
+        cost += intersections.candidates(geometry.getEnvelopeInternal()) + geometry.getNumPoints();
       }
-      ConnectivityIndexFJ cifj = new ConnectivityIndexFJ(roadsFeatureSource, regionsSubCollection);
-      indexers.add(cifj);
-      invokeAll(indexers);
-      features.close();
-      for (ConnectivityIndexFJ ci : indexers) {
-        if (ci.isCompletedAbnormally()) {
-          this.completeExceptionally(ci.getException());
-        }
-        results.addAll((SimpleFeatureCollection) ci.results);
+      costs[i + 1] = costs[i] + cost;
+    }
+    double leafCost = costs[array.length] / Math.max(1, threads * LEAVES_PER_THREAD);
+    LOGGER.debug("Calculating connectivity of {} regions, estimated cost {}", array.length, costs[array.length]);
+    return new Batch(intersections, array, costs, leafCost);
+  }
 
+  /**
+   * @return The first region of the second half, where the cost of the task is halved, between from + 1 and to - 1
+   */
+  private int split() {
+    double half = (batch.costs[from] + batch.costs[to]) / 2;
+    int low = from + 1;
+    int high = to - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (batch.costs[middle] < half) {
+        low = middle + 1;
+      } else {
+        high = middle;
       }
     }
+    return low;
   }
 
   /**
@@ -0,0 +1,209 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * The network distance from every node of a graph to the nearest of a set of destinations, such as the schools or the
+ * shops of a city. The distances come from a single Dijkstra search started from all the destinations at once and
+ * bounded by a limit, so the nearest destination of any number of origins is then a lookup after snapping, and a
+ * whole class of destinations costs one traversal of the network rather than one per origin.
+ *
+ * Distances include the straight line from each destination and origin to its snapped network location. Beyond the
+ * limit the distance is infinite.
+ */
+public final class DestinationAccess {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(DestinationAccess.class);
+
+  private final NetworkGraph graph;
+  private final double limit;
+  private final int destinationCount;
+  private final double[] nodeDistance;
+  // offset and start distance pairs of the destinations on each edge, for origins on the same edge as a destination
+  private final Map<Integer, double[]> edgeDestinations;
+
+  private DestinationAccess(NetworkGraph graph, double limit, int destinationCount, double[] nodeDistance,
+      Map<Integer, double[]> edgeDestinations) {
+    this.graph = graph;
+    this.limit = limit;
+    this.destinationCount = destinationCount;
+    this.nodeDistance = nodeDistance;
+    this.edgeDestinations = edgeDestinations;
+  }
+
+  /**
+   * Labels every node within limit of a destination with its distance to the nearest one
+   *
+   * @param graph
+   *          The network graph
+   * @param destinations
+   *          The destinations, snapped to the network
+   * @param limit
+   *          The furthest distance to label
+   * @return The distances
+   */
+  public static DestinationAccess build(NetworkGraph graph, Collection<NetworkLocation> destinations, double limit) {
+    long start = System.currentTimeMillis();
+    int[] sources = new int[2 * destinations.size()];
+    double[] starts = new double[2 * destinations.size()];
+    Map<Integer, double[]> edgeDestinations = new HashMap<Integer, double[]>();
+    int count = 0;
+    for (NetworkLocation destination : destinations) {
+      int edge = destination.getEdge();
+      double offset = destination.getOffset();
+      double snap = destination.getSnapDistance();
+      // a destination part way along an edge is reached through either end node
+      sources[count] = graph.edgeFrom(edge);
+      starts[count++] = snap + offset;
+      sources[count] = graph.edgeTo(edge);
+      starts[count++] = snap + graph.edgeLength(edge) - offset;
+      double[] onEdge = edgeDestinations.get(edge);
+      onEdge = onEdge == null ? new double[2] : Arrays.copyOf(onEdge, onEdge.length + 2);
+      onEdge[onEdge.length - 2] = offset;
+      onEdge[onEdge.length - 1] = snap;
+      edgeDestinations.put(edge, onEdge);
+    }
+
+    double[] nodeDistance = new double[graph.nodeCount()];
+    Arrays.fill(nodeDistance, Double.POSITIVE_INFINITY);
+    SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+    int reached;
+    try {
+      NetworkBufferDijkstra.searchFromNodes(workspace, sources, starts, count, limit);
+      reached = workspace.reachedCount;
+      for (int i = 0; i < reached; i++) {
+        int node = workspace.reached[i];
+        nodeDistance[node] = workspace.distance[node];
+      }
+    } finally {
+      workspace.reset();
+    }
+    LOGGER.debug("Labelled {} of {} nodes within {} of {} destinations in {}ms", new Object[] { reached,
+        graph.nodeCount(), limit, destinations.size(), System.currentTimeMillis() - start });
+    return new DestinationAccess(graph, limit, destinations.size(), nodeDistance, edgeDestinations);
+  }
+
+  /**
+   * Labels every node within limit of a destination feature with its distance to the nearest one. Destinations that
+   * are not points are taken at their centroids, and those further than maxSnap from the network are left out.
+   *
+   * @param graph
+   *          The network graph
+   * @param destinations
+   *          The destination features
+   * @param limit
+   *          The furthest distance to label
+   * @param maxSnap
+   *          The furthest a destination may be from the network
+   * @return The distances
+   */
+  public static DestinationAccess build(NetworkGraph graph, SimpleFeatureCollection destinations, double limit,
+      double maxSnap) {
+    Collection<NetworkLocation> locations = new ArrayList<NetworkLocation>();
+    int unsnapped = 0;
+    SimpleFeatureIterator features = destinations.features();
+    try {
+      while (features.hasNext()) {
+        NetworkLocation location = snap(graph, (Geometry) features.next().getDefaultGeometry(), maxSnap);
+        if (location == null) {
+          unsnapped++;
+        } else {
+          locations.add(location);
+        }
+      }
+    } finally {
+      features.close();
+    }
+    if (unsnapped > 0) {
+      LOGGER.warn("{} destinations are further than {} from the network", unsnapped, maxSnap);
+    }
+    return build(graph, locations, limit);
+  }
+
+  /**
+   * Snaps a geometry to the network, at the geometry itself for a point and at its centroid otherwise
+   *
+   * @return The network location, or null if the geometry is empty or no edge is within maxSnap
+   */
+  static NetworkLocation snap(NetworkGraph graph, Geometry geometry, double maxSnap) {
+    if (geometry == null || geometry.isEmpty()) {
+      return null;
+    }
+    Point point = geometry instanceof Point ? (Point) geometry : geometry.getCentroid();
+    return graph.locate(point.getX(), point.getY(), maxSnap);
+  }
+
+  /**
+   * @param origin
+   *          The origin, snapped to the network of the graph the distances were built on
+   * @return The network distance to the nearest destination, or infinity if there is none within the limit
+   */
+  public double distance(NetworkLocation origin) {
+    int edge = origin.getEdge();
+    double offset = origin.getOffset();
+    double nearest = Math.min(offset + nodeDistance[graph.edgeFrom(edge)], graph.edgeLength(edge) - offset
+        + nodeDistance[graph.edgeTo(edge)]);
+    double[] onEdge = edgeDestinations.get(edge);
+    if (onEdge != null) {
+      for (int i = 0; i < onEdge.length; i += 2) {
+        nearest = Math.min(nearest, Math.abs(offset - onEdge[i]) + onEdge[i + 1]);
+      }
+    }
+    nearest += origin.getSnapDistance();
+    return nearest <= limit ? nearest : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * @param geometry
+   *          An origin, a point or a region taken at its centroid
+   * @param maxSnap
+   *          The furthest the origin may be from the network
+   * @return The network distance to the nearest destination, or infinity if there is none within the limit or the
+   *         origin is too far from the network
+   */
+  public double distance(Geometry geometry, double maxSnap) {
+    NetworkLocation origin = snap(graph, geometry, maxSnap);
+    return origin == null ? Double.POSITIVE_INFINITY : distance(origin);
+  }
+
+  public NetworkGraph getGraph() {
+    return graph;
+  }
+
+  public double getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return The number of destinations searched from
+   */
+  public int getDestinationCount() {
+    return destinationCount;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A network service area generator using a single source Dijkstra search bounded by the network distance. Each node is
+ * settled once at its shortest distance, so unlike the path enumeration of {@link NetworkBufferFJ} the cost is linear
+ * in the size of the service area. All working state lives in a per thread {@link SearchWorkspace}, so a search
+ * allocates nothing but its result.
+ */
+public final class NetworkBufferDijkstra {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkBufferDijkstra.class);
+
+  private NetworkBufferDijkstra() {
+  }
+
+  /**
+   * Finds the service area of an origin on the network
+   *
+   * @param graph
+   *          The network graph
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @return The edges reachable within distance of the origin
+   */
+  public static ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance) {
+    return findServiceArea(graph, origin, distance, null);
+  }
+
+  /**
+   * Finds the service area of an origin on the network, stopping early if the point goes over its budget
+   *
+   * @param graph
+   *          The network graph
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network
+   * @param meter
+   *          The budget of the point, or null for no limit
+   * @return The edges reachable within distance of the origin, or the part of them found before the budget ran out
+   */
+  public static ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance,
+      PointBudget.Meter meter) {
+    SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+    try {
+      StartOverlay overlay = new StartOverlay(graph, origin);
+      search(workspace, overlay, distance, meter);
+      ServiceArea serviceArea = ServiceArea.collect(workspace, overlay, distance);
+      LOGGER.debug("Settled {} nodes, reached {} edges", workspace.reachedCount, serviceArea.size());
+      return serviceArea;
+    } finally {
+      workspace.reset();
+    }
+  }
+
+  /**
+   * Runs the search from the virtual node of the overlay, leaving the distance of every node within distance of the
+   * origin in the workspace. A null meter means no budget.
+   */
+  static void search(SearchWorkspace workspace, StartOverlay overlay, double distance, PointBudget.Meter meter) {
+    workspace.setDistance(overlay.node, 0);
+    workspace.heap.offer(overlay.node, 0);
+    settle(workspace, overlay, distance, meter);
+  }
+
+  /**
+   * Runs the search from a node of the graph itself, leaving the distance of every node within distance of it in the
+   * workspace
+   */
+  static void searchFromNode(SearchWorkspace workspace, int source, double distance) {
+    workspace.setDistance(source, 0);
+    workspace.heap.offer(source, 0);
+    settle(workspace, null, distance, null);
+  }
+
+  /**
+   * Runs one search from many nodes at once, each starting at its own distance, as if from a virtual node joined to
+   * each of them by an edge of that length. Leaves the distance from the nearest source of every node within distance
+   * in the workspace.
+   */
+  static void searchFromNodes(SearchWorkspace workspace, int[] sources, double[] starts, int count, double distance) {
+    for (int i = 0; i < count; i++) {
+      relax(workspace, sources[i], starts[i], distance);
+    }
+    settle(workspace, null, distance, null);
+  }
+
+  // settles the queued nodes in order of distance, overlay is null for a search over the plain graph. Stopping early
+  // leaves queued nodes at distances no shorter than their true ones, so the service area collected is a subset.
+  private static void settle(SearchWorkspace workspace, StartOverlay overlay, double distance,
+      PointBudget.Meter meter) {
+    NetworkGraph graph = workspace.graph;
+    double[] dist = workspace.distance;
+    boolean[] settled = workspace.settled;
+    NodeHeap heap = workspace.heap;
+    int parent = overlay == null ? -1 : overlay.parent;
+    while (!heap.isEmpty()) {
+      int node = heap.poll();
+      settled[node] = true;
+      double d = dist[node];
+      if (overlay != null && node == overlay.node) {
+        relax(workspace, graph.edgeFrom(overlay.parent), d + overlay.headLength, distance);
+        relax(workspace, graph.edgeTo(overlay.parent), d + overlay.tailLength, distance);
+        continue;
+      }
+      if (meter != null && !meter.chargeEdges(graph.arcEnd(node) - graph.arcStart(node))) {
+        LOGGER.debug("Search over budget after {} edges: {}", meter.getEdges(), meter.getReason());
+        return;
+      }
+      for (int arc = graph.arcStart(node); arc < graph.arcEnd(node); arc++) {
+        int target = graph.arcTarget(arc);
+        if (settled[target] || graph.arcEdge(arc) == parent) {
+          continue;
+        }
+        relax(workspace, target, d + graph.edgeLength(graph.arcEdge(arc)), distance);
+      }
+    }
+  }
+
+  private static void relax(SearchWorkspace workspace, int node, double d, double distance) {
+    if (d <= distance && d < workspace.distance[node]) {
+      workspace.setDistance(node, d);
+      workspace.heap.offer(node, d);
+    }
+  }
+}
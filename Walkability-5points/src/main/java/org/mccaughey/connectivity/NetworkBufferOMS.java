@@ -17,6 +17,10 @@
 package org.mccaughey.connectivity;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
@@ -28,8 +32,11 @@ import oms3.annotations.Out;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.store.ReprojectingFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +72,13 @@ public class NetworkBufferOMS {
   @Name("Maximum walk distance")
   @Description("The maximum distance to traverse the network in all possible directions")
   public Double distance;
+  /**
+   * Several network distances
+   */
+  @In
+  @Name("Walk distances")
+  @Description("Optional, several maximum walk distances whose regions are all found from one traversal per point")
+  public List<Double> distances;
   /**
    * The buffer size
    */
@@ -73,6 +87,94 @@ public class NetworkBufferOMS {
   @Description("Trim Regions/service areas extend the specified trim distance from the road network lines")
   public Double bufferSize;
 
+  /**
+   * The graph traversal used to find service areas
+   */
+  @In
+  @Name("Search mode")
+  @Description("The graph traversal used to find service areas, defaults to path enumeration")
+  public SearchMode searchMode;
+
+  /**
+   * The tile size for grouping points
+   */
+  @In
+  @Name("Tile size")
+  @Description("Optional, groups points into tiles of this width that share one network graph")
+  public Double tileSize;
+
+  /**
+   * How the service area polygons are made
+   */
+  @In
+  @Name("Region mode")
+  @Description("How service area polygons are made: exact buffers (the default), a raster, or a convex or concave hull")
+  public RegionMode regionMode;
+
+  /**
+   * The raster cell size
+   */
+  @In
+  @Name("Cell size")
+  @Description("Optional, the grid cell width for raster regions, defaults to a quarter of the trim distance")
+  public Double cellSize;
+
+  /**
+   * The concave hull tightness
+   */
+  @In
+  @Name("Hull edge length")
+  @Description("Optional, the longest gap filled in by concave hulls, defaults to an eighth of the walk distance")
+  public Double hullEdgeLength;
+
+  /**
+   * The service area cache
+   */
+  @In
+  @Name("Service area cache")
+  @Description("Optional, reuses the regions of points that snap to the same network location across runs")
+  public ServiceAreaCache serviceAreaCache;
+
+  /**
+   * The edge buffer cache
+   */
+  @In
+  @Name("Edge buffer cache")
+  @Description("Optional, reuses the buffers of whole road edges across points and runs when buffering regions")
+  public EdgeBufferCache edgeBufferCache;
+
+  /**
+   * Road network tiles
+   */
+  @In
+  @Name("Road network tiles")
+  @Description("Optional, loads only the road network tiles around the points in place of the road network dataset")
+  public TiledNetwork tiledNetwork;
+
+  /**
+   * The per point budget
+   */
+  @In
+  @Name("Point budget")
+  @Description("Optional, limits the time and work spent on each point so a few slow points cannot hold up the rest")
+  public PointBudget budget;
+
+  /**
+   * The work estimator
+   */
+  @In
+  @Name("Work estimator")
+  @Description("Optional, estimates the cost of each point from the road density around it so the dearest start first")
+  public WorkEstimator workEstimator;
+
+  /**
+   * The region simplifier
+   */
+  @In
+  @Name("Region simplifier")
+  @Description("Optional, simplifies region polygons and snaps them to a grid so later overlays on them are cheaper")
+  public RegionSimplifier simplifier;
+
   /**
    * The resulting regions url
    */
@@ -80,6 +182,13 @@ public class NetworkBufferOMS {
   @Name("Resulting regions")
   public SimpleFeatureSource regions;
 
+  /**
+   * The resulting regions of each walk distance
+   */
+  @Out
+  @Name("Resulting regions by walk distance")
+  public Map<Double, SimpleFeatureSource> regionsByDistance;
+
   @Out
   @Name("The original road network")
   public SimpleFeatureSource networkOut;
@@ -94,12 +203,12 @@ public class NetworkBufferOMS {
     validateInputs();
 
     try {
-      LOGGER.debug("Received network data containing {} features", network.getCount(new Query()));
       LOGGER.debug("Received points data containing {} features", points.getCount(new Query()));
 
       final CoordinateReferenceSystem pointsCRS = points.getSchema().getCoordinateReferenceSystem();
       LOGGER.debug("Points Source CRS: {}", pointsCRS);
-      final CoordinateReferenceSystem networkCRS = network.getSchema().getCoordinateReferenceSystem();
+      final CoordinateReferenceSystem networkCRS = network == null ? tiledNetwork.getCoordinateReferenceSystem()
+          : network.getSchema().getCoordinateReferenceSystem();
       LOGGER.debug("Roads Source CRS: {}", networkCRS);
 
       SimpleFeatureCollection pointsFC = points.getFeatures();
@@ -108,19 +217,64 @@ public class NetworkBufferOMS {
         pointsFC = new ReprojectingFeatureCollection(pointsFC, networkCRS);
       }
 
+      double longest = distances == null ? distance : Collections.max(distances);
+      if (tiledNetwork != null) {
+        network = tiledNetwork.load(TiledNetwork.studyArea(pointsFC, longest + bufferSize));
+        validateNetwork();
+      }
+      LOGGER.debug("Received network data containing {} features", network.getCount(new Query()));
+
       LOGGER.info("Generate network service areas...");
-      NetworkBufferBatch nbb = new NetworkBufferBatch(network, pointsFC, distance, bufferSize);
-      SimpleFeatureCollection buffers = nbb.createBuffers();
+      NetworkBufferBatch nbb = new NetworkBufferBatch(network, pointsFC, longest, bufferSize);
+      if (searchMode != null) {
+        nbb.setSearchMode(searchMode);
+      }
+      nbb.setTileSize(tileSize);
+      if (regionMode != null) {
+        nbb.setRegionMode(regionMode);
+      }
+      nbb.setCellSize(cellSize);
+      nbb.setHullEdgeLength(hullEdgeLength);
+      nbb.setServiceAreaCache(serviceAreaCache);
+      nbb.setEdgeBufferCache(edgeBufferCache);
+      nbb.setTiledNetwork(tiledNetwork);
+      nbb.setBudget(budget);
+      nbb.setWorkEstimator(workEstimator);
+      SimpleFeatureCollection buffers;
+      if (distances == null) {
+        buffers = simplify(flagBudget(nbb.createBuffers()));
+        regionsByDistance = Collections.singletonMap(distance, DataUtilities.source(buffers));
+      } else {
+        // the regions output holds those of the longest distance
+        Map<Double, SimpleFeatureCollection> buffersByDistance = nbb.createBuffers(distances);
+        regionsByDistance = new LinkedHashMap<Double, SimpleFeatureSource>();
+        for (Map.Entry<Double, SimpleFeatureCollection> entry : buffersByDistance.entrySet()) {
+          regionsByDistance.put(entry.getKey(), DataUtilities.source(simplify(flagBudget(entry.getValue()))));
+        }
+        buffers = buffersByDistance.get(longest);
+      }
+      if (nbb.getOverBudgetCount() > 0) {
+        LOGGER.warn("{} points went over {}", nbb.getOverBudgetCount(), budget);
+      }
 
       if (buffers.isEmpty()) {
         throw new IllegalStateException("No buffers were generated. Aborting process");
       }
 
       // File file = new File("service_areas_oms.geojson");
-      regions = DataUtilities.source(buffers);
+      regions = regionsByDistance.get(longest);
 
       // regions = file.toURI().toURL();
       LOGGER.info("Completed Network Service Area Generation");
+      if (serviceAreaCache != null) {
+        LOGGER.info("Service area cache: {}", serviceAreaCache);
+      }
+      if (edgeBufferCache != null) {
+        LOGGER.info("Edge buffer cache: {}", edgeBufferCache);
+      }
+      if (simplifier != null) {
+        LOGGER.info("Region simplifier: {}", simplifier);
+      }
 
       networkOut = network;
 
@@ -130,9 +284,46 @@ public class NetworkBufferOMS {
     }
   }
 
+  // gives every region the reason it went over budget, or null, as an attribute when there is a budget, as the user
+  // data flag is lost when regions are written out
+  private SimpleFeatureCollection flagBudget(SimpleFeatureCollection buffers) {
+    if (budget == null) {
+      return buffers;
+    }
+    DefaultFeatureCollection flagged = new DefaultFeatureCollection();
+    SimpleFeatureIterator features = buffers.features();
+    try {
+      while (features.hasNext()) {
+        SimpleFeature region = features.next();
+        flagged.add(NetworkBuffer.addAttribute(region, PointBudget.BUDGET_EXCEEDED_ATTRIBUTE, String.class,
+            region.getUserData().get(PointBudget.BUDGET_EXCEEDED)));
+      }
+    } finally {
+      features.close();
+    }
+    return flagged;
+  }
+
+  // simplifies every region when there is a simplifier
+  private SimpleFeatureCollection simplify(SimpleFeatureCollection buffers) {
+    if (simplifier == null) {
+      return buffers;
+    }
+    DefaultFeatureCollection simplified = new DefaultFeatureCollection();
+    SimpleFeatureIterator features = buffers.features();
+    try {
+      while (features.hasNext()) {
+        simplified.add(simplifier.simplify(features.next()));
+      }
+    } finally {
+      features.close();
+    }
+    return simplified;
+  }
+
   private void validateInputs() {
 
-    if (network == null) {
+    if (network == null && tiledNetwork == null) {
       throw new IllegalArgumentException("Network buffer error: A road network was not provided");
     }
 
@@ -140,14 +331,24 @@ public class NetworkBufferOMS {
       throw new IllegalArgumentException("Network buffer error: A set of points was not provided");
     }
 
-    if (distance == null) {
+    if (distance == null && (distances == null || distances.isEmpty())) {
       throw new IllegalArgumentException("Network buffer error: A walking distance must be provided");
     }
 
+    if (distances != null && distances.isEmpty()) {
+      distances = null;
+    }
+
     if (bufferSize == null) {
       throw new IllegalArgumentException("Network buffer error: A buffer size must be provided");
     }
 
+    if (network != null) {
+      validateNetwork();
+    }
+  }
+
+  private void validateNetwork() {
     if (network.getSchema().getCoordinateReferenceSystem() == null) {
       throw new IllegalArgumentException("Network dataset does not contain a CRS");
     }
@@ -0,0 +1,206 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.mccaughey.utilities.GeoJSONUtilities;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.operation.linemerge.LineMerger;
+
+/**
+ * Cleans a road network before it is made into a graph. The lines are noded, split wherever they cross or touch, since
+ * the graph generators only join lines at shared end points, then every chain of lines through nodes of degree 2 is
+ * merged into a single line. The graph has one edge per stretch of road between intersections or dead ends, weighted
+ * by its length and keeping its geometry, so every traversal has fewer nodes to settle and a node of degree 3 or more
+ * is a real intersection. The network has no levels, so a bridge crossing a road is noded as an intersection.
+ *
+ * Every attribute of the network lines is dropped, the cleaned lines only have their geometry and a "Length". A merged
+ * or noded line no longer matches a single line of the network, so there is no one value to keep for it. Anything
+ * that needs the road attributes reads them from the network file itself.
+ *
+ * Cleaning a city network takes a while, so it is done once, ahead of time, by {@link #main(String[])} when the image
+ * is built (see Docker/Dockerfile). The stages only open the cleaned file with {@link #cleaned(File, File)}.
+ * {@link #clean(File, File)} keeps the cleaned network in a file that is only rebuilt when the network file changes.
+ */
+public final class NetworkCleaner {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(NetworkCleaner.class);
+  // coordinates are rounded to the millimetre, so that line ends that very nearly meet are joined
+  private static final double PRECISION_SCALE = 1000;
+
+  private NetworkCleaner() {
+  }
+
+  /**
+   * Gets the cleaned copy of a network file, cleaning the network first if the copy is missing or older than the file
+   *
+   * @param network
+   *          The network GeoJSON file, may be gzipped
+   * @param cleaned
+   *          The GeoJSON file holding the cleaned network
+   * @return cleaned
+   * @throws IOException
+   */
+  public static File clean(File network, File cleaned) throws IOException {
+    if (cleaned.isFile() && cleaned.lastModified() >= network.lastModified()) {
+      LOGGER.debug("Using cleaned network {}", cleaned);
+      return cleaned;
+    }
+    SimpleFeatureCollection features = clean(GeoJSONUtilities.readFeatures(network.toURI().toURL()));
+    // written aside and moved into place, so an interrupted clean is redone
+    File partial = new File(cleaned.getPath() + ".part");
+    GeoJSONUtilities.writeFeatures(features, partial);
+    if (cleaned.exists() && !cleaned.delete()) {
+      throw new IOException("Cannot remove old cleaned network " + cleaned);
+    }
+    if (!partial.renameTo(cleaned)) {
+      throw new IOException("Cannot move cleaned network to " + cleaned);
+    }
+    return cleaned;
+  }
+
+  /**
+   * Gets the cleaned copy of a network file written beforehand by {@link #main(String[])}, without cleaning it
+   *
+   * @param network
+   *          The network GeoJSON file, may be gzipped
+   * @param cleaned
+   *          The GeoJSON file holding the cleaned network
+   * @return cleaned
+   * @throws IOException
+   *           If the cleaned copy is missing or older than the network file
+   */
+  public static File cleaned(File network, File cleaned) throws IOException {
+    if (!cleaned.isFile() || cleaned.lastModified() < network.lastModified()) {
+      throw new IOException("No up to date cleaned network at " + cleaned + ", write it with NetworkCleaner " + network
+          + " " + cleaned);
+    }
+    return cleaned;
+  }
+
+  /**
+   * Nodes a network and merges its chains of lines through nodes of degree 2
+   *
+   * @param network
+   *          The network line features
+   * @return The cleaned network, line features with a "Length" attribute and none of the attributes of the network
+   */
+  public static SimpleFeatureCollection clean(SimpleFeatureCollection network) {
+    long start = System.currentTimeMillis();
+    GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(PRECISION_SCALE));
+    List<Geometry> lines = new ArrayList<Geometry>();
+    SimpleFeatureIterator features = network.features();
+    try {
+      while (features.hasNext()) {
+        Geometry geom = (Geometry) features.next().getDefaultGeometry();
+        if (geom == null) {
+          continue;
+        }
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+          Geometry part = geom.getGeometryN(i);
+          if (part instanceof LineString) {
+            LineString line = toPrecision((LineString) part, geometryFactory);
+            if (line != null) {
+              lines.add(line);
+            }
+          }
+        }
+      }
+    } finally {
+      features.close();
+    }
+
+    Geometry noded;
+    try {
+      // the union of the lines is noded at every crossing, with overlapping lines merged
+      noded = geometryFactory.buildGeometry(lines).union();
+    } catch (TopologyException e) {
+      LOGGER.warn("Failed to node the network, merging chains only: {}", e.getMessage());
+      noded = geometryFactory.buildGeometry(lines);
+    }
+    LineMerger merger = new LineMerger();
+    merger.add(noded);
+    Collection<LineString> merged = merger.getMergedLineStrings();
+
+    SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+    typeBuilder.setName("Network");
+    typeBuilder.setCRS(network.getSchema().getCoordinateReferenceSystem());
+    typeBuilder.add("the_geom", LineString.class);
+    typeBuilder.add("Length", Double.class);
+    SimpleFeatureType type = typeBuilder.buildFeatureType();
+    SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+    DefaultFeatureCollection cleaned = new DefaultFeatureCollection();
+    for (LineString line : merged) {
+      builder.add(line);
+      builder.add(line.getLength());
+      cleaned.add(builder.buildFeature(null));
+    }
+    LOGGER.info("Cleaned {} network lines into {} in {}ms", new Object[] { lines.size(), cleaned.size(),
+        System.currentTimeMillis() - start });
+    return cleaned;
+  }
+
+  // rounds a line to the precision of the factory, null if nothing is left of it
+  private static LineString toPrecision(LineString line, GeometryFactory geometryFactory) {
+    PrecisionModel precisionModel = geometryFactory.getPrecisionModel();
+    Coordinate[] coords = line.getCoordinates();
+    List<Coordinate> precise = new ArrayList<Coordinate>(coords.length);
+    for (Coordinate coord : coords) {
+      Coordinate rounded = new Coordinate(coord);
+      precisionModel.makePrecise(rounded);
+      if (precise.isEmpty() || !rounded.equals2D(precise.get(precise.size() - 1))) {
+        precise.add(rounded);
+      }
+    }
+    if (precise.size() < 2) {
+      return null;
+    }
+    return geometryFactory.createLineString(precise.toArray(new Coordinate[precise.size()]));
+  }
+
+  /**
+   * Writes the cleaned copy of a network, run when the image is built
+   *
+   * @param args
+   *          The network GeoJSON file and the cleaned file to write
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: NetworkCleaner <network.geojson[.gz]> <cleaned.geojson>");
+      System.exit(1);
+    }
+    clean(new File(args[0]), new File(args[1]));
+  }
+}
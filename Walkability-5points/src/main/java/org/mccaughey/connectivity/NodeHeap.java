@@ -0,0 +1,135 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Arrays;
+
+/**
+ * An indexed binary min heap of int nodes keyed by double distances, supporting decrease-key. The heap is backed by
+ * primitive arrays and is meant to be reused across searches, clear() only touches the nodes still queued.
+ */
+final class NodeHeap {
+
+  // position of each node in the heap, or -1 if it is not queued
+  private final int[] position;
+  private int[] nodes;
+  private double[] keys;
+  private int size;
+
+  NodeHeap(int nodeCount) {
+    position = new int[nodeCount];
+    Arrays.fill(position, -1);
+    nodes = new int[64];
+    keys = new double[64];
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Queues a node, or lowers its key if it is already queued with a larger key
+   */
+  void offer(int node, double key) {
+    int i = position[node];
+    if (i < 0) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size * 2);
+        keys = Arrays.copyOf(keys, size * 2);
+      }
+      i = size++;
+      nodes[i] = node;
+      keys[i] = key;
+      position[node] = i;
+      siftUp(i);
+    } else if (key < keys[i]) {
+      keys[i] = key;
+      siftUp(i);
+    }
+  }
+
+  double peekKey() {
+    return keys[0];
+  }
+
+  /**
+   * Removes and returns the node with the smallest key
+   */
+  int poll() {
+    int node = nodes[0];
+    position[node] = -1;
+    size--;
+    if (size > 0) {
+      nodes[0] = nodes[size];
+      keys[0] = keys[size];
+      position[nodes[0]] = 0;
+      siftDown(0);
+    }
+    return node;
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      position[nodes[i]] = -1;
+    }
+    size = 0;
+  }
+
+  private void siftUp(int i) {
+    int node = nodes[i];
+    double key = keys[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (keys[parent] <= key) {
+        break;
+      }
+      move(parent, i);
+      i = parent;
+    }
+    nodes[i] = node;
+    keys[i] = key;
+    position[node] = i;
+  }
+
+  private void siftDown(int i) {
+    int node = nodes[i];
+    double key = keys[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && keys[child + 1] < keys[child]) {
+        child++;
+      }
+      if (key <= keys[child]) {
+        break;
+      }
+      move(child, i);
+      i = child;
+    }
+    nodes[i] = node;
+    keys[i] = key;
+    position[node] = i;
+  }
+
+  private void move(int from, int to) {
+    nodes[to] = nodes[from];
+    keys[to] = keys[from];
+    position[nodes[to]] = to;
+  }
+}
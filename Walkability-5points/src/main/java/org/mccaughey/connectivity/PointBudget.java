@@ -0,0 +1,194 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on the work done for a single point, so that a few pathological points (dense grids, long loops) cannot hold a
+ * worker for orders of magnitude longer than the rest. A budget bounds the wall time, the number of network edges
+ * expanded by the search and the number of union operations used to buffer the service area. The limits are checked
+ * cooperatively: the searches stop expanding once over budget, leaving the part of the service area found so far, and
+ * the buffer union gives up with a {@link BudgetExceededException}.
+ *
+ * A budget is shared by a batch, {@link #start()} gives the meter that counts the work of one point.
+ */
+public final class PointBudget {
+
+  /**
+   * What a batch does with a point that goes over its budget
+   */
+  public enum Fallback {
+    /**
+     * Give the buffered convex hull of the network reached, flagged with the reason in the user data under
+     * {@link PointBudget#BUDGET_EXCEEDED}, and in the {@link PointBudget#BUDGET_EXCEEDED_ATTRIBUTE} attribute of the
+     * regions of {@link NetworkBufferOMS}
+     */
+    HULL,
+    /**
+     * Log the point and leave it out of the results
+     */
+    FAIL
+  }
+
+  /**
+   * The user data key of the reason a fallback region went over budget
+   */
+  public static final String BUDGET_EXCEEDED = "budgetExceeded";
+  /**
+   * The attribute that carries the reason a region went over budget once it leaves the batch, null for regions made
+   * within budget
+   */
+  public static final String BUDGET_EXCEEDED_ATTRIBUTE = "BudgetExceeded";
+  // the clock is read once per this many edges expanded
+  private static final long CLOCK_INTERVAL = 256;
+
+  private final long maxMillis;
+  private final long maxEdges;
+  private final long maxUnions;
+  private final Fallback fallback;
+
+  /**
+   * @param maxMillis
+   *          The most wall time for a point, 0 for no limit
+   * @param maxEdges
+   *          The most network edges the search of a point may expand, 0 for no limit
+   * @param maxUnions
+   *          The most union operations used to buffer a point, 0 for no limit
+   * @param fallback
+   *          What to do with a point that goes over budget
+   */
+  public PointBudget(long maxMillis, long maxEdges, long maxUnions, Fallback fallback) {
+    if (maxMillis < 0 || maxEdges < 0 || maxUnions < 0) {
+      throw new IllegalArgumentException("Budget limits must not be negative");
+    }
+    if (fallback == null) {
+      throw new IllegalArgumentException("A budget needs a fallback");
+    }
+    this.maxMillis = maxMillis;
+    this.maxEdges = maxEdges;
+    this.maxUnions = maxUnions;
+    this.fallback = fallback;
+  }
+
+  public Fallback getFallback() {
+    return fallback;
+  }
+
+  /**
+   * @return A meter for one point, the clock starts now
+   */
+  public Meter start() {
+    return new Meter();
+  }
+
+  @Override
+  public String toString() {
+    return "PointBudget[" + maxMillis + "ms, " + maxEdges + " edges, " + maxUnions + " unions, " + fallback + "]";
+  }
+
+  /**
+   * Counts the work done for one point. A meter may be charged from several threads at once, as the parallel search
+   * and the buffer union are.
+   */
+  public final class Meter {
+    private final long deadline;
+    private final AtomicLong edges = new AtomicLong();
+    private final AtomicLong unions = new AtomicLong();
+    private volatile String exceeded;
+
+    Meter() {
+      deadline = System.nanoTime() + maxMillis * 1000000L;
+    }
+
+    /**
+     * Charges edges expanded by a search, reading the clock every so often
+     *
+     * @param count
+     *          The number of edges about to be expanded
+     * @return False once the point is over budget, the search should stop
+     */
+    public boolean chargeEdges(long count) {
+      if (exceeded != null) {
+        return false;
+      }
+      long before = edges.getAndAdd(count);
+      if (maxEdges != 0 && before + count > maxEdges) {
+        exceed("more than " + maxEdges + " edges expanded");
+      } else if (before / CLOCK_INTERVAL != (before + count) / CLOCK_INTERVAL) {
+        checkClock();
+      }
+      return exceeded == null;
+    }
+
+    /**
+     * Charges a union operation and reads the clock
+     *
+     * @throws BudgetExceededException
+     *           if the point is over budget
+     */
+    public void chargeUnion() {
+      if (maxUnions != 0 && unions.incrementAndGet() > maxUnions) {
+        exceed("more than " + maxUnions + " unions");
+      }
+      checkTime();
+    }
+
+    /**
+     * @throws BudgetExceededException
+     *           if the point is over budget
+     */
+    public void checkTime() {
+      checkClock();
+      if (exceeded != null) {
+        throw new BudgetExceededException(exceeded);
+      }
+    }
+
+    /**
+     * @return True if any limit has been exceeded
+     */
+    public boolean isExceeded() {
+      return exceeded != null;
+    }
+
+    /**
+     * @return The first limit that was exceeded, or null
+     */
+    public String getReason() {
+      return exceeded;
+    }
+
+    public long getEdges() {
+      return edges.get();
+    }
+
+    public long getUnions() {
+      return unions.get();
+    }
+
+    private void checkClock() {
+      if (maxMillis != 0 && exceeded == null && System.nanoTime() - deadline > 0) {
+        exceed("more than " + maxMillis + "ms");
+      }
+    }
+
+    private synchronized void exceed(String reason) {
+      if (exceeded == null) {
+        exceeded = reason;
+      }
+    }
+  }
+}
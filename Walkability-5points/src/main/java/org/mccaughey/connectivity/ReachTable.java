@@ -0,0 +1,360 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.mccaughey.utilities.GeoJSONUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precomputed network distances from every node to every other node within a fixed radius, so that a service area of
+ * at most that radius is a lookup rather than a graph search. The table is built offline with {@link #write} and
+ * memory mapped by {@link #open}, so it costs no heap and is shared by every thread and every process on the machine.
+ *
+ * The file is a header, then one record per node, then an index of where each record starts. A record is the number of
+ * nodes reached, then for each node in increasing id order the difference from the previous id as a variable length
+ * integer and the distance rounded up to a multiple of radius / 65535 as an unsigned short. Rounding up means a lookup
+ * never reaches further than a search would, and each reach falls short of the searched one by at most that quantum,
+ * a centimetre or so at 800m. The service areas looked up count an edge as whole when it is reached to within the
+ * quantum (see {@link ServiceArea#isWhole(int)}), so edges a search reaches whole are whole in the lookup too.
+ *
+ * The table is written aside and moved into place once complete, and the index position in the header is only filled
+ * in at the end, so a table left by an interrupted write is refused by {@link #open} rather than failing lookups.
+ */
+public final class ReachTable {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(ReachTable.class);
+  private static final int MAGIC = 0x52434854;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 48;
+  private static final int INDEX_POSITION_FIELD = 40;
+  private static final int MAX_QUANTIZED = 0xFFFF;
+  // nodes are searched in blocks of this many, each block on one thread
+  private static final int BLOCK_SIZE = 1024;
+
+  private final MappedByteBuffer buffer;
+  private final int nodeCount;
+  private final int edgeCount;
+  private final long fingerprint;
+  private final double radius;
+  private final double quantum;
+  private final int indexPosition;
+
+  private ReachTable(MappedByteBuffer buffer) {
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not a version " + VERSION + " reach table");
+    }
+    nodeCount = buffer.getInt(8);
+    edgeCount = buffer.getInt(12);
+    fingerprint = buffer.getLong(16);
+    radius = buffer.getDouble(24);
+    quantum = buffer.getDouble(32);
+    long position = buffer.getLong(INDEX_POSITION_FIELD);
+    if (position < HEADER_SIZE || position + 8L * (nodeCount + 1) > buffer.capacity()) {
+      throw new IllegalArgumentException("Reach table is incomplete, its index is at " + position + " of "
+          + buffer.capacity() + " bytes");
+    }
+    indexPosition = (int) position;
+  }
+
+  /**
+   * Memory maps a reach table
+   *
+   * @param file
+   *          A file written by {@link #write}
+   * @return The table
+   * @throws IOException
+   */
+  public static ReachTable open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Reach table is too large to map: " + file);
+      }
+      ReachTable table = new ReachTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      LOGGER.info("Mapped reach table {} of {} nodes within {}", new Object[] { file, table.nodeCount, table.radius });
+      return table;
+    } finally {
+      // the mapping stays valid once the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Searches from every node of the graph and writes the nodes reached within radius of each to a file. The table is
+   * written to file.part and renamed to file when complete, so an interrupted write leaves no table behind.
+   *
+   * @param graph
+   *          The network graph
+   * @param radius
+   *          The largest network distance the table can answer
+   * @param file
+   *          The file to write
+   * @throws IOException
+   */
+  public static void write(NetworkGraph graph, double radius, File file) throws IOException {
+    if (radius <= 0) {
+      throw new IllegalArgumentException("Reach table radius must be positive: " + radius);
+    }
+    long start = System.currentTimeMillis();
+    double quantum = radius / MAX_QUANTIZED;
+    int nodeCount = graph.nodeCount();
+    long[] index = new long[nodeCount + 1];
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    File partial = new File(file.getPath() + ".part");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partial)));
+    boolean complete = false;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(nodeCount);
+      out.writeInt(graph.edgeCount());
+      out.writeLong(graph.fingerprint());
+      out.writeDouble(radius);
+      out.writeDouble(quantum);
+      // the index position is filled in once the records are written
+      out.writeLong(0);
+
+      // blocks are written in order, with a bounded number searched ahead
+      Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+      long position = HEADER_SIZE;
+      int next = 0;
+      while (next < nodeCount || !pending.isEmpty()) {
+        while (next < nodeCount && pending.size() < 2 * nThreads) {
+          pending.add(executor.submit(new Block(graph, next, Math.min(nodeCount, next + BLOCK_SIZE), radius, quantum)));
+          next += BLOCK_SIZE;
+        }
+        Block block = pending.poll().get();
+        for (int i = 0; i < block.ends.length; i++) {
+          index[block.from + i] = position + (i == 0 ? 0 : block.ends[i - 1]);
+        }
+        position += block.bytes.length;
+        // checked as the table grows, so an oversized table fails before every node has been searched
+        if (position + 8L * (nodeCount + 1) > Integer.MAX_VALUE) {
+          throw new IllegalArgumentException("Reach table for radius " + radius + " is too large to map");
+        }
+        out.write(block.bytes);
+      }
+      index[nodeCount] = position;
+      for (long offset : index) {
+        out.writeLong(offset);
+      }
+      out.close();
+      RandomAccessFile header = new RandomAccessFile(partial, "rw");
+      try {
+        header.seek(INDEX_POSITION_FIELD);
+        header.writeLong(position);
+      } finally {
+        header.close();
+      }
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Cannot remove old reach table " + file);
+      }
+      if (!partial.renameTo(file)) {
+        throw new IOException("Cannot move reach table to " + file);
+      }
+      complete = true;
+      LOGGER.info("Wrote reach table of {} nodes, {} bytes in {}ms", new Object[] { nodeCount,
+          position + 8L * (nodeCount + 1), System.currentTimeMillis() - start });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      out.close();
+      executor.shutdownNow();
+      if (!complete && partial.exists() && !partial.delete()) {
+        LOGGER.warn("Cannot remove partly written reach table {}", partial);
+      }
+    }
+  }
+
+  /**
+   * @return True if the table was written for this graph
+   */
+  public boolean matches(NetworkGraph graph) {
+    return graph.nodeCount() == nodeCount && graph.edgeCount() == edgeCount && graph.fingerprint() == fingerprint;
+  }
+
+  /**
+   * @return The most a reach looked up in the table may fall short of the searched one
+   */
+  public double getQuantum() {
+    return quantum;
+  }
+
+  /**
+   * @return The largest network distance the table can answer
+   */
+  public double getRadius() {
+    return radius;
+  }
+
+  /**
+   * Finds the service area of an origin on the network from the table. The shortest path from a point on an edge to a
+   * node leaves through one of the two end nodes of that edge, so the distance to each node is the lesser of the
+   * distance to either end node plus that end node's table distance. These seed the workspace in place of a search and
+   * the reached edges are collected as after a search, each reach up to one quantum shorter than the searched one.
+   *
+   * @param graph
+   *          The network graph, which must match the table
+   * @param origin
+   *          The origin, snapped to the network
+   * @param distance
+   *          The maximum distance to traverse the network, at most the table radius
+   * @return The edges reachable within distance of the origin
+   */
+  public ServiceArea findServiceArea(NetworkGraph graph, NetworkLocation origin, double distance) {
+    if (distance > radius) {
+      throw new IllegalArgumentException("Distance " + distance + " is beyond the reach table radius " + radius);
+    }
+    SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+    try {
+      StartOverlay overlay = new StartOverlay(graph, origin);
+      workspace.setDistance(overlay.node, 0);
+      // a private view, so concurrent lookups do not share a position
+      ByteBuffer records = buffer.duplicate();
+      seed(workspace, records, graph.edgeFrom(overlay.parent), overlay.headLength, distance);
+      seed(workspace, records, graph.edgeTo(overlay.parent), overlay.tailLength, distance);
+      ServiceArea serviceArea = ServiceArea.collect(workspace, overlay, distance, quantum);
+      LOGGER.debug("Looked up {} nodes, reached {} edges", workspace.reachedCount, serviceArea.size());
+      return serviceArea;
+    } finally {
+      workspace.reset();
+    }
+  }
+
+  // lowers the distance of every node in the record of source to start plus its table distance
+  private void seed(SearchWorkspace workspace, ByteBuffer records, int source, double start, double distance) {
+    records.position((int) records.getLong(indexPosition + 8 * source));
+    int count = readVarint(records);
+    int node = 0;
+    for (int i = 0; i < count; i++) {
+      node += readVarint(records);
+      double d = start + (records.getShort() & MAX_QUANTIZED) * quantum;
+      if (d < distance && d < workspace.distance[node]) {
+        workspace.setDistance(node, d);
+      }
+    }
+  }
+
+  static int readVarint(ByteBuffer records) {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = records.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * The encoded records of a run of nodes, ends[i] is the end of the record of node from + i within bytes
+   */
+  private static final class Block implements Callable<Block> {
+    private final NetworkGraph graph;
+    private final int from;
+    private final int to;
+    private final double radius;
+    private final double quantum;
+    private byte[] bytes;
+    private int[] ends;
+
+    Block(NetworkGraph graph, int from, int to, double radius, double quantum) {
+      this.graph = graph;
+      this.from = from;
+      this.to = to;
+      this.radius = radius;
+      this.quantum = quantum;
+    }
+
+    @Override
+    public Block call() {
+      SearchWorkspace workspace = SearchWorkspace.forGraph(graph);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ends = new int[to - from];
+      for (int source = from; source < to; source++) {
+        try {
+          NetworkBufferDijkstra.searchFromNode(workspace, source, radius);
+          int[] nodes = Arrays.copyOf(workspace.reached, workspace.reachedCount);
+          Arrays.sort(nodes);
+          writeVarint(out, nodes.length);
+          int previous = 0;
+          for (int node : nodes) {
+            writeVarint(out, node - previous);
+            previous = node;
+            int quantized = (int) Math.min(MAX_QUANTIZED, Math.ceil(workspace.distance[node] / quantum));
+            out.write(quantized >>> 8);
+            out.write(quantized);
+          }
+        } finally {
+          workspace.reset();
+        }
+        ends[source - from] = out.size();
+      }
+      bytes = out.toByteArray();
+      return this;
+    }
+  }
+
+  /**
+   * Writes the reach table of a network
+   *
+   * @param args
+   *          The network GeoJSON file, the radius and the table file to write
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: ReachTable <network.geojson[.gz]> <radius> <table file>");
+      System.exit(1);
+    }
+    NetworkGraph graph = NetworkGraph.build(GeoJSONUtilities.readFeatures(new File(args[0]).toURI().toURL()));
+    write(graph, Double.parseDouble(args[1]), new File(args[2]));
+  }
+}
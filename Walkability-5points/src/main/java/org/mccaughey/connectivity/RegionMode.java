@@ -0,0 +1,37 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * How the polygon of a service area is made from its reached edges
+ */
+public enum RegionMode {
+  /**
+   * The exact union of the edge buffers, see {@link BufferUnion}
+   */
+  BUFFER,
+  /**
+   * An approximate region built on a grid, much faster for bulk runs, see {@link RasterRegion}
+   */
+  RASTER,
+  /**
+   * The buffered convex hull of the reached edges, overstates the area of linear networks
+   */
+  CONVEX_HULL,
+  /**
+   * The buffered concave hull of the reached edges, a cheap region that follows the network, see {@link ConcaveHull}
+   */
+  CONCAVE_HULL
+}
@@ -0,0 +1,183 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import com.vividsolutions.jts.geom.TopologyException;
+import com.vividsolutions.jts.precision.GeometryPrecisionReducer;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Shrinks region polygons before they are handed on, so messages are smaller and every overlay run on them later is
+ * cheaper. A buffered region has a vertex every few degrees around each buffered road end, far more than connectivity,
+ * density or land use mix need. The outline is simplified without changing its topology, so rings neither cross nor
+ * vanish, and the vertices are then snapped to a fixed grid.
+ *
+ * The outline moves by at most the tolerance plus half a grid cell diagonal. The relative change in area of each
+ * region is put in its user data under {@link #AREA_DEVIATION} and in its {@link #AREA_DEVIATION_ATTRIBUTE} attribute,
+ * and the largest seen is kept with the vertex counts.
+ */
+public final class RegionSimplifier {
+
+  static final Logger LOGGER = LoggerFactory.getLogger(RegionSimplifier.class);
+  /**
+   * The user data key of the area of the simplified region less that of the original, over that of the original
+   */
+  public static final String AREA_DEVIATION = "areaDeviation";
+  /**
+   * The attribute that carries the area deviation once the region is written out, null for regions without a polygon
+   */
+  public static final String AREA_DEVIATION_ATTRIBUTE = "AreaDeviation";
+
+  private final double tolerance;
+  private final double gridSize;
+  private final PrecisionModel precisionModel;
+  private final AtomicLong regions = new AtomicLong();
+  private final AtomicLong verticesIn = new AtomicLong();
+  private final AtomicLong verticesOut = new AtomicLong();
+  // the largest absolute area deviation, as the bits of a double
+  private final AtomicLong largestDeviation = new AtomicLong(Double.doubleToLongBits(0));
+
+  /**
+   * @param tolerance
+   *          The furthest the simplified outline may stray from the original, 0 to not simplify
+   * @param gridSize
+   *          The width of the grid vertices are snapped to, 0 to keep full precision
+   */
+  public RegionSimplifier(double tolerance, double gridSize) {
+    if (tolerance < 0) {
+      throw new IllegalArgumentException("Tolerance must not be negative: " + tolerance);
+    }
+    if (gridSize < 0) {
+      throw new IllegalArgumentException("Grid size must not be negative: " + gridSize);
+    }
+    this.tolerance = tolerance;
+    this.gridSize = gridSize;
+    this.precisionModel = gridSize == 0 ? null : new PrecisionModel(1 / gridSize);
+  }
+
+  /**
+   * Simplifies a region polygon. The original is returned if simplifying would empty it or fails.
+   *
+   * @param region
+   *          The region polygon
+   * @return The simplified polygon
+   */
+  public Geometry simplify(Geometry region) {
+    Geometry simplified = region;
+    try {
+      if (tolerance > 0) {
+        simplified = TopologyPreservingSimplifier.simplify(simplified, tolerance);
+      }
+      if (precisionModel != null) {
+        simplified = GeometryPrecisionReducer.reduce(simplified, precisionModel);
+      }
+    } catch (TopologyException e) {
+      LOGGER.debug("Could not simplify a region: {}", e.getMessage());
+      simplified = region;
+    } catch (IllegalArgumentException e) {
+      // the precision reducer fails on geometries it cannot make valid
+      LOGGER.debug("Could not simplify a region: {}", e.getMessage());
+      simplified = region;
+    }
+    if (simplified.isEmpty() && !region.isEmpty()) {
+      simplified = region;
+    }
+    regions.incrementAndGet();
+    verticesIn.addAndGet(region.getNumPoints());
+    verticesOut.addAndGet(simplified.getNumPoints());
+    return simplified;
+  }
+
+  /**
+   * Simplifies the polygon of a region feature
+   *
+   * @param region
+   *          A region feature
+   * @return A copy of the feature with the simplified polygon and its area deviation in the user data and an attribute
+   */
+  public SimpleFeature simplify(SimpleFeature region) {
+    Geometry original = (Geometry) region.getDefaultGeometry();
+    if (original == null) {
+      // every region has the attribute, so they can all be written out together
+      return NetworkBuffer.addAttribute(region, AREA_DEVIATION_ATTRIBUTE, Double.class, null);
+    }
+    Geometry simplified = simplify(original);
+    double area = original.getArea();
+    double deviation = area == 0 ? 0 : (simplified.getArea() - area) / area;
+    recordDeviation(Math.abs(deviation));
+    SimpleFeature feature = NetworkBuffer.buildFeatureFromGeometry(region, simplified, region.getID());
+    feature.getUserData().putAll(region.getUserData());
+    feature.getUserData().put(AREA_DEVIATION, deviation);
+    return NetworkBuffer.addAttribute(feature, AREA_DEVIATION_ATTRIBUTE, Double.class, deviation);
+  }
+
+  private void recordDeviation(double deviation) {
+    long current = largestDeviation.get();
+    while (deviation > Double.longBitsToDouble(current)
+        && !largestDeviation.compareAndSet(current, Double.doubleToLongBits(deviation))) {
+      current = largestDeviation.get();
+    }
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  public double getGridSize() {
+    return gridSize;
+  }
+
+  /**
+   * @return The number of regions simplified
+   */
+  public long getRegionCount() {
+    return regions.get();
+  }
+
+  /**
+   * @return The number of vertices of the regions before simplifying
+   */
+  public long getVerticesIn() {
+    return verticesIn.get();
+  }
+
+  /**
+   * @return The number of vertices of the regions after simplifying
+   */
+  public long getVerticesOut() {
+    return verticesOut.get();
+  }
+
+  /**
+   * @return The largest relative change in area of a region feature
+   */
+  public double getLargestAreaDeviation() {
+    return Double.longBitsToDouble(largestDeviation.get());
+  }
+
+  @Override
+  public String toString() {
+    return "RegionSimplifier[tolerance=" + tolerance + ", gridSize=" + gridSize + ", regions=" + regions
+        + ", vertices=" + verticesIn + "->" + verticesOut + ", largestAreaDeviation=" + getLargestAreaDeviation() + "]";
+  }
+}
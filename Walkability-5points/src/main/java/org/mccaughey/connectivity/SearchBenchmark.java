@@ -0,0 +1,122 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.mccaughey.utilities.GeoJSONUtilities;
+
+/**
+ * Times the network graph searches against each other over the same random origins, at the walking and cycling
+ * distances the service areas are built for, and checks that every search reaches the same length of network as
+ * Dijkstra. The reach table lookups may fall short by the quantum of the table at each end of every reached interval,
+ * and are written for a radius of 2000m unless another is given, so beyond it they search with Dijkstra.
+ */
+public final class SearchBenchmark {
+
+  private static final double[] DISTANCES = { 800, 2000, 5000 };
+  private static final SearchMode[] MODES = { SearchMode.DIJKSTRA, SearchMode.DELTA_STEPPING,
+      SearchMode.REACH_TABLE, SearchMode.CONTRACTION_HIERARCHY };
+  private static final double DEFAULT_TABLE_RADIUS = 2000;
+  // reached lengths differing by more than this are reported as mismatches
+  private static final double TOLERANCE = 1e-6;
+
+  private SearchBenchmark() {
+  }
+
+  /**
+   * @param args
+   *          The network GeoJSON file, optionally the number of origins, 200 by default, and the reach table radius
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: SearchBenchmark <network.geojson[.gz]> [origins] [table radius]");
+      System.exit(1);
+    }
+    NetworkGraph graph = NetworkGraph.build(GeoJSONUtilities.readFeatures(new File(args[0]).toURI().toURL()));
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    NetworkLocation[] origins = randomOrigins(graph, count, new Random(42));
+
+    long start = System.currentTimeMillis();
+    graph.getContractionHierarchy();
+    System.out.println("Contraction: " + (System.currentTimeMillis() - start) + "ms");
+
+    double radius = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TABLE_RADIUS;
+    File tableFile = File.createTempFile("reach", ".table");
+    tableFile.deleteOnExit();
+    start = System.currentTimeMillis();
+    ReachTable.write(graph, radius, tableFile);
+    graph.setReachTable(ReachTable.open(tableFile));
+    System.out.println("Reach table within " + radius + ": " + (System.currentTimeMillis() - start) + "ms");
+
+    for (double distance : DISTANCES) {
+      double[] expected = new double[origins.length];
+      for (int i = 0; i < origins.length; i++) {
+        expected[i] = reachedLength(NetworkBuffer.findReachedEdges(graph, origins[i], distance, SearchMode.DIJKSTRA));
+      }
+      for (SearchMode mode : MODES) {
+        // once to warm up, once to time
+        run(graph, origins, distance, mode);
+        start = System.nanoTime();
+        int mismatches = 0;
+        for (int i = 0; i < origins.length; i++) {
+          ServiceArea serviceArea = NetworkBuffer.findReachedEdges(graph, origins[i], distance, mode);
+          double length = reachedLength(serviceArea);
+          double allowed = Math.max(TOLERANCE * Math.max(1, expected[i]), 2 * serviceArea.getTolerance()
+              * serviceArea.size());
+          if (Math.abs(length - expected[i]) > allowed) {
+            mismatches++;
+          }
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / origins.length;
+        System.out.println(String.format("%6.0fm %-22s %9.3fms per origin, %d mismatches", distance, mode, millis,
+            mismatches));
+      }
+    }
+  }
+
+  private static void run(NetworkGraph graph, NetworkLocation[] origins, double distance, SearchMode mode) {
+    for (NetworkLocation origin : origins) {
+      NetworkBuffer.findReachedEdges(graph, origin, distance, mode);
+    }
+  }
+
+  // origins at random vertices of random edges
+  private static NetworkLocation[] randomOrigins(NetworkGraph graph, int count, Random random) {
+    NetworkLocation[] origins = new NetworkLocation[count];
+    for (int i = 0; i < count; i++) {
+      int edge = random.nextInt(graph.edgeCount());
+      int vertex = graph.edgeVertexStart(edge)
+          + random.nextInt(graph.edgeVertexEnd(edge) - graph.edgeVertexStart(edge));
+      origins[i] = graph.locate(graph.vertexX(vertex), graph.vertexY(vertex), 1);
+    }
+    return origins;
+  }
+
+  private static double reachedLength(ServiceArea serviceArea) {
+    double length = 0;
+    double[] intervals = new double[6];
+    for (int i = 0; i < serviceArea.size(); i++) {
+      int count = serviceArea.reachedIntervals(i, intervals);
+      for (int j = 0; j < count; j++) {
+        length += intervals[2 * j + 1] - intervals[2 * j];
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+/**
+ * The start of a query as a temporary virtual node on top of an immutable network graph. The origin edge is hidden
+ * and replaced by two partial edges meeting at the virtual node, in the same way createGraphWithStartNode splits the
+ * nearest line in two, but without copying or scanning the network, so any number of queries can start on the same
+ * shared graph at once.
+ *
+ * The virtual node and edges take the ids just past the end of the graph's own ids, so searches hold them in the same
+ * arrays as real nodes and edges.
+ */
+final class StartOverlay {
+
+  final NetworkGraph graph;
+  final NetworkLocation origin;
+  // the virtual node at the origin
+  final int node;
+  // the hidden edge the origin lies on
+  final int parent;
+  // the part of the parent from its from node to the virtual node
+  final int headEdge;
+  // the part of the parent from the virtual node to its to node
+  final int tailEdge;
+  final double headLength;
+  final double tailLength;
+
+  StartOverlay(NetworkGraph graph, NetworkLocation origin) {
+    this.graph = graph;
+    this.origin = origin;
+    node = graph.nodeCount();
+    parent = origin.getEdge();
+    headEdge = graph.edgeCount();
+    tailEdge = graph.edgeCount() + 1;
+    headLength = origin.getOffset();
+    tailLength = Math.max(0, graph.edgeLength(parent) - origin.getOffset());
+  }
+
+  /**
+   * @return The number of node ids a search of the graph with an overlay can use
+   */
+  static int nodeCount(NetworkGraph graph) {
+    return graph.nodeCount() + 1;
+  }
+
+  /**
+   * @return The number of edge ids a search of the graph with an overlay can use
+   */
+  static int edgeCount(NetworkGraph graph) {
+    return graph.edgeCount() + 2;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the contraction hierarchy range search against Dijkstra over the same origins and distances.
+ */
+public class ContractionHierarchyTest {
+
+  private static final double TOLERANCE = 1e-6;
+
+  @Test
+  public void reachesTheSameNetworkAsDijkstra() {
+    NetworkGraph graph = TestNetworks.grid(30, 60, 5);
+    ContractionHierarchy hierarchy = graph.getContractionHierarchy();
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 40, new Random(1));
+    for (double distance : new double[] { 45, 150, 800, 2500 }) {
+      for (NetworkLocation origin : origins) {
+        TestNetworks.assertSameReach("From " + origin + " within " + distance,
+            NetworkBufferDijkstra.findServiceArea(graph, origin, distance), hierarchy.findServiceArea(origin,
+                distance), TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  public void reachesTheSameNetworkFromNodes() {
+    NetworkGraph graph = TestNetworks.grid(12, 100, 9);
+    ContractionHierarchy hierarchy = graph.getContractionHierarchy();
+    for (int edge = 0; edge < graph.edgeCount(); edge += 7) {
+      for (double offset : new double[] { 0, graph.edgeLength(edge) }) {
+        NetworkLocation origin = new NetworkLocation(edge, offset, 0, 0, 0);
+        TestNetworks.assertSameReach("From " + origin, NetworkBufferDijkstra.findServiceArea(graph, origin, 350),
+            hierarchy.findServiceArea(origin, 350), TOLERANCE);
+      }
+    }
+  }
+}
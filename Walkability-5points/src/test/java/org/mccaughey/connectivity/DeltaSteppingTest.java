@@ -0,0 +1,86 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mccaughey.connectivity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the delta-stepping search against Dijkstra over the same origins and distances, for bucket widths well below,
+ * at and above the edge lengths.
+ */
+public class DeltaSteppingTest {
+
+  private static final double TOLERANCE = 1e-6;
+  private static final double[] DELTAS = { 10, NetworkBufferDeltaStepping.DEFAULT_DELTA, 1000 };
+
+  @Test
+  public void reachesTheSameNetworkAsDijkstra() {
+    NetworkGraph graph = TestNetworks.grid(25, 60, 3);
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 30, new Random(2));
+    for (double delta : DELTAS) {
+      for (double distance : new double[] { 45, 150, 800, 2500 }) {
+        for (NetworkLocation origin : origins) {
+          assertSameServiceArea("From " + origin + " within " + distance + " by " + delta, graph, origin, distance,
+              delta);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void reachesTheSameNetworkFromNodes() {
+    NetworkGraph graph = TestNetworks.grid(12, 100, 9);
+    for (int edge = 0; edge < graph.edgeCount(); edge += 5) {
+      for (double offset : new double[] { 0, graph.edgeLength(edge) }) {
+        NetworkLocation origin = new NetworkLocation(edge, offset, 0, 0, 0);
+        for (double delta : DELTAS) {
+          assertSameServiceArea("From " + origin + " by " + delta, graph, origin, 350, delta);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void reachesTheSameNetworkWithZeroLengthEdges() {
+    NetworkGraph graph = TestNetworks.grid(15, 80, 11, 0.3);
+    NetworkLocation[] origins = TestNetworks.randomOrigins(graph, 30, new Random(4));
+    for (double delta : DELTAS) {
+      for (NetworkLocation origin : origins) {
+        assertSameServiceArea("From " + origin + " by " + delta, graph, origin, 400, delta);
+      }
+    }
+    // starting on a zero length edge starts at its node
+    for (int edge = 0; edge < graph.edgeCount(); edge++) {
+      if (graph.edgeLength(edge) == 0) {
+        NetworkLocation origin = new NetworkLocation(edge, 0, 0, 0, 0);
+        for (double delta : DELTAS) {
+          assertSameServiceArea("From " + origin + " by " + delta, graph, origin, 400, delta);
+        }
+      }
+    }
+  }
+
+  private static void assertSameServiceArea(String message, NetworkGraph graph, NetworkLocation origin,
+      double distance, double delta) {
+    ServiceArea expected = NetworkBufferDijkstra.findServiceArea(graph, origin, distance);
+    ServiceArea actual = NetworkBufferDeltaStepping.findServiceArea(graph, origin, distance, delta);
+    assertEquals(message + " edges", TestNetworks.reachedEdges(expected), TestNetworks.reachedEdges(actual));
+    TestNetworks.assertSameReach(message, expected, actual, TOLERANCE);
+  }
+}